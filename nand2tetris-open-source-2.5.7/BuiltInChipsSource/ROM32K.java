@@ -78,7 +78,7 @@ public class ROM32K extends BuiltInGateWithGUI
                                                               (int)0);
 
         if (gui != null) {
-            if (fileName.endsWith(".hack"))
+            if (fileName.endsWith(".hack") || fileName.endsWith(".hackb"))
                 gui.setNumericFormat(ROM.BINARY_FORMAT);
             else
                 gui.setNumericFormat(ROM.ASM_FORMAT);
@@ -53,9 +53,7 @@ public class Keyboard extends JackOSClass {
 	private static char readCharNoEcho() throws TerminateVMProgramThrowable {
 		char current = 0, saved = 0;
 		while (saved == 0 || current != 0) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) { }
+			waitForKeyboard();
 			current = keyPressed();
 			if (current != 0) {
 				saved = current;
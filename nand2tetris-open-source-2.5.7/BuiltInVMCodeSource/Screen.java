@@ -27,14 +27,16 @@ import Hack.VMEmulator.TerminateVMProgramThrowable;
 public class Screen extends JackOSClass {
 	private static boolean black;
 
+	// A buffer for the screen words of a line that are updated together
+	private static int[] buffer = new int[SCREEN_WIDTH>>4];
+
 	public static void init() {
 		black = true;
     }
 
     public static void clearScreen() throws TerminateVMProgramThrowable {
-		for (int i=SCREEN_START_ADDRESS; i<=SCREEN_END_ADDRESS; ++i) {
-			writeMemory(i, 0);
-		}
+		fillMemory(SCREEN_START_ADDRESS,
+				   SCREEN_END_ADDRESS - SCREEN_START_ADDRESS + 1, 0);
     }
 
     private static void updateLocation(int address, int mask)
@@ -49,6 +51,30 @@ public class Screen extends JackOSClass {
 		writeMemory(address, value);
     }
 
+    private static void updateBuffer(int index, int mask) {
+		if (black) {
+			buffer[index] |= mask;
+		} else {
+			buffer[index] &= ~mask;
+		}
+    }
+
+    private static void updateLine(int address, int wordsDiff,
+								   int firstWordMask, int lastWordMask)
+			throws TerminateVMProgramThrowable {
+		readMemoryRange(SCREEN_START_ADDRESS + address, buffer, 0, wordsDiff + 1);
+		if (wordsDiff == 0) {
+			updateBuffer(0, lastWordMask & firstWordMask);
+		} else {
+			updateBuffer(0, firstWordMask);
+			for (int i=1; i<wordsDiff; ++i) {
+				updateBuffer(i, 0xFFFF);
+			}
+			updateBuffer(wordsDiff, lastWordMask);
+		}
+		writeMemoryRange(SCREEN_START_ADDRESS + address, buffer, 0, wordsDiff + 1);
+    }
+
     public static void setColor(int color) {
 		black = (color!=0);
     }
@@ -137,20 +163,8 @@ public class Screen extends JackOSClass {
 		int lastWordMask = 0xFFFF>>>(15-(x2&15));
         int address = (y1 * (SCREEN_WIDTH>>4)) + x1Word;
         int wordsDiff = x2Word - x1Word;
-		if (wordsDiff == 0) {
-			int mask = lastWordMask&firstWordMask;
-			for (;y1<=y2;++y1,address+=(SCREEN_WIDTH>>4)) {
-				updateLocation(address, lastWordMask&firstWordMask);
-			}
-		} else {
-			for (;y1<=y2;++y1,address += (SCREEN_WIDTH>>4)-wordsDiff) {
-				int lastAddressInLine = address + wordsDiff;
-				updateLocation(address, firstWordMask);
-				for (++address; address < lastAddressInLine; ++address) {
-					updateLocation(address, 0xFFFF);
-				}
-				updateLocation(address, lastWordMask);
-			}
+		for (;y1<=y2;++y1,address+=(SCREEN_WIDTH>>4)) {
+			updateLine(address, wordsDiff, firstWordMask, lastWordMask);
 		}
     }
 
@@ -164,21 +178,8 @@ public class Screen extends JackOSClass {
 		int wordsDiff = maxXWord - minXWord;
 		int address1 = (y1 * (SCREEN_WIDTH>>4)) + minXWord;
 		int address2 = (y2 * (SCREEN_WIDTH>>4)) + minXWord;
-		if (wordsDiff == 0) {
-			updateLocation(address1, lastWordMask & firstWordMask);
-			updateLocation(address2, lastWordMask & firstWordMask);
-		} else {
-			int lastAddressInLine1 = address1 + wordsDiff;
-			updateLocation(address1, firstWordMask);
-			updateLocation(address2, firstWordMask);
-			for (++address1, ++address2;address1 < lastAddressInLine1;
-				 ++address1, ++address2) {
-				updateLocation(address1, 0xFFFF);
-				updateLocation(address2, 0xFFFF);
-			}
-			updateLocation(address1, lastWordMask);
-			updateLocation(address2, lastWordMask);
-		}
+		updateLine(address1, wordsDiff, firstWordMask, lastWordMask);
+		updateLine(address2, wordsDiff, firstWordMask, lastWordMask);
     }
 
     public static void drawCircle(int x, int y, int radius)
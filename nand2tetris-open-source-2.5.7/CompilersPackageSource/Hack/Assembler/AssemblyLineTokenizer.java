@@ -57,6 +57,9 @@ public class AssemblyLineTokenizer extends LineTokenizer {
         wordChars('&','&');
         wordChars('|','|');
         wordChars('$','$');
+        wordChars('*','*');
+        wordChars('<','<');
+        wordChars('>','>');
 
         nextToken();
     }
@@ -39,6 +39,9 @@ public class HackAssembler extends HackTranslator {
     // the symbol table
     private Hashtable symbolTable;
 
+    // the labels of the program and their addresses
+    private Hashtable labels;
+
     // The comarison program array
     private int[] comparisonProgram;
 
@@ -148,6 +151,7 @@ public class HackAssembler extends HackTranslator {
     // value according to it's location in the program
     private void generateSymbolTable() throws HackTranslatorException {
         symbolTable = Definitions.getInstance().getAddressesTable();
+        labels = new Hashtable();
         int pc = 0;
         String line;
         String label;
@@ -170,6 +174,7 @@ public class HackAssembler extends HackTranslator {
                         input.ensureEnd();
 
                         symbolTable.put(label,new Integer(pc));
+                        labels.put(label,new Integer(pc));
                     }
                     else if (input.contains("["))
                         pc += 2;
@@ -184,6 +189,45 @@ public class HackAssembler extends HackTranslator {
         }
     }
 
+    /**
+     * Returns a table of the labels that are declared in the source file,
+     * mapped to their program addresses.
+     */
+    public Hashtable getLabels() {
+        return labels;
+    }
+
+    /**
+     * Saves the compiled program and its labels into a binary program image
+     * (.hackb) file with the given name (see HackBinaryFile).
+     */
+    public void saveBinary(String fileName) throws HackTranslatorException {
+        try {
+            HackBinaryFile.write(fileName, program, programSize, labels);
+        } catch (IOException ioe) {
+            throw new HackTranslatorException("could not create file " + fileName);
+        }
+    }
+
+    /**
+     * Accepts a binary program image (.hackb) destination as well as a .hack one.
+     */
+    protected void checkDestinationFile(String fileName) throws HackTranslatorException {
+        if (!fileName.endsWith("." + HackBinaryFile.EXTENSION))
+            super.checkDestinationFile(fileName);
+    }
+
+    /**
+     * Saves the program into the destination file, as a binary program image
+     * if its name ends with .hackb.
+     */
+    protected void save() throws HackTranslatorException {
+        if (destFileName.endsWith("." + HackBinaryFile.EXTENSION))
+            saveBinary(destFileName);
+        else
+            super.save();
+    }
+
     protected void initCompilation() throws HackTranslatorException {
         if (gui != null && (inFullCompilation || !compilationStarted))
             ((HackAssemblerGUI)gui).disableLoadComparison();
@@ -64,6 +64,16 @@ public class HackAssemblerTranslator {
     private static final Integer D_OR_M       = new Integer((int)0xf540);
     private static final Integer D_OR_A       = new Integer((int)0xe540);
 
+    // extended exp constants (see setExtendedInstructionSet())
+    private static final Integer D_TIMES_A     = new Integer((int)0xa000);
+    private static final Integer D_TIMES_M     = new Integer((int)0xb000);
+    private static final Integer D_SHIFT_LEFT  = new Integer((int)0xa040);
+    private static final Integer D_SHIFT_RIGHT = new Integer((int)0xa080);
+    private static final Integer A_SHIFT_LEFT  = new Integer((int)0xa0c0);
+    private static final Integer M_SHIFT_LEFT  = new Integer((int)0xb0c0);
+    private static final Integer A_SHIFT_RIGHT = new Integer((int)0xa100);
+    private static final Integer M_SHIFT_RIGHT = new Integer((int)0xb100);
+
     // dest constants
     private static final Integer A   = new Integer((int)0x20);
     private static final Integer M   = new Integer((int)0x8);
@@ -85,9 +95,16 @@ public class HackAssemblerTranslator {
     // the single instance
     private static HackAssemblerTranslator instance;
 
+    // True if the extended instruction set is enabled
+    private static boolean extendedInstructionSet =
+        Boolean.getBoolean("hack.extendedInstructionSet");
+
     // The translation tables from text to codes
     private Hashtable expToCode, destToCode, jmpToCode;
 
+    // The translation table from text to codes of the extended exps
+    private Hashtable extendedExpToCode;
+
     // The translation table from code to text.
     private Hashtable expToText, destToText, jmpToText;
 
@@ -111,12 +128,31 @@ public class HackAssemblerTranslator {
         return instance;
     }
 
+    /**
+     * Enables or disables the extended instruction set: C-instructions that
+     * start with 101 instead of 111 and compute D*A, D*M, D<<1, D>>1, A<<1,
+     * A>>1, M<<1 and M>>1 (shifting right keeps the sign). Programs that use
+     * them can be assembled and executed only while the set is enabled.
+     * The set is disabled by default, unless the hack.extendedInstructionSet
+     * system property is true.
+     */
+    public static void setExtendedInstructionSet(boolean enabled) {
+        extendedInstructionSet = enabled;
+    }
+
+    /**
+     * Returns true if the extended instruction set is enabled.
+     */
+    public static boolean isExtendedInstructionSet() {
+        return extendedInstructionSet;
+    }
+
     /**
      * Returns the code which represents the given exp text.
      * If doesn't exist, throws AssemblerException.
      */
     public int getExpByText(String text) throws AssemblerException {
-        Integer code = (Integer)expToCode.get(text);
+        Integer code = getExpCode(text);
         if (code == null)
             throw new AssemblerException("Illegal exp: " + text);
         return code.intValue();
@@ -215,9 +251,9 @@ public class HackAssemblerTranslator {
                 // find exp
                 Integer exp;
                 if (!firstToken.equals("=") && destCode == 0)
-                    exp = (Integer)expToCode.get(firstToken);
+                    exp = getExpCode(firstToken);
                 else
-                    exp = (Integer)expToCode.get(input.token());
+                    exp = getExpCode(input.token());
 
                 if (exp == null)
                     throw new AssemblerException("Expression expected");
@@ -290,7 +326,7 @@ public class HackAssemblerTranslator {
     }
 
     /**
-     * Loads the given program file (HACK or ASM) and returns a memory array of
+     * Loads the given program file (HACK, HACKB or ASM) and returns a memory array of
      * the given size that contains the program. The given null value will be used
      * to fill the memory array initially.
      */
@@ -333,6 +369,8 @@ public class HackAssemblerTranslator {
                 throw new AssemblerException("IO error while reading " + fileName);
             }
         }
+        else if (fileName.endsWith("." + HackBinaryFile.EXTENSION))
+            memory = HackBinaryFile.read(fileName, size, nullValue);
         else if (fileName.endsWith(".asm")) {
             try {
                 HackAssembler assembler = new HackAssembler(fileName, size, nullValue, false);
@@ -342,11 +380,19 @@ public class HackAssemblerTranslator {
             }
         }
         else
-            throw new AssemblerException(fileName + " is not a .hack or .asm file");
+            throw new AssemblerException(fileName + " is not a .hack, .hackb or .asm file");
 
         return memory;
     }
 
+    // Returns the code of the given exp text, or null if it is not legal.
+    private Integer getExpCode(String text) {
+        Integer code = (Integer)expToCode.get(text);
+        if (code == null && extendedInstructionSet)
+            code = (Integer)extendedExpToCode.get(text);
+        return code;
+    }
+
     // initializes the exp table
     private void initExp() {
         expToCode = new Hashtable();
@@ -418,6 +464,30 @@ public class HackAssemblerTranslator {
         expToText.put(D_AND_A,"D&A");
         expToText.put(D_OR_M,"D|M");
         expToText.put(D_OR_A,"D|A");
+
+        extendedExpToCode = new Hashtable();
+
+        extendedExpToCode.put("D*A",D_TIMES_A);
+        extendedExpToCode.put("A*D",D_TIMES_A);
+        extendedExpToCode.put("D*M",D_TIMES_M);
+        extendedExpToCode.put("M*D",D_TIMES_M);
+        extendedExpToCode.put("D<<1",D_SHIFT_LEFT);
+        extendedExpToCode.put("D>>1",D_SHIFT_RIGHT);
+        extendedExpToCode.put("A<<1",A_SHIFT_LEFT);
+        extendedExpToCode.put("M<<1",M_SHIFT_LEFT);
+        extendedExpToCode.put("A>>1",A_SHIFT_RIGHT);
+        extendedExpToCode.put("M>>1",M_SHIFT_RIGHT);
+
+        // the extended exps are always translated back to text, so that
+        // programs that use them can be displayed
+        expToText.put(D_TIMES_A,"D*A");
+        expToText.put(D_TIMES_M,"D*M");
+        expToText.put(D_SHIFT_LEFT,"D<<1");
+        expToText.put(D_SHIFT_RIGHT,"D>>1");
+        expToText.put(A_SHIFT_LEFT,"A<<1");
+        expToText.put(M_SHIFT_LEFT,"M<<1");
+        expToText.put(A_SHIFT_RIGHT,"A>>1");
+        expToText.put(M_SHIFT_RIGHT,"M>>1");
     }
 
     // initializes the dest table
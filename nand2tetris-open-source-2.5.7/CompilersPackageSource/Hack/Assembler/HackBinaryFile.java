@@ -0,0 +1,159 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Assembler;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+import Hack.Utilities.*;
+
+/**
+ * Binary program images (.hackb files): a faster alternative to the text
+ * .hack format. An image is a memory-mapped file (see StateFile) that holds
+ * a checksum, the instruction words and the labels of the program source.
+ * Loading an image copies the words from the mapped file straight into the
+ * program array, without parsing.
+ */
+public class HackBinaryFile {
+
+    /**
+     * The extension of binary program image files.
+     */
+    public static final String EXTENSION = "hackb";
+
+    // The magic number ("HCKB") and version of image files
+    private static final int MAGIC = 0x48434b42;
+    private static final int VERSION = 1;
+
+    /**
+     * Writes the first length words of the given program and the given labels
+     * (label names mapped to Integer addresses, may be null) into an image file
+     * with the given name.
+     * Throws IOException if the file can't be written.
+     */
+    public static void write(String fileName, int[] program, int length, Hashtable labels)
+     throws IOException {
+        int[] words = new int[length];
+        System.arraycopy(program, 0, words, 0, length);
+
+        // the labels are written in a fixed order, so that equal programs
+        // give equal files
+        String[] names = new String[labels != null ? labels.size() : 0];
+        int size = 4 + 4 * words.length + 4;
+        if (labels != null) {
+            labels.keySet().toArray(names);
+            Arrays.sort(names);
+            for (int i = 0; i < names.length; i++)
+                size += StateFile.getStringSize(names[i]) + 4;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(size);
+        StateFile.putInts(data, words);
+        data.putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            StateFile.putString(data, names[i]);
+            data.putInt(((Integer)labels.get(names[i])).intValue());
+        }
+
+        ByteBuffer buffer = StateFile.create(fileName, MAGIC, VERSION, 8 + size);
+        buffer.putInt(getChecksum(data.array()));
+        buffer.putInt(size);
+        buffer.put(data.array());
+    }
+
+    /**
+     * Loads the program of the given image file and returns a memory array of the
+     * given size that contains the program. The given null value is used to fill
+     * the rest of the memory array.
+     * Throws AssemblerException if the file can't be read or is not a valid image
+     * of a program that fits in the given size.
+     */
+    public static int[] read(String fileName, int size, int nullValue)
+     throws AssemblerException {
+        ByteBuffer buffer = open(fileName);
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 4)
+            throw new AssemblerException(fileName + " is truncated");
+        if (length > size)
+            throw new AssemblerException("Program too large");
+
+        int[] memory = new int[size];
+        buffer.asIntBuffer().get(memory, 0, length);
+        Arrays.fill(memory, length, size, nullValue);
+
+        return memory;
+    }
+
+    /**
+     * Returns the labels of the given image file: a table of label names mapped
+     * to Integer program addresses.
+     * Throws AssemblerException if the file can't be read or is not a valid image.
+     */
+    public static Hashtable readLabels(String fileName) throws AssemblerException {
+        ByteBuffer buffer = open(fileName);
+        Hashtable labels = new Hashtable();
+        try {
+            StateFile.getInts(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = StateFile.getString(buffer);
+                labels.put(name, new Integer(buffer.getInt()));
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new AssemblerException(fileName + " is truncated");
+        }
+
+        return labels;
+    }
+
+    // Opens the given image file and checks its checksum. Returns a buffer that
+    // contains the image data.
+    private static ByteBuffer open(String fileName) throws AssemblerException {
+        ByteBuffer buffer;
+        byte[] data;
+        int checksum;
+        try {
+            buffer = StateFile.open(fileName, MAGIC, VERSION);
+            checksum = buffer.getInt();
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining())
+                throw new AssemblerException(fileName + " is truncated");
+            buffer = buffer.slice();
+            buffer.limit(size);
+            data = new byte[size];
+            buffer.duplicate().get(data);
+        } catch (IOException ioe) {
+            throw new AssemblerException(ioe.getMessage());
+        } catch (BufferUnderflowException bue) {
+            throw new AssemblerException(fileName + " is truncated");
+        }
+
+        if (getChecksum(data) != checksum)
+            throw new AssemblerException(fileName + " is corrupted (wrong checksum)");
+
+        return buffer;
+    }
+
+    // Returns the CRC-32 checksum of the given data.
+    private static int getChecksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue();
+    }
+}
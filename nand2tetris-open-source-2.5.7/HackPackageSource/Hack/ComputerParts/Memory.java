@@ -100,6 +100,13 @@ public class Memory extends InteractiveValueComputerPart implements ClearEventLi
      */
     public void reset() {
         super.reset();
+        clearContents();
+    }
+
+    /**
+     * Sets all the words of the memory to the null value.
+     */
+    protected void clearContents() {
         for (int i = 0; i < size; i++)
             mem[i] = nullValue;
     }
@@ -96,6 +96,16 @@ public class Command {
      */
     public static final byte CLEAR_ECHO_COMMAND = 14;
 
+    /**
+     * A run-until script command
+     */
+    public static final byte RUN_UNTIL_COMMAND = 15;
+
+    /**
+     * A pace script command
+     */
+    public static final byte PACE_COMMAND = 16;
+
     // terminators
 
     /**
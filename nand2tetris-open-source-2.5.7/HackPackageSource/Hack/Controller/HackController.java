@@ -45,10 +45,18 @@ public class HackController
     public static final float[] SPEED_FUNCTION = {0f, 0.35f, 0.63f, 0.87f, 1f};
 
     /**
-     * The speed function for fast forward mode.
+     * The speed function for fast forward mode: the number of steps per
+     * millisecond of every speed unit.
      */
     public static final int[] FASTFORWARD_SPEED_FUNCTION = {500, 1000, 2000, 4000, 15000};
 
+    /**
+     * The fast forward rate (in steps per second) of the 'pace hack' script
+     * command, which mimics a 1 MHz Hack clock when one step executes one
+     * instruction (as in the default CPU Emulator script).
+     */
+    public static final long HACK_CLOCK_RATE = 1000000;
+
     // ANIMATION MODES:
 
     /**
@@ -191,6 +199,21 @@ public class HackController
     // True if the system is in fast forward.
     private boolean fastForwardRunning;
 
+    // The fast forward rate in steps per second set by the pace command,
+    // or 0 if the rate is set by the speed unit
+    private long paceRate;
+
+    // Paces the fast forward to its rate
+    private Pacer pacer;
+
+    // The fast forward waits on it while the program is idle, and is notified
+    // by the simulator when the program may stop being idle, or on stop
+    private Object idleMonitor = new Object();
+
+    // True while the message area shows the running message of fast forward,
+    // which is updated with the achieved rate
+    private volatile boolean showingRates;
+
     // True if the system is in Single Step.
     private boolean singleStepRunning;
 
@@ -229,6 +252,7 @@ public class HackController
         simulator.setAnimationMode(animationMode);
         simulator.addListener(this);
         breakpoints = new Vector();
+        simulator.setBreakpoints(breakpoints);
 
         try {
             loadNewScript(file, false);
@@ -261,6 +285,7 @@ public class HackController
         simulator.addListener(this);
         simulator.addProgramListener(this);
         breakpoints = new Vector();
+        simulator.setBreakpoints(breakpoints);
 
         defaultScriptFile = new File(defaultScriptName);
         loadNewScript(defaultScriptFile, false);
@@ -336,6 +361,10 @@ public class HackController
                 gui.enableSpeedSlider();
             }
             fastForwardRunning = false;
+            showingRates = false;
+            synchronized (idleMonitor) {
+                idleMonitor.notifyAll();
+            }
         }
         singleStepRunning = false;
 
@@ -371,6 +400,7 @@ public class HackController
             timer.start();
         else {
             displayMessage("Running...", false);
+            showingRates = true;
             gui.disableSpeedSlider();
             Thread t = new Thread(fastForwardTask);
             t.start();
@@ -401,21 +431,23 @@ public class HackController
             // Check Breakpoints
             for (int i = 0; i < breakpoints.size(); i++) {
                 Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
-                String currentValue = simulator.getValue(breakpoint.getVarName());
-                if (currentValue.equals(breakpoint.getValue())) {
+                if (simulator.breakpointHolds(i)) {
                     // if value is equal and the breakpoint wasn't reached before, turn it on
                     if (!breakpoint.isReached()) {
                         breakpoint.on();
-                        gui.setBreakpoints(breakpoints);
                         displayMessage("Breakpoint reached", false);
-                        gui.showBreakpoints();
+                        if (gui != null) {
+                            gui.setBreakpoints(breakpoints);
+                            gui.showBreakpoints();
+                        }
                         stopMode();
                     }
                 }
                 // if the value is not equal and the breakpoint was reached before, turn it off
                 else if (breakpoint.isReached()) {
                     breakpoint.off();
-                    gui.setBreakpoints(breakpoints);
+                    if (gui != null)
+                        gui.setBreakpoints(breakpoints);
                 }
             }
         } catch (ControllerException ce) {
@@ -477,10 +509,25 @@ public class HackController
             case Command.CLEAR_BREAKPOINTS_COMMAND:
                 doClearBreakpointsCommand(command);
                 break;
+            case Command.RUN_UNTIL_COMMAND:
+                RunCondition runCondition = (RunCondition)command.getArg();
+                simulator.runUntil(runCondition.getCondition(), runCondition.getMaxSteps());
+                break;
+            case Command.PACE_COMMAND:
+                paceRate = ((Long)command.getArg()).longValue();
+                break;
             case Command.REPEAT_COMMAND:
                 repeatCounter = ((Integer)command.getArg()).intValue();
                 loopCommandIndex = currentCommandIndex + 1;
-                redo = true;
+                if (isBatchRepeat()) {
+                    // executes all the repeats of the loop's single command at once
+                    currentCommandIndex = loopCommandIndex;
+                    command = script.getCommandAt(currentCommandIndex);
+                    simulator.doRepeatedCommand((String[])command.getArg(), repeatCounter);
+                    repeatCounter = 1;
+                }
+                else
+                    redo = true;
                 break;
             case Command.WHILE_COMMAND:
                 whileCondititon = (ScriptCondition)command.getArg();
@@ -522,6 +569,7 @@ public class HackController
                     throw new ControllerException("Could not read comparison file");
                 }
 
+                simulator.scriptEnded();
                 break;
             }
 
@@ -551,6 +599,20 @@ public class HackController
         return command.getTerminator();
     }
 
+    // Returns true if the repeat loop that starts at loopCommandIndex can be
+    // executed in one step: if it has a repeat count and a single simulator command
+    // that doesn't stop the script, and the script runs with no GUI (so nothing
+    // can be observed between the repeats). Breakpoints are checked by the simulator.
+    private boolean isBatchRepeat() {
+        if (gui != null || repeatCounter <= 1)
+            return false;
+
+        Command command = script.getCommandAt(loopCommandIndex);
+        return command.getCode() == Command.SIMULATOR_COMMAND &&
+               command.getTerminator() != Command.STOP_TERMINATOR &&
+               script.getCommandAt(loopCommandIndex + 1).getCode() == Command.END_REPEAT_COMMAND;
+    }
+
     // Executes the controller's output-file command.
     private void doOutputFileCommand(Command command) throws ControllerException {
         currentOutputName = currentScriptFile.getParent() + "/" + (String)command.getArg();
@@ -631,6 +693,7 @@ public class HackController
     // Executes the controller's echo command.
     private void doEchoCommand(Command command) throws ControllerException {
         lastEcho = (String)command.getArg();
+        showingRates = false;
         if (gui != null)
             gui.displayMessage(lastEcho, false);
     }
@@ -638,6 +701,7 @@ public class HackController
     // Executes the controller's Clear-echo command.
     private void doClearEchoCommand(Command command) throws ControllerException {
         lastEcho = "";
+        showingRates = false;
         if (gui != null)
             gui.displayMessage("", false);
     }
@@ -648,15 +712,20 @@ public class HackController
 
         if (!breakpointExists(breakpoints, breakpoint)) {
             breakpoints.addElement(breakpoint);
+            simulator.setBreakpoints(breakpoints);
 
-            gui.setBreakpoints(breakpoints);
+            if (gui != null)
+                gui.setBreakpoints(breakpoints);
         }
     }
 
     // Executes the controller's clear-breakpoints command.
     private void doClearBreakpointsCommand(Command command) throws ControllerException {
         breakpoints.removeAllElements();
-        gui.setBreakpoints(breakpoints);
+        simulator.setBreakpoints(breakpoints);
+
+        if (gui != null)
+            gui.setBreakpoints(breakpoints);
     }
 
     // Compares an output line with a template line from a compare file.
@@ -721,6 +790,7 @@ public class HackController
         currentScriptFile = file;
         script = new Script(file.getPath());
         breakpoints.removeAllElements();
+        simulator.setBreakpoints(breakpoints);
         currentCommandIndex = 0;
         output = null;
         currentOutputName = "";
@@ -768,6 +838,24 @@ public class HackController
         }
     }
 
+    /**
+     * Returns the target rate of fast forward in steps per second: the rate that
+     * was set by the pace script command, or else the rate of the current speed unit.
+     */
+    public long getTargetRate() {
+        return (paceRate != 0 ? paceRate :
+                FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1] * 1000L);
+    }
+
+    /**
+     * Returns the rate in steps per second that fast forward achieved lately,
+     * or 0 if it didn't run yet.
+     */
+    public double getAchievedRate() {
+        Pacer pacer = this.pacer;
+        return (pacer != null ? pacer.getAchievedRate() : 0);
+    }
+
     // Sets the speed delay according to the given speed unit.
     private void setSpeed(int newSpeedUnit) {
         currentSpeedUnit = newSpeedUnit;
@@ -826,6 +914,8 @@ public class HackController
             if (!breakpointExists(breakpoints, currentBreakpoint))
                 breakpoints.addElement(currentBreakpoint);
         }
+
+        simulator.setBreakpoints(breakpoints);
     }
 
     // Returns true if the given breakpoint exists in the given breakpoints vector.
@@ -852,6 +942,7 @@ public class HackController
 
     // Displays the given message with the given type (error or not)
     private void displayMessage(String message, boolean error) {
+        showingRates = false;
         if (gui != null)
             gui.displayMessage(message, error);
         else {
@@ -965,6 +1056,7 @@ public class HackController
                     fastForward();
                     break;
                 case ControllerEvent.STOP:
+                    simulator.requestStop();
                     if (animationMode == NO_DISPLAY_CHANGES)
                         displayMessage("", false);
                     stopMode();
@@ -1097,6 +1189,10 @@ public class HackController
 
     // Performs the fast forward task
     class FastForwardTask implements Runnable {
+
+        // The achieved rate that is shown in the message area
+        private double shownRate;
+
         public synchronized void run() {
             try {
                 System.runFinalization();
@@ -1105,21 +1201,52 @@ public class HackController
             } catch (InterruptedException ie) {
             }
 
-            int count = 0;
-            int rounds = FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1];
+            pacer = new Pacer(getTargetRate());
+            shownRate = 0;
 
             while (fastForwardRunning) {
                 singleStep();
 
-                // waits for 1 ms each constant amount of commands
-                if (count == rounds) {
-                    count = 0;
-                    try {
-                        wait(1);
-                    } catch (InterruptedException ie) {}
+                // an idle program waits for changes from outside (such as a
+                // key press) instead of running
+                if (simulator.isIdle()) {
+                    waitWhileIdle();
+                    pacer.restart();
+                }
+
+                // the rate may be changed by the speed slider or a pace command
+                else {
+                    long rate = getTargetRate();
+                    if (rate != pacer.getRate())
+                        pacer.setRate(rate);
+                    pacer.pace(1);
+                    showRates();
+                }
+            }
+        }
+
+        // Waits until the program stops being idle or the fast forward stops.
+        private void waitWhileIdle() {
+            synchronized (idleMonitor) {
+                simulator.setIdleMonitor(idleMonitor);
+                try {
+                    while (fastForwardRunning && simulator.isIdle())
+                        idleMonitor.wait();
+                } catch (InterruptedException ie) {
+                } finally {
+                    simulator.setIdleMonitor(null);
                 }
+            }
+        }
 
-                count++;
+        // Shows the achieved and target rates in the running message whenever
+        // a new achieved rate was measured, unless another message replaced it.
+        private void showRates() {
+            double rate = getAchievedRate();
+            if (showingRates && rate != shownRate) {
+                shownRate = rate;
+                gui.displayMessage("Running... " + Math.round(rate) + " of " +
+                                   getTargetRate() + " steps per second", false);
             }
         }
     }
@@ -36,12 +36,19 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
     // The current working dir
     protected File workingDir;
 
+    // The breakpoints that are checked by commands that run many steps
+    protected Vector breakpoints;
+
+    // True if a stop was requested while a command that runs many steps is executed
+    private volatile boolean stopRequested;
+
     /**
      * Constructs a new hack simulator.
      */
     public HackSimulator() {
         listeners = new Vector();
         programListeners = new Vector();
+        breakpoints = new Vector();
     }
 
     /**
@@ -69,6 +76,126 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
     public abstract void doCommand(String[] command)
      throws CommandException, ProgramException, VariableException;
 
+    /**
+     * Executes the given simulator command (given in args[] style) the given
+     * number of times. Stops early when a breakpoint is reached or a stop is
+     * requested. Simulators that can execute a repeated command faster than
+     * one by one should override this method.
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void doRepeatedCommand(String[] command, int times)
+     throws CommandException, ProgramException, VariableException {
+        clearStopRequest();
+        for (int i = 0; i < times && !isStopRequested(); i++) {
+            doCommand(command);
+            if (breakpoints.size() > 0 && breakpointReached())
+                break;
+        }
+    }
+
+    /**
+     * Executes steps of the simulator until the given condition holds. The condition
+     * is checked before every step. If maxSteps isn't 0, at most maxSteps steps
+     * are executed. Stops early when a breakpoint is reached or a stop is requested.
+     * Throws CommandException if the simulator doesn't support this command.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void runUntil(ScriptCondition condition, int maxSteps)
+     throws CommandException, ProgramException, VariableException, ControllerException {
+        throw new CommandException("Unknown simulator command", new String[]{"run-until"});
+    }
+
+    /**
+     * Sets the breakpoints that are checked by commands that run many steps
+     * (such as 'ticktock N' and run-until). Called by the controller whenever
+     * its breakpoints list is changed.
+     */
+    public void setBreakpoints(Vector breakpoints) {
+        this.breakpoints = breakpoints;
+    }
+
+    /**
+     * Asks a command that runs many steps to stop as soon as possible.
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Clears the stop request. Called at the beginning of a command that runs
+     * many steps.
+     */
+    protected void clearStopRequest() {
+        stopRequested = false;
+    }
+
+    /**
+     * Returns true if a stop was requested since the last clearStopRequest().
+     */
+    protected boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Returns true if the variable of the breakpoint at the given index (in the
+     * list that was given to setBreakpoints()) has the breakpoint's value.
+     * Throws VariableException if the breakpoint's variable is not legal.
+     */
+    public boolean breakpointHolds(int index) throws VariableException {
+        Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(index);
+        return getValue(breakpoint.getVarName()).equals(breakpoint.getValue());
+    }
+
+    /**
+     * Checks the breakpoints between the steps of a command that runs many steps.
+     * Returns true if the variable of a breakpoint that isn't reached has the
+     * breakpoint's value: the controller will then turn it on and stop after the
+     * command. Breakpoints that are reached and whose variable no longer has their
+     * value are turned off, as the controller does after every step.
+     * Throws VariableException if a breakpoint's variable is not legal.
+     */
+    protected boolean breakpointReached() throws VariableException {
+        boolean reached = false;
+
+        for (int i = 0; i < breakpoints.size(); i++) {
+            Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+            if (breakpointHolds(i)) {
+                if (!breakpoint.isReached())
+                    reached = true;
+            }
+            else if (breakpoint.isReached())
+                breakpoint.off();
+        }
+
+        return reached;
+    }
+
+    /**
+     * Returns true if the simulated program is known to be idle: waiting in a loop
+     * that changes nothing but the time until it is changed from outside.
+     */
+    public boolean isIdle() {
+        return false;
+    }
+
+    /**
+     * Sets the object whose waiting threads are notified (see Object.notifyAll())
+     * when the simulated program may stop being idle, since it was changed from
+     * outside (for example by a key press), or null for none.
+     * A simulator whose program may be idle (see isIdle()) should override it.
+     */
+    public void setIdleMonitor(Object monitor) {
+    }
+
+    /**
+     * Called when the script ends, after the output and comparison files are closed.
+     * Throws ProgramException if the simulator fails to finish its work
+     * (for example, to write a report).
+     */
+    public void scriptEnded() throws ProgramException {
+    }
+
     /**
      * Restarts the simulator.
      */
@@ -0,0 +1,128 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Paces a loop of steps to a target rate of steps per second. The loop calls
+ * pace() after its steps. The pacer measures the elapsed time with
+ * System.nanoTime() and, when the loop is ahead of its schedule, parks the
+ * thread until the schedule catches up. Short delays are accumulated into
+ * one longer park, so the rate doesn't depend on the resolution of the
+ * system timer. A loop that falls far behind its schedule (because the host
+ * is too slow or the loop was paused) restarts the schedule instead of
+ * running the missed steps at full speed.
+ */
+public class Pacer {
+
+    // The number of nanoseconds in a second
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // The minimal time to park: shorter delays are accumulated
+    private static final long MIN_PARK_NANOS = 1000000L;
+
+    // The maximal time that the loop may fall behind before the schedule restarts
+    private static final long MAX_LAG_NANOS = 100000000L;
+
+    // The time over which the achieved rate is measured
+    private static final long RATE_WINDOW_NANOS = 500000000L;
+
+    // The target rate in steps per second
+    private long rate;
+
+    // The start time of the schedule and the steps made since then
+    private long scheduleStart, scheduleSteps;
+
+    // The start time of the current rate window and the steps made since then
+    private long windowStart, windowSteps;
+
+    // The rate that was achieved in the last full window
+    private volatile double achievedRate;
+
+    /**
+     * Constructs a new pacer with the given target rate in steps per second.
+     */
+    public Pacer(long rate) {
+        this.rate = rate;
+        restart();
+    }
+
+    /**
+     * Returns the target rate in steps per second.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the target rate in steps per second. The schedule restarts.
+     */
+    public void setRate(long rate) {
+        this.rate = rate;
+        restart();
+    }
+
+    /**
+     * Returns the rate that was achieved lately, in steps per second.
+     */
+    public double getAchievedRate() {
+        return achievedRate;
+    }
+
+    /**
+     * Restarts the schedule (and the rate measurement) from now, for example
+     * after the loop was paused.
+     */
+    public void restart() {
+        scheduleStart = System.nanoTime();
+        scheduleSteps = 0;
+        windowStart = scheduleStart;
+        windowSteps = 0;
+    }
+
+    /**
+     * Called after the given number of steps were made. Parks the current thread
+     * if the steps were made ahead of the schedule.
+     */
+    public void pace(int steps) {
+        scheduleSteps += steps;
+        windowSteps += steps;
+
+        long now = System.nanoTime();
+        long due = scheduleStart + (long)((double)scheduleSteps * NANOS_PER_SECOND / rate);
+
+        if (due - now >= MIN_PARK_NANOS) {
+            // parkNanos may return early
+            while (due - now > 0) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+        }
+        else if (now - due > MAX_LAG_NANOS) {
+            scheduleStart = now;
+            scheduleSteps = 0;
+        }
+
+        if (now - windowStart >= RATE_WINDOW_NANOS) {
+            achievedRate = (double)windowSteps * NANOS_PER_SECOND / (now - windowStart);
+            windowStart = now;
+            windowSteps = 0;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * The argument of a run-until script command: the condition that stops the run
+ * and the maximum number of steps (0 for no limit).
+ */
+public class RunCondition {
+
+    // The condition that stops the run
+    private ScriptCondition condition;
+
+    // The maximum number of steps, or 0 for no limit
+    private int maxSteps;
+
+    /**
+     * Constructs a new RunCondition with the given condition and maximum number of steps.
+     */
+    public RunCondition(ScriptCondition condition, int maxSteps) {
+        this.condition = condition;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Returns the condition that stops the run.
+     */
+    public ScriptCondition getCondition() {
+        return condition;
+    }
+
+    /**
+     * Returns the maximum number of steps, or 0 for no limit.
+     */
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+}
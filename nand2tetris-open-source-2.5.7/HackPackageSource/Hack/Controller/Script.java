@@ -216,6 +216,12 @@ public class Script {
         case ScriptTokenizer.KW_WHILE:
             command = createWhileCommand();
             break;
+        case ScriptTokenizer.KW_RUN_UNTIL:
+            command = createRunUntilCommand();
+            break;
+        case ScriptTokenizer.KW_PACE:
+            command = createPaceCommand();
+            break;
         }
 
         return command;
@@ -412,6 +418,61 @@ public class Script {
         return new Command(Command.WHILE_COMMAND, condition);
     }
 
+    // creates and returns a controller run-until command:
+    // run-until <condition> [max <steps>]
+    // Holds a RunCondition object as an argument.
+    private Command createRunUntilCommand()
+     throws ScriptException, ControllerException {
+
+        input.advance();
+        ScriptCondition condition = null;
+        try {
+            condition = new ScriptCondition(input);
+        } catch (ScriptException se) {
+            scriptError(se.getMessage());
+        }
+
+        int maxSteps = 0;
+        if (input.getTokenType() == ScriptTokenizer.TYPE_IDENTIFIER &&
+            input.getIdentifier().equals("max")) {
+            input.advance();
+            if (input.getTokenType() != ScriptTokenizer.TYPE_INT_CONST)
+                scriptError("Missing number of steps after max");
+            maxSteps = input.getIntValue();
+            if (maxSteps < 1)
+                scriptError("Illegal number of steps");
+            input.advance();
+        }
+
+        checkTerminator();
+
+        return new Command(Command.RUN_UNTIL_COMMAND, new RunCondition(condition, maxSteps));
+    }
+
+    // creates and returns a controller pace command.
+    // Holds the rate in steps per second (Long) as an argument: the given rate,
+    // HackController.HACK_CLOCK_RATE for 'hack' or 0 for 'off'.
+    private Command createPaceCommand()
+     throws ControllerException, ScriptException {
+        input.advance();
+        String[] args = readArgs(1);
+
+        long rate = 0;
+        if (args[0].equals("hack"))
+            rate = HackController.HACK_CLOCK_RATE;
+        else if (!args[0].equals("off")) {
+            try {
+                rate = Long.parseLong(args[0]);
+            } catch (NumberFormatException nfe) {
+                scriptError("Illegal rate: " + args[0]);
+            }
+            if (rate < 1)
+                scriptError("Illegal rate: " + args[0]);
+        }
+
+        return new Command(Command.PACE_COMMAND, new Long(rate));
+    }
+
     // Reads string arguments from the given input and returns them as a string array.
     // If the given maxArgs count is exceeded, an exception is thrown.
     private String[] readArgs(int maxArgs)
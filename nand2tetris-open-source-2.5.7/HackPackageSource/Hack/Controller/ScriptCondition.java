@@ -113,6 +113,45 @@ public class ScriptCondition {
         input.advance();
     }
 
+    /**
+     * Returns the first argument of the condition (a variable name or a constant).
+     */
+    public String getArg0() {
+        return arg0;
+    }
+
+    /**
+     * Returns the second argument of the condition (a variable name or a constant).
+     */
+    public String getArg1() {
+        return arg1;
+    }
+
+    /**
+     * Returns the code of the comparison operator.
+     */
+    public byte getComparisonOperator() {
+        return comparisonOperator;
+    }
+
+    /**
+     * Returns the result of the comparison operator on the given numeric values.
+     */
+    public boolean compare(long num0, long num1) {
+        boolean result = false;
+
+        switch (comparisonOperator) {
+            case EQUAL: result = (num0 == num1); break;
+            case GREATER: result = (num0 > num1); break;
+            case LESS: result = (num0 < num1); break;
+            case GREATER_EQUAL: result = (num0 >= num1); break;
+            case LESS_EQUAL: result = (num0 <= num1); break;
+            case NOT_EQUAL: result = (num0 != num1); break;
+        }
+
+        return result;
+    }
+
     /**
      * Returns the result of the condition for the given simulator.
      */
@@ -152,16 +191,8 @@ public class ScriptCondition {
         }
 
         // if both values are integers, compare them using integer comparison.
-        if (isNum0 && isNum1) {
-            switch (comparisonOperator) {
-                case EQUAL: result = (num0 == num1); break;
-                case GREATER: result = (num0 > num1); break;
-                case LESS: result = (num0 < num1); break;
-                case GREATER_EQUAL: result = (num0 >= num1); break;
-                case LESS_EQUAL: result = (num0 <= num1); break;
-                case NOT_EQUAL: result = (num0 != num1); break;
-            }
-        }
+        if (isNum0 && isNum1)
+            result = compare(num0, num1);
         else if (!isNum0 && !isNum1) { // if = or <>, compare using string comparison
             switch (comparisonOperator) {
                 case EQUAL: result = val0.equals(val1); break;
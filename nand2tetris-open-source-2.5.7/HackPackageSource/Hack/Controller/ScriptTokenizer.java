@@ -101,6 +101,16 @@ public class ScriptTokenizer {
      */
     public static final int KW_CLEAR_ECHO	         = 10;
 
+    /**
+     * run-until script keyword
+     */
+    public static final int KW_RUN_UNTIL	         = 11;
+
+    /**
+     * pace script keyword
+     */
+    public static final int KW_PACE	                 = 12;
+
     // The parser
     private StreamTokenizer parser;
 
@@ -278,6 +288,8 @@ public class ScriptTokenizer {
         keywords.put("clear-breakpoints",new Integer(KW_CLEAR_BREAKPOINTS));
         keywords.put("repeat",new Integer(KW_REPEAT));
         keywords.put("while",new Integer(KW_WHILE));
+        keywords.put("run-until",new Integer(KW_RUN_UNTIL));
+        keywords.put("pace",new Integer(KW_PACE));
     }
 
     // Initializes the symbols hashtable
@@ -234,7 +234,7 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
 
     // Checks the given destination file name and throws a HackTranslatorException
     // if not legal.
-    private void checkDestinationFile(String fileName) throws HackTranslatorException {
+    protected void checkDestinationFile(String fileName) throws HackTranslatorException {
         if (!fileName.endsWith("." + getDestinationExtension()))
             throw new HackTranslatorException(fileName + " is not a ." + getDestinationExtension()
                                               + " file");
@@ -578,7 +578,7 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
     }
 
     // Saves the program into the given dest file name.
-    private void save() throws HackTranslatorException {
+    protected void save() throws HackTranslatorException {
         try {
             writer = new PrintWriter(new FileWriter(destFileName));
             dumpToFile();
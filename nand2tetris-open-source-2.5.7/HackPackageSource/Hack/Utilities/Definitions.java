@@ -118,6 +118,17 @@ public class Definitions {
      */
     public static final int KEYBOARD_ADDRESS = 24576;
 
+    /**
+     * The address of the memory-mapped timer of the CPU emulator (see TimerDevice)
+     */
+    public static final int TIMER_ADDRESS = 24577;
+
+    /**
+     * The address of the memory-mapped debug console of the CPU emulator
+     * (see ConsoleDevice)
+     */
+    public static final int CONSOLE_ADDRESS = 24580;
+
     /**
      * The start address of the temp memory segment
      */
@@ -0,0 +1,143 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Utilities;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Memory-mapped machine state files, used by the simulators to save a complete
+ * machine state and to load it back later.
+ * A state file starts with a header: a magic number that identifies the
+ * simulator that wrote it and a format version. The rest of the file is written
+ * and read by the simulator through the mapped buffer.
+ */
+public class StateFile {
+
+    // The size of the header in bytes
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Creates a state file with the given name, the given magic number and version
+     * and room for the given number of state bytes after the header.
+     * Returns a buffer that is mapped to the file and positioned after the header.
+     * Throws IOException if the file can't be created.
+     */
+    public static ByteBuffer create(String fileName, int magic, int version, int size)
+     throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            file.setLength(HEADER_SIZE + size);
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                      HEADER_SIZE + size);
+            buffer.putInt(magic);
+            buffer.putInt(version);
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens the state file with the given name and checks that it has the given
+     * magic number and version.
+     * Returns a read-only buffer that is mapped to the file and positioned after the header.
+     * Throws IOException if the file can't be read or is not a state file of
+     * the given magic number and version.
+     */
+    public static ByteBuffer open(String fileName, int magic, int version)
+     throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                      file.length());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != magic)
+                throw new IOException(fileName + " is not a state file of this simulator");
+            if (buffer.getInt() != version)
+                throw new IOException(fileName + " has an unsupported state file version");
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes that putString() writes for the given string.
+     */
+    public static int getStringSize(String s) {
+        return 4 + 2 * s.length();
+    }
+
+    /**
+     * Writes the given string into the given buffer.
+     */
+    public static void putString(ByteBuffer buffer, String s) {
+        buffer.putInt(s.length());
+        for (int i = 0; i < s.length(); i++)
+            buffer.putChar(s.charAt(i));
+    }
+
+    /**
+     * Reads a string that was written by putString() from the given buffer.
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 2)
+            throw new BufferUnderflowException();
+
+        char[] chars = new char[length];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = buffer.getChar();
+        return new String(chars);
+    }
+
+    /**
+     * Writes the given int array (with its length) into the given buffer.
+     */
+    public static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.putInt(values.length);
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    /**
+     * Reads an int array that was written by putInts() from the given buffer.
+     */
+    public static int[] getInts(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 4)
+            throw new BufferUnderflowException();
+
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return values;
+    }
+
+    /**
+     * Reads an int array that was written by putInts() from the given buffer into
+     * the given array. Throws IOException if the lengths don't match.
+     */
+    public static void getInts(ByteBuffer buffer, int[] values) throws IOException {
+        if (buffer.getInt() != values.length)
+            throw new IOException("The state file doesn't match the memory size");
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+}
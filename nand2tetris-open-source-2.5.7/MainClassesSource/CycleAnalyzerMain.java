@@ -0,0 +1,57 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.CPUEmulator.*;
+import Hack.Controller.*;
+
+/**
+ * The command line static cycle analyzer of Hack programs (see
+ * Hack.CPUEmulator.CycleAnalyzer). Writes the report into the given file,
+ * or to the standard output.
+ */
+public class CycleAnalyzerMain {
+
+  /**
+   * The command line cycle analyzer.
+   */
+  public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java CycleAnalyzerMain <program> [<report file>]");
+            System.exit(-1);
+        }
+
+        try {
+            CycleAnalyzer analyzer = new CycleAnalyzer(args[0]);
+            PrintWriter writer = new PrintWriter(args.length > 1 ?
+                                                 (Writer)new FileWriter(args[1]) :
+                                                 new OutputStreamWriter(System.out));
+            analyzer.writeReport(writer);
+            writer.close();
+            if (writer.checkError()) {
+                System.err.println("Could not write the report");
+                System.exit(-1);
+            }
+        } catch (ProgramException pe) {
+            System.err.println(pe.getMessage());
+            System.exit(-1);
+        } catch (IOException ioe) {
+            System.err.println("Could not write " + args[1]);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import Hack.Assembler.*;
+import Hack.Translators.*;
+import Hack.Utilities.*;
+
+/**
+ * The command line assembler of binary program images: assembles the given
+ * .asm file and saves it into the given .hackb file (see
+ * Hack.Assembler.HackBinaryFile), or into a .hackb file with the name of
+ * the source.
+ */
+public class HackBinaryAssemblerMain {
+
+  /**
+   * The command line binary assembler.
+   */
+  public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java HackBinaryAssemblerMain <file.asm> [<file." +
+                               HackBinaryFile.EXTENSION + ">]");
+            System.exit(-1);
+        }
+
+        String destFileName = args.length > 1 ? args[1] :
+                              args[0].replaceFirst("\\.asm$", "") + "." + HackBinaryFile.EXTENSION;
+
+        try {
+            HackAssembler assembler = new HackAssembler(args[0], Definitions.ROM_SIZE,
+                                                        HackAssemblerTranslator.NOP, false);
+            assembler.saveBinary(destFileName);
+        } catch (HackTranslatorException hte) {
+            System.err.println(hte.getMessage());
+            System.exit(-1);
+        }
+    }
+}
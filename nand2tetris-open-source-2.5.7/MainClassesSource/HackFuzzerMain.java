@@ -0,0 +1,74 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.CPUEmulator.*;
+import Hack.Controller.*;
+
+/**
+ * The command line Hack program fuzzer (see Hack.CPUEmulator.Fuzzer).
+ * Runs a program many times on mutated values of a range of RAM addresses
+ * (and mutated key sequences), and writes a test script that reproduces every
+ * distinct error into the directory of the program.
+ */
+public class HackFuzzerMain {
+
+  /**
+   * The command line Hack program fuzzer.
+   */
+  public static void main(String[] args) {
+        if (args.length < 5 || args.length > 7) {
+            System.err.println("Usage: java HackFuzzerMain <program> <first input address> " +
+                               "<last input address> <max time> <executions> " +
+                               "[<keys> [<threads>]]");
+            System.exit(-1);
+        }
+
+        try {
+            int keys = (args.length > 5 ? Integer.parseInt(args[5]) : 0);
+            int threads = (args.length > 6 ? Integer.parseInt(args[6]) :
+                           Runtime.getRuntime().availableProcessors());
+            Fuzzer fuzzer = new Fuzzer(args[0], Integer.parseInt(args[1]),
+                                       Integer.parseInt(args[2]) + 1, keys,
+                                       Long.parseLong(args[3]), System.currentTimeMillis());
+
+            String directory = new File(args[0]).getAbsoluteFile().getParent();
+            long start = System.currentTimeMillis();
+            fuzzer.run(Long.parseLong(args[4]), threads, directory);
+            long time = Math.max(1, System.currentTimeMillis() - start);
+
+            System.out.println(fuzzer.getExecutions() + " executions in " + time + " ms (" +
+                               (fuzzer.getExecutions() * 1000 / time) + " per second)");
+            System.out.println("Coverage: " + fuzzer.getCoverage() + ", corpus: " +
+                               fuzzer.getCorpusSize());
+
+            Fuzzer.Crash[] crashes = fuzzer.getCrashes();
+            for (int i = 0; i < crashes.length; i++)
+                System.out.println(crashes[i].getScriptFileName() + ": " + crashes[i].getMessage());
+            if (crashes.length == 0)
+                System.out.println("No errors were found");
+        } catch (NumberFormatException nfe) {
+            System.err.println("Illegal number: " + nfe.getMessage());
+            System.exit(-1);
+        } catch (ProgramException pe) {
+            System.err.println(pe.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException ie) {
+            System.exit(-1);
+        }
+    }
+}
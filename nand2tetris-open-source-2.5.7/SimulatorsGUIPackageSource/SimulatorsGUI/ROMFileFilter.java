@@ -35,7 +35,8 @@ public class ROMFileFilter extends FileFilter {
 
         String extension = getExtension(f);
         if (extension != null) {
-            if (extension.equals("hack") || extension.equals("asm") )
+            if (extension.equals("hack") || extension.equals("hackb") ||
+                extension.equals("asm"))
                     return true;
             else {
                 return false;
@@ -64,6 +65,6 @@ public class ROMFileFilter extends FileFilter {
      * The description of this filter
      */
     public String getDescription() {
-        return "HACK / ASM Files";
+        return "HACK / HACKB / ASM Files";
     }
 }
@@ -25,18 +25,29 @@ import Hack.Utilities.*;
 
 /**
  * A Screen GUI component.
+ * Changes to the screen words are not painted one by one: the component keeps
+ * the bounding rectangle of the words that changed since the last frame, and its
+ * timer hands that rectangle to Swing to be repainted (at most 60 times per
+ * second while animating). Painting only draws the words inside the clip.
  */
 public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener {
 
     // the clock intervals for animation
-    private static final int ANIMATION_CLOCK_INTERVALS = 50;
+    private static final int ANIMATION_CLOCK_INTERVALS = 1000 / 60;
     private static final int STATIC_CLOCK_INTERVALS = 500;
 
+    // The number of words in a screen row
+    private static final int WORDS_PER_ROW = Definitions.SCREEN_WIDTH / Definitions.BITS_PER_WORD;
+
     // The screen memory array
     private int[] data;
 
-    // redraw flag
-    private boolean redraw = true;
+    // The rows and word columns (including) of the rectangle that changed since
+    // the last frame. No change if dirtyTop > dirtyBottom.
+    private int dirtyTop, dirtyBottom, dirtyLeft, dirtyRight;
+
+    // The lock of the dirty rectangle
+    private Object dirtyLock = new Object();
 
     // screen location at a given index
     private int[] x, y;
@@ -76,6 +87,8 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
             }
         }
 
+        setAllDirty();
+
         timer = new Timer(STATIC_CLOCK_INTERVALS, this);
         timer.start();
     }
@@ -85,8 +98,10 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * (Assumes legal index)
      */
     public void setValueAt(int index, int value) {
-        data[index] = value;
-        redraw = true;
+        if (data[index] != value) {
+            data[index] = value;
+            setDirty(index);
+        }
     }
 
     /**
@@ -95,7 +110,7 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      */
     public void setContents(int[] values) {
         data = values;
-        redraw = true;
+        setAllDirty();
     }
 
     /**
@@ -105,17 +120,14 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
         for (int i = 0; i < data.length; i++)
             data[i] = 0;
 
-        redraw = true;
+        setAllDirty();
     }
 
     /**
      * Refreshes this component.
      */
     public void refresh() {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        repaintDirty();
     }
 
     /**
@@ -136,9 +148,54 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * Called at constant intervals
      */
     public void actionPerformed(ActionEvent e) {
-        if (redraw) {
-            repaint();
-            redraw = false;
+        repaintDirty();
+    }
+
+    // Adds the word at the given index to the dirty rectangle.
+    private void setDirty(int index) {
+        int row = index / WORDS_PER_ROW;
+        int column = index % WORDS_PER_ROW;
+
+        synchronized (dirtyLock) {
+            if (row < dirtyTop)
+                dirtyTop = row;
+            if (row > dirtyBottom)
+                dirtyBottom = row;
+            if (column < dirtyLeft)
+                dirtyLeft = column;
+            if (column > dirtyRight)
+                dirtyRight = column;
+        }
+    }
+
+    // Sets the dirty rectangle to the whole screen.
+    private void setAllDirty() {
+        synchronized (dirtyLock) {
+            dirtyTop = 0;
+            dirtyBottom = Definitions.SCREEN_HEIGHT - 1;
+            dirtyLeft = 0;
+            dirtyRight = WORDS_PER_ROW - 1;
+        }
+    }
+
+    // Requests a repaint of the dirty rectangle (if any) and clears it.
+    private void repaintDirty() {
+        int top, bottom, left, right;
+        synchronized (dirtyLock) {
+            top = dirtyTop;
+            bottom = dirtyBottom;
+            left = dirtyLeft;
+            right = dirtyRight;
+            dirtyTop = Integer.MAX_VALUE;
+            dirtyBottom = -1;
+            dirtyLeft = Integer.MAX_VALUE;
+            dirtyRight = -1;
+        }
+
+        if (top <= bottom) {
+            int index = top * WORDS_PER_ROW + left;
+            repaint(x[index], y[index], (right - left + 1) * Definitions.BITS_PER_WORD,
+                    bottom - top + 1);
         }
     }
 
@@ -149,18 +206,40 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
 
         super.paintComponent(g);
 
-        for (int i = 0; i < Definitions.SCREEN_SIZE; i++) {
-            if (data[i] != 0) {
-                if (data[i] == 0xffff) // draw a full line
-                    g.drawLine(x[i], y[i], x[i] + 15, y[i]);
-                else {
-                    int value = data[i];
-                    for (int j = 0; j < 16; j++) {
-                        if ((value & 0x1) == 1)
-                            // since there's no drawPixel, uses drawLine to draw one pixel
-                            g.drawLine(x[i] + j, y[i], x[i] + j, y[i]);
-
-                        value = (int)(value >> 1);
+        // the rows and word columns inside the clip
+        int top = 0, bottom = Definitions.SCREEN_HEIGHT - 1;
+        int left = 0, right = WORDS_PER_ROW - 1;
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            top = Math.max(top, clip.y - y[0]);
+            bottom = Math.min(bottom, clip.y + clip.height - 1 - y[0]);
+            left = Math.max(left, (clip.x - x[0]) / Definitions.BITS_PER_WORD);
+            right = Math.min(right, (clip.x + clip.width - 1 - x[0]) / Definitions.BITS_PER_WORD);
+        }
+
+        for (int row = top; row <= bottom; row++) {
+            for (int i = row * WORDS_PER_ROW + left; i <= row * WORDS_PER_ROW + right; i++) {
+                if (data[i] != 0) {
+                    if (data[i] == 0xffff) // draw a full line
+                        g.drawLine(x[i], y[i], x[i] + 15, y[i]);
+                    else {
+                        // draws every run of set bits as one line
+                        int value = data[i];
+                        int j = 0;
+                        while (j < 16) {
+                            if ((value & 0x1) == 1) {
+                                int start = j;
+                                while (j < 16 && (value & 0x1) == 1) {
+                                    value = (int)(value >> 1);
+                                    j++;
+                                }
+                                g.drawLine(x[i] + start, y[i], x[i] + j - 1, y[i]);
+                            }
+                            else {
+                                value = (int)(value >> 1);
+                                j++;
+                            }
+                        }
                     }
                 }
             }
@@ -59,6 +59,9 @@ public class ALU extends ValueComputerPart {
     // if true, negates the output after the operation.
     private boolean negateOutput;
 
+    // the extended function (see InstructionDecoder) that replaces the above
+    // control bits, or -1 if none
+    private int extendedFunction = -1;
 
     /**
      * Constructs a new ALU with the given ALU GUI.
@@ -91,7 +94,35 @@ public class ALU extends ValueComputerPart {
         this.negate1 = negate1;
         this.ADDorAND = ADDorAND;
         this.negateOutput = negateOutput;
+        extendedFunction = -1;
 
+        showCommand(description);
+    }
+
+    /**
+     * Sets the ALU's command to the given extended function (see InstructionDecoder)
+     * with the given description.
+     */
+    public synchronized void setExtendedCommand(String description, int function) {
+        commandDescription = description;
+        extendedFunction = function;
+
+        showCommand(description);
+    }
+
+    /**
+     * Returns the ALU's command as a comp function (see InstructionDecoder).
+     */
+    public synchronized int getControl() {
+        if (extendedFunction >= 0)
+            return InstructionDecoder.COMP_EXTENDED | extendedFunction;
+
+        return (zero0 ? 0x20 : 0) | (negate0 ? 0x10 : 0) | (zero1 ? 0x08 : 0) |
+               (negate1 ? 0x04 : 0) | (ADDorAND ? 0x02 : 0) | (negateOutput ? 0x01 : 0);
+    }
+
+    // Displays the given command description.
+    private void showCommand(String description) {
         if (displayChanges)
             gui.setCommand(description);
 
@@ -119,8 +150,12 @@ public class ALU extends ValueComputerPart {
             gui.hideBodyFlash();
         }
 
-        int result = Definitions.computeALU(input0, input1, zero0, negate0, zero1,
-                                              negate1, ADDorAND, negateOutput);
+        int result;
+        if (extendedFunction >= 0)
+            result = InstructionDecoder.computeExtended(extendedFunction, input0, input1);
+        else
+            result = Definitions.computeALU(input0, input1, zero0, negate0, zero1,
+                                            negate1, ADDorAND, negateOutput);
 
         setValueAt(2, result, false);
     }
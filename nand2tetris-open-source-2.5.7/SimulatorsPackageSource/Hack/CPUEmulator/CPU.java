@@ -17,6 +17,9 @@
 
 package Hack.CPUEmulator;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Utilities.*;
@@ -30,6 +33,14 @@ import Hack.Assembler.*;
  */
 public class CPU
 {
+    // The number of jump targets at which the state of the program is kept
+    // for finding idle loops (a power of 2)
+    private static final int LOOP_TARGETS = 64;
+
+    // The maximal number of blocks in an idle loop whose executions are
+    // added to the profile when its iterations are skipped
+    private static final int MAX_LOOP_BLOCKS = 256;
+
     // The address and program counter registers.
     protected PointerAddressRegisterAdapter A, PC;
 
@@ -54,6 +65,69 @@ public class CPU
     // An assembler transltor
     protected HackAssemblerTranslator assemblerTranslator;
 
+    // True if the program is known to be in an idle loop (see isIdle())
+    protected boolean idle;
+
+    // The time at which the program was found to be in its idle loop, and the
+    // number of instructions in every iteration of the loop
+    protected long idleTime;
+    protected long idlePeriod;
+
+    // A hash of the writes of the program to the RAM: the sum of writeHash()
+    // of the address and the change of the value of every write. The hash is
+    // the same at two times if the program didn't change the RAM between
+    // them, or changed it back.
+    protected long ramHash;
+
+    // The number of writes to the RAM (see RAM.getWriteCount()) that were
+    // made by the program or are already known. Other writes were made from
+    // outside the program.
+    protected long ramWriteCount;
+
+    // The values of A, D & PC after the last instruction
+    private int lastA, lastD, lastPC;
+
+    // The state of the program at the last jump to each of LOOP_TARGETS jump
+    // targets (by the low bits of the target): the target (or -1 if none),
+    // A, D, the RAM hash and the time.
+    private int[] targetPCs = new int[LOOP_TARGETS];
+    private int[] targetAs = new int[LOOP_TARGETS];
+    private int[] targetDs = new int[LOOP_TARGETS];
+    private long[] targetHashes = new long[LOOP_TARGETS];
+    private long[] targetTimes = new long[LOOP_TARGETS];
+
+    // The state of the program at a jump that repeated the state of an earlier
+    // jump, which is verified to repeat again after the same number of
+    // instructions: the target (or -1 if none), A, D, the ALU's command,
+    // the time, the number of instructions since the earlier jump and the RAM.
+    private int loopStart;
+    private int loopA, loopD, loopControl;
+    private long loopTime, loopPeriod;
+    private int[] loopRAM;
+
+    // The blocks that were executed (see addLoopBlock()) since the loop that
+    // is verified started, or in every iteration of the idle loop: their
+    // first and last addresses and the address that followed them
+    protected int[] loopBlockStarts = new int[MAX_LOOP_BLOCKS];
+    protected int[] loopBlockEnds = new int[MAX_LOOP_BLOCKS];
+    protected int[] loopBlockTargets = new int[MAX_LOOP_BLOCKS];
+
+    // The number of blocks that were executed since the loop that is verified
+    // started (-1 if no loop is verified, MAX_LOOP_BLOCKS + 1 if too many)
+    protected int loopBlocks;
+
+    // The number of blocks in every iteration of the idle loop (-1 if too many)
+    protected int idleBlocks;
+
+    // The profiler that counts the executed instructions (null if not profiling)
+    protected Profiler profiler;
+
+    // A bitmap of the watched program addresses (null if none are watched)
+    protected int[] watchedPCs;
+
+    // The execution history (null if not recorded)
+    protected History history;
+
     /**
      * Constructs a new cpu with the given ROM, RAM, A, D, PC & ALU.
      */
@@ -68,6 +142,7 @@ public class CPU
         this.bus = bus;
 
         A.setUpdatePointer(false);
+        clearLoops();
 
         assemblerTranslator = HackAssemblerTranslator.getInstance();
     }
@@ -128,6 +203,45 @@ public class CPU
         return time;
     }
 
+    /**
+     * Sets the profiler that counts the executed instructions from now on
+     * (null to stop profiling).
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Returns the profiler (null if not profiling).
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets the execution history that records the executed instructions from
+     * now on (null to stop recording).
+     */
+    public void setHistory(History history) {
+        this.history = history;
+    }
+
+    /**
+     * Returns the execution history (null if not recorded).
+     */
+    public History getHistory() {
+        return history;
+    }
+
+    /**
+     * Sets the bitmap of the watched program addresses (in the format of
+     * RAM.setWatchedAddresses()). executeInstructions() stops after an
+     * instruction that leads to a watched address. A null bitmap watches nothing.
+     */
+    public void setWatchedPCs(int[] watchedPCs) {
+        this.watchedPCs = watchedPCs;
+    }
+
     /**
      * Restarts the program from the beginning.
      */
@@ -145,6 +259,114 @@ public class CPU
         rom.hideSelect();
         rom.hideHighlight();
         time = 0;
+        clearLoops();
+
+        if (history != null)
+            history.reset();
+    }
+
+    /**
+     * Restores the given snapshot of the machine: the RAM contents and the A, D
+     * and PC registers. The time is set back to 0 and the devices of the RAM are
+     * reset, so the following run is the same as a run of a freshly loaded
+     * program with this state.
+     */
+    public void restoreSnapshot(int[] ram, int a, int d, int pc) {
+        M.restore(ram);
+        getA().store(a);
+        getD().store(d);
+        getPC().store(pc);
+        time = 0;
+        clearLoops();
+
+        if (history != null)
+            history.reset();
+    }
+
+    /**
+     * Returns the number of bytes that saveState() writes.
+     */
+    public int getStateSize() {
+        return 4 * 4 + 8 + (4 + 4 * M.getSize()) + (4 + 4 * rom.getSize());
+    }
+
+    /**
+     * Writes the state of the cpu (A, D, PC, the last command of the ALU,
+     * the time, the RAM and the ROM) into the given buffer.
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(getA().get());
+        buffer.putInt(getD().get());
+        buffer.putInt(getPC().get());
+        buffer.putInt(getALUControl());
+        buffer.putLong(time);
+        StateFile.putInts(buffer, M.getContents());
+        StateFile.putInts(buffer, rom.getContents());
+    }
+
+    /**
+     * Reads a state of the cpu that was written by saveState() from the given buffer.
+     * Throws IOException if the state doesn't match the sizes of the RAM and ROM
+     * or its ALU command is illegal.
+     */
+    public void loadState(ByteBuffer buffer) throws IOException {
+        int a = buffer.getInt();
+        int d = buffer.getInt();
+        int pc = buffer.getInt();
+        int control = buffer.getInt();
+        long newTime = buffer.getLong();
+        if ((control & ~0x7f) != 0 || InstructionDecoder.getCompText(control) == null)
+            throw new IOException("The state file has an illegal ALU command");
+
+        int[] ram = new int[M.getSize()];
+        int[] program = new int[rom.getSize()];
+        StateFile.getInts(buffer, ram);
+        StateFile.getInts(buffer, program);
+
+        M.setContents(ram, 0);
+
+        // the same program keeps its decoded image, which may be shared
+        if (!Arrays.equals(program, rom.getContents()))
+            rom.setContents(program, 0);
+
+        getA().store(a);
+        getD().store(d);
+        getPC().store(pc);
+        setALUControl(control);
+        time = newTime;
+        clearLoops();
+
+        if (history != null)
+            history.reset();
+    }
+
+    /**
+     * Returns true if the program is in an idle loop: the program jumped to
+     * the same address twice with the same A, D, ALU command and RAM, and
+     * wrote no device (see RAM.getDevicePages()) in between. Such a loop
+     * repeats forever and changes nothing but the time, until the RAM or the
+     * registers are changed from outside the program (for example by the
+     * keyboard).
+     */
+    public boolean isIdle() {
+        return idle && M.getWriteCount() == ramWriteCount;
+    }
+
+    /**
+     * Returns the time at which the program was found to be in its current
+     * idle loop (see isIdle()): the time after the first iteration that
+     * repeated the one before it.
+     */
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    /**
+     * Returns the number of instructions in every iteration of the current
+     * idle loop (see isIdle()).
+     */
+    public long getIdlePeriod() {
+        return idlePeriod;
     }
 
     /**
@@ -154,19 +376,43 @@ public class CPU
 	 * address or jump when A is an illegal address).
      */
     public void executeInstruction() throws ProgramException {
-        int instruction = rom.getValueAt(PC.get());
+        int pc = PC.get();
+        long op = rom.getDecodedValueAt(pc);
         boolean pcChanged = false;
 
-        if ((instruction & 0x40000000) == 0x40000000)
-            bus.send(rom, PC.get(), A, 0);
-        else if ((instruction & 0xe000) == 0xe000) {
-            computeExp(instruction);
-            setDestination(instruction);
-            pcChanged = checkJump(instruction);
+        if (M.getWriteCount() != ramWriteCount || pc != lastPC || A.get() != lastA ||
+            D.get() != lastD)
+            clearLoops();
+
+        // the state that the history needs to undo the instruction
+        int oldA = 0, oldD = 0, address = -1, oldValue = 0;
+        if (history != null) {
+            history.beforeExecution();
+            oldA = A.get();
+            oldD = D.get();
+            if (InstructionDecoder.getType(op) == InstructionDecoder.TYPE_C &&
+                ((int)op & InstructionDecoder.DEST_M) != 0 && oldA >= 0 && oldA < M.getSize()) {
+                address = oldA;
+                oldValue = M.getValueAt(address);
+            }
+        }
+
+        switch (InstructionDecoder.getType(op)) {
+            case InstructionDecoder.TYPE_A:
+                bus.send(rom, PC.get(), A, 0);
+                break;
+            case InstructionDecoder.TYPE_C:
+                computeExp(op);
+                M.setTime(time);
+                setDestination(op);
+                pcChanged = checkJump(op);
+                if (pcChanged && PC.get() <= pc)
+                    checkLoop(PC.get(), A.get(), D.get(), alu.getControl(), ramHash, time + 1);
+                break;
+            case InstructionDecoder.TYPE_ILLEGAL:
+                throw new ProgramException("At line " + PC.get() +
+                                           ": Illegal instruction");
         }
-        else if (instruction != HackAssemblerTranslator.NOP)
-            throw new ProgramException("At line " + PC.get() +
-									   ": Illegal instruction");
 
         if (!pcChanged) {
             int newPC = (int)(PC.get() + 1);
@@ -176,26 +422,187 @@ public class CPU
             PC.setValueAt(0, newPC, true);
         }
 
+        if (profiler != null) {
+            profiler.addExecutions(pc, pc, 1);
+            if (pcChanged)
+                profiler.addJump(pc, PC.get(), 1);
+        }
+
         time++;
+        lastA = A.get();
+        lastD = D.get();
+        lastPC = PC.get();
+
+        if (history != null && history.record(oldA, oldD, pc, address, oldValue))
+            history.takeSnapshot(M.getContents(), A.get(), D.get(), PC.get(), time);
+    }
+
+    /**
+     * Executes the given number of instructions, starting at the current
+     * instruction (ROM at pc).
+     * Stops early after an instruction that writes to a watched RAM address
+     * (see RAM.setWatchedAddresses()) or leads to a watched program address
+     * (see setWatchedPCs()). The number of executed instructions can be told
+     * by the time.
+     * Throws ProgramException if one of the instructions is illegal or
+     * causes an illegal effect.
+     */
+    public void executeInstructions(long count) throws ProgramException {
+        M.clearWatchHit();
+        for (long i = 0; i < count; i++) {
+            executeInstruction();
+            if (M.isWatchHit() || (watchedPCs != null && RAM.isWatched(watchedPCs, PC.get())))
+                break;
+        }
+    }
+
+    /**
+     * Forgets the states of the program that were kept for finding idle loops,
+     * and the idle loop that was found, since the program or its time were
+     * changed from outside the program.
+     */
+    protected void clearLoops() {
+        idle = false;
+        loopStart = -1;
+        loopBlocks = -1;
+        Arrays.fill(targetPCs, -1);
+        ramWriteCount = M.getWriteCount();
+    }
+
+    /**
+     * Called after the program jumped back (to the given target, which is not
+     * after the jump), with the given values of A, D, the ALU's command and the
+     * RAM hash, at the given time (after the jump). Every loop jumps back.
+     * Checks whether the program entered an idle loop (see isIdle()): if the
+     * state of the program at the last jump to the same target was the same,
+     * the loop from that jump is verified to repeat exactly once more.
+     * Returns true if the program is in the idle loop.
+     */
+    protected final boolean checkLoop(int target, int a, int d, int control, long hash,
+                                      long now) {
+        int i = target & (LOOP_TARGETS - 1);
+        if (idle || loopStart >= 0 || (targetPCs[i] == target && targetAs[i] == a &&
+                                       targetDs[i] == d && targetHashes[i] == hash))
+            return checkRepeat(i, target, a, d, control, hash, now);
+
+        setTarget(i, target, a, d, hash, now);
+        return false;
+    }
+
+    // The rare part of checkLoop(), which is kept out of it so that it may be
+    // inlined: the program is idle, a loop is verified, or the state at the
+    // given target index seems to repeat.
+    private boolean checkRepeat(int i, int target, int a, int d, int control, long hash,
+                                long now) {
+        if (idle)
+            return true;
+
+        if (loopStart >= 0 && now - loopTime >= loopPeriod) {
+            if (now - loopTime == loopPeriod && target == loopStart && a == loopA &&
+                d == loopD && control == loopControl && Arrays.equals(M.getContents(), loopRAM)) {
+                idle = true;
+                idleTime = loopTime;
+                idlePeriod = loopPeriod;
+                idleBlocks = (loopBlocks <= MAX_LOOP_BLOCKS ? loopBlocks : -1);
+                loopStart = -1;
+                loopBlocks = -1;
+                return true;
+            }
+
+            loopStart = -1;
+            loopBlocks = -1;
+        }
+
+        if (loopStart < 0 && targetPCs[i] == target && targetAs[i] == a && targetDs[i] == d &&
+            targetHashes[i] == hash) {
+            // the state seems to repeat: checked once more against a copy of the RAM
+            int[] ram = M.getContents();
+            if (loopRAM == null || loopRAM.length != ram.length)
+                loopRAM = new int[ram.length];
+            System.arraycopy(ram, 0, loopRAM, 0, ram.length);
+
+            loopStart = target;
+            loopA = a;
+            loopD = d;
+            loopControl = control;
+            loopTime = now;
+            loopPeriod = now - targetTimes[i];
+            loopBlocks = 0;
+        }
+
+        setTarget(i, target, a, d, hash, now);
+        return false;
+    }
+
+    // Keeps the given state of the program at the jump target of the given index.
+    private void setTarget(int i, int target, int a, int d, long hash, long now) {
+        targetPCs[i] = target;
+        targetAs[i] = a;
+        targetDs[i] = d;
+        targetHashes[i] = hash;
+        targetTimes[i] = now;
+    }
+
+    /**
+     * Called while a loop is verified (loopBlocks >= 0), after the block from
+     * start to end (including) was executed and was followed by the given
+     * address. Records the block, so that its executions can be added to the
+     * profile when the iterations of the loop are skipped.
+     */
+    protected void addLoopBlock(int start, int end, int next) {
+        if (loopBlocks < MAX_LOOP_BLOCKS) {
+            loopBlockStarts[loopBlocks] = start;
+            loopBlockEnds[loopBlocks] = end;
+            loopBlockTargets[loopBlocks] = next;
+            loopBlocks++;
+        }
+        else
+            loopBlocks = MAX_LOOP_BLOCKS + 1;
+    }
+
+    /**
+     * Returns the hash of the given change of the value at the given address,
+     * for the hash of the writes to the RAM.
+     */
+    protected static long writeHash(int address, int change) {
+        return change * ((address * 0x9e3779b97f4a7c15L) | 1);
+    }
+
+    // computes the exp part of the given instruction micro-op.
+    /**
+     * Returns the last command of the ALU as a comp function (see InstructionDecoder).
+     */
+    protected int getALUControl() {
+        return alu.getControl();
+    }
+
+    /**
+     * Sets the command of the ALU to the given comp function (see InstructionDecoder).
+     */
+    protected void setALUControl(int control) {
+        setALUCommand(InstructionDecoder.getCompText(control), control);
+    }
+
+    // Sets the command of the ALU to the given comp function, described by the given text.
+    private void setALUCommand(String description, int comp) {
+        if ((comp & InstructionDecoder.COMP_EXTENDED) != 0)
+            alu.setExtendedCommand(description, comp & ~InstructionDecoder.COMP_EXTENDED);
+        else
+            alu.setCommand(description,
+                           (comp & 0x20) != 0, (comp & 0x10) != 0, (comp & 0x08) != 0,
+                           (comp & 0x04) != 0, (comp & 0x02) != 0, (comp & 0x01) != 0);
     }
 
-    // computes the exp part of the given instruction.
     // The result will be at the alu's output.
     // Throws ProgramException if the calculation involves M and A contains
 	// an illegal address.
-    protected void computeExp(int instruction) throws ProgramException {
-        boolean indirect = (instruction & 0x1000) > 0;
-        boolean zd = (instruction & 0x0800) > 0;
-        boolean nd = (instruction & 0x0400) > 0;
-        boolean zm = (instruction & 0x0200) > 0;
-        boolean nm = (instruction & 0x0100) > 0;
-        boolean f = (instruction & 0x0080) > 0;
-        boolean no = (instruction & 0x0040) > 0;
-
-        try {
-            alu.setCommand(assemblerTranslator.getExpByCode((int)(instruction & 0xffc0)),
-                           zd, nd, zm, nm, f, no);
-        } catch (AssemblerException ae) {}
+    protected void computeExp(long op) throws ProgramException {
+        boolean indirect = ((int)op & InstructionDecoder.OPERAND_M) != 0;
+        int comp = InstructionDecoder.getComp(op);
+
+        // an unknown exp leaves the alu's command unchanged
+        if (comp != InstructionDecoder.COMP_KEEP)
+            setALUCommand(InstructionDecoder.getExpText(op), comp);
 
         bus.send(D, 0, alu, 0); // sends D to input0 of the alu
 
@@ -218,13 +625,13 @@ public class CPU
     }
 
     // Sets the registers with the alu's output according to
-	// the given instruction
+	// the given instruction micro-op
     // Throws ProgramException if destination contains M and A contains
 	// an illegal address.
-    protected void setDestination(int instruction) throws ProgramException {
-        boolean destA = (instruction & 0x0020) > 0;
-        boolean destD = (instruction & 0x0010) > 0;
-        boolean destM = (instruction & 0x0008) > 0;
+    protected void setDestination(long op) throws ProgramException {
+        boolean destA = ((int)op & InstructionDecoder.DEST_A) != 0;
+        boolean destD = ((int)op & InstructionDecoder.DEST_D) != 0;
+        boolean destM = ((int)op & InstructionDecoder.DEST_M) != 0;
 
         if (destM) {
 			int address = A.get();
@@ -233,9 +640,16 @@ public class CPU
 										   ": Destination is M but A=" +
 										   address +
 										   " is an illegal memory address.");
+            int oldValue = M.getValueAt(address);
             A.setUpdatePointer(true);
 			bus.send(alu, 2, M, address);
             A.setUpdatePointer(false);
+
+            ramHash += writeHash(address, M.getValueAt(address) - oldValue);
+            ramWriteCount++;
+            Device[] devices = M.getDevicePages();
+            if (devices != null && devices[address >>> RAM.PAGE_SHIFT] != null)
+                clearLoops();
         }
         if (destA)
             bus.send(alu, 2, A, 0);
@@ -244,14 +658,14 @@ public class CPU
     }
 
     // Sets the program counter (if necessary) according to
-	// the given instruction and the alu's output.
+	// the given instruction micro-op and the alu's output.
 	// If the program counter was changed, returns true, otherwise false.
     // Throws ProgramException if the program counter should be changed and A
 	// contains an illegal address.
-    protected boolean checkJump(int instruction) throws ProgramException {
-        boolean jumpNegative = (instruction & 0x0004) > 0;
-        boolean jumpEqual = (instruction & 0x0002) > 0;
-        boolean jumpPositive = (instruction & 0x0001) > 0;
+    protected boolean checkJump(long op) throws ProgramException {
+        boolean jumpNegative = ((int)op & InstructionDecoder.JUMP_NEGATIVE) != 0;
+        boolean jumpEqual = ((int)op & InstructionDecoder.JUMP_ZERO) != 0;
+        boolean jumpPositive = ((int)op & InstructionDecoder.JUMP_POSITIVE) != 0;
         boolean changed = false;
 
         int exp = alu.getValueAt(2);
@@ -17,6 +17,9 @@
 
 package Hack.CPUEmulator;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Events.*;
@@ -35,11 +38,34 @@ import Hack.Utilities.*;
  *
  * Recognizes the following commands:
  * load <HACK file name> - loads the given file into the ROM
- * TickTock - advances the clock by one time unit (executes one instruction)
+ * TickTock [n] - advances the clock by n time units (executes n instructions, 1 by default)
+ * save-state <file name> - saves A, D, PC, the ALU command, time, the RAM and the ROM into
+ *                       the given file
+ * load-state <file name> - loads a state that was saved by save-state
+ * profile <file name> - counts the executed instructions from now on and writes
+ *                       a report of the hottest addresses and loops into the
+ *                       given file when the script ends
+ * history <megabytes> [<interval>] - records the execution history from now on,
+ *                       in about the given memory, with a snapshot every given
+ *                       number of instructions (1048576 by default)
+ * history off - stops recording the execution history
+ * back [n] - goes back n instructions in the history (1 by default)
+ * run-back - goes back until a breakpoint is reached or the history starts
+ * goto-time <time> - goes back or forward to the given time
+ * screenshot <file name> - saves the screen into the given image file (PNG or PBM)
+ * screenshot <file name> <n> - saves the screen every n instructions, into files with the
+ *                       time inserted before the extension
+ * screenshot off - stops saving the screen every n instructions
+ * compare-screen <file name> [<bits>] - fails unless the screen's perceptual hash differs
+ *                       from that of the given image file in at most the given number
+ *                       of bits (0 by default)
+ * keyboard <file name> - replays the timed keys of the given file (see KeyboardReplay)
+ * keyboard off - stops replaying keys
+ *
+ * Also executes the run-until script command, one instruction per step.
  */
 public class CPUEmulator extends HackSimulator implements ComputerPartErrorEventListener {
 
-
     // Variables
     private static final String VAR_A = "A";
     private static final String VAR_D = "D";
@@ -52,6 +78,37 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     private static final String COMMAND_TICKTOCK = "ticktock";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_SAVE_STATE = "save-state";
+    private static final String COMMAND_LOAD_STATE = "load-state";
+    private static final String COMMAND_PROFILE = "profile";
+    private static final String COMMAND_HISTORY = "history";
+    private static final String COMMAND_BACK = "back";
+    private static final String COMMAND_RUN_BACK = "run-back";
+    private static final String COMMAND_GOTO_TIME = "goto-time";
+    private static final String COMMAND_SCREENSHOT = "screenshot";
+    private static final String COMMAND_COMPARE_SCREEN = "compare-screen";
+    private static final String COMMAND_KEYBOARD = "keyboard";
+
+    // The default number of instructions between snapshots of the history
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 1 << 20;
+
+    // The magic number ("HCPU") and version of the state files
+    private static final int STATE_MAGIC = 0x48435055;
+    private static final int STATE_VERSION = 2;
+
+    // The number of instructions between checks for a stop request when no
+    // breakpoints need to be checked and there is no GUI
+    private static final int STEPS_PER_STOP_CHECK = 1 << 20;
+
+    // Codes of the numeric variables, for fast checks of breakpoints and
+    // run-until conditions. The codes of RAM[i] and ROM[i] include i.
+    private static final int CODE_A = 1 << 24;
+    private static final int CODE_D = 2 << 24;
+    private static final int CODE_PC = 3 << 24;
+    private static final int CODE_TIME = 4 << 24;
+    private static final int CODE_RAM = 5 << 24;
+    private static final int CODE_ROM = 6 << 24;
+    private static final int CODE_MASK = 0xff << 24;
 
     // The simulating cpu
     private CPU cpu;
@@ -68,11 +125,30 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     // The current animation mode
     private int animationMode;
 
+    // The breakpoints compiled into watchpoints, or null if one of the
+    // breakpoints can't be compiled.
+    private Watchpoint[] watchpoints;
+
+    // True if one of the watchpoints watches A or D, which may change
+    // with every instruction
+    private boolean registersWatched;
+
+    // The file that the profile report is written into when the script ends
+    private String profileFileName;
+
+    // The capture of the screen (null until the first screen command)
+    private ScreenCapture screenCapture;
+
+    // The replay of keyboard keys (or null)
+    private KeyboardReplay keyboardReplay;
+
     /**
      * Constructs a new CPU Emulator with no GUI component.
+     * The program is executed by a HeadlessCPU.
      */
     public CPUEmulator() {
         RAM ram = new RAM(null, null, null);
+        ram.addExtensionDevices();
         ram.reset();
 
         ROM rom = new ROM(null);
@@ -96,7 +172,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         Bus bus = new Bus(null);
         bus.reset();
 
-        cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        cpu = new HeadlessCPU(ram, rom, A, D, PC, alu, bus);
 
         init();
     }
@@ -108,6 +184,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         this.gui = gui;
 
         RAM ram = new RAM(gui.getRAM(), null, gui.getScreen());
+        ram.addExtensionDevices();
         ram.addErrorListener(this);
         ram.reset();
 
@@ -186,19 +263,27 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         try {
             value = Conversions.toDecimalForm(value);
 
+            History history = cpu.getHistory();
+
             if (varName.equals(VAR_A)) {
                 numValue = Integer.parseInt(value);
                 check_ram_address(varName, numValue);
+                if (history != null)
+                    history.recordExternal(-1);
                 cpu.getA().store((int)numValue);
             }
             else if (varName.equals(VAR_D)) {
                 numValue = Integer.parseInt(value);
                 check_value(varName, numValue);
+                if (history != null)
+                    history.recordExternal(-1);
                 cpu.getD().store((int)numValue);
             }
             else if (varName.equals(VAR_PC)) {
                 numValue = Integer.parseInt(value);
                 check_rom_address(varName, numValue);
+                if (history != null)
+                    history.recordExternal(-1);
                 cpu.getPC().store((int)numValue);
             }
             else if (varName.equals(VAR_TIME))
@@ -207,6 +292,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
                 int index = getRamIndex(varName);
                 numValue = Integer.parseInt(value);
                 check_value(varName, numValue);
+                if (history != null)
+                    history.recordExternal(index);
                 cpu.getRAM().setValueAt(index, (int)numValue, false);
             }
             else if (varName.startsWith(VAR_ROM + "[")) {
@@ -214,6 +301,9 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
                 numValue = Integer.parseInt(value);
                 check_value(varName, numValue);
                 cpu.getROM().setValueAt(index, (int)numValue, false);
+                // the history can't execute the old program again
+                if (history != null)
+                    history.reset();
             }
             else
                 throw new VariableException("Unknown variable", varName);
@@ -239,10 +329,14 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
 
         // execute the appropriate command
         if (command[0].equals(COMMAND_TICKTOCK)) {
-            if (command.length != 1)
+            if (command.length == 1) {
+                cpu.executeInstruction();
+                doTimedEvents();
+            }
+            else if (command.length == 2)
+                executeInstructions(getStepCount(command));
+            else
                 throw new CommandException("Illegal number of arguments to command", command);
-
-            cpu.executeInstruction();
         }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
@@ -260,10 +354,511 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             cpu.initProgram();
             setAnimationMode(oldAnimationMode);
         }
+        else if (command[0].equals(COMMAND_PROFILE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            profileFileName = workingDir + "/" + command[1];
+            cpu.setProfiler(new Profiler(Definitions.ROM_SIZE));
+        }
+        else if (command[0].equals(COMMAND_HISTORY)) {
+            if (command.length == 2 && command[1].equals("off"))
+                cpu.setHistory(null);
+            else if (command.length == 2 || command.length == 3) {
+                long megabytes = getNumber(command, 1);
+                long interval = (command.length == 3 ? getNumber(command, 2)
+                                                     : DEFAULT_SNAPSHOT_INTERVAL);
+                if (megabytes < 1 || interval < 1 || interval > Integer.MAX_VALUE)
+                    throw new CommandException("Illegal argument to command", command);
+                cpu.setHistory(new History(cpu, megabytes << 20, (int)interval));
+            }
+            else
+                throw new CommandException("Illegal number of arguments to command", command);
+        }
+        else if (command[0].equals(COMMAND_BACK)) {
+            if (command.length > 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            long steps = (command.length == 2 ? getNumber(command, 1) : 1);
+            History history = getHistory(command);
+            history.goTo(Math.max(cpu.getTime() - steps, history.getStartTime()));
+        }
+        else if (command[0].equals(COMMAND_RUN_BACK)) {
+            if (command.length != 1)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            History history = getHistory(command);
+            clearStopRequest();
+            while (cpu.getTime() > history.getStartTime() && !isStopRequested()) {
+                history.goTo(cpu.getTime() - 1);
+                if (breakpoints.size() > 0 && breakpointReached())
+                    break;
+            }
+        }
+        else if (command[0].equals(COMMAND_GOTO_TIME)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            getHistory(command).goTo(getNumber(command, 1));
+        }
+        else if (command[0].equals(COMMAND_SCREENSHOT)) {
+            if (command.length == 2 && command[1].equals("off"))
+                getScreenCapture().setFrames(null, 0);
+            else if (command.length == 2)
+                getScreenCapture().capture(workingDir + "/" + command[1]);
+            else if (command.length == 3) {
+                long interval = getNumber(command, 2);
+                if (interval < 1)
+                    throw new CommandException("Illegal argument to command", command);
+                getScreenCapture().setFrames(workingDir + "/" + command[1], interval);
+            }
+            else
+                throw new CommandException("Illegal number of arguments to command", command);
+        }
+        else if (command[0].equals(COMMAND_COMPARE_SCREEN)) {
+            if (command.length != 2 && command.length != 3)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            int distance = (command.length == 3 ? (int)getNumber(command, 2) : 0);
+            getScreenCapture().compare(workingDir + "/" + command[1], distance);
+        }
+        else if (command[0].equals(COMMAND_KEYBOARD)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            if (command[1].equals("off"))
+                keyboardReplay = null;
+            else {
+                keyboardReplay = new KeyboardReplay(workingDir + "/" + command[1], cpu.getTime());
+                doTimedEvents();
+            }
+        }
+        else if (command[0].equals(COMMAND_SAVE_STATE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            String fileName = workingDir + "/" + command[1];
+            try {
+                ByteBuffer buffer = StateFile.create(fileName, STATE_MAGIC, STATE_VERSION,
+                                                     cpu.getStateSize());
+                cpu.saveState(buffer);
+            } catch (IOException ioe) {
+                throw new ProgramException("Could not save state to " + command[1] + ": " +
+                                           ioe.getMessage());
+            }
+        }
+        else if (command[0].equals(COMMAND_LOAD_STATE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            String fileName = workingDir + "/" + command[1];
+            try {
+                cpu.loadState(StateFile.open(fileName, STATE_MAGIC, STATE_VERSION));
+            } catch (IOException ioe) {
+                throw new ProgramException("Could not load state from " + command[1] + ": " +
+                                           ioe.getMessage());
+            } catch (BufferUnderflowException bue) {
+                throw new ProgramException("Could not load state from " + command[1] +
+                                           ": the file is truncated");
+            }
+        }
         else
             throw new CommandException("Unknown simulator command", command);
     }
 
+    /**
+     * Executes the given simulator command (given in args[] style) the given
+     * number of times. A repeated ticktock is executed by the cpu in one call.
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void doRepeatedCommand(String[] command, int times)
+     throws CommandException, ProgramException, VariableException {
+        if (command.length == 1 && command[0].equals(COMMAND_TICKTOCK)) {
+            if (animationMode != HackController.NO_DISPLAY_CHANGES)
+                hideHighlightes();
+
+            executeInstructions(times);
+        }
+        else
+            super.doRepeatedCommand(command, times);
+    }
+
+    /**
+     * Executes instructions until the given condition holds. The condition
+     * is checked before every instruction. If maxSteps isn't 0, at most maxSteps
+     * instructions are executed. Stops early when a breakpoint is reached or a
+     * stop is requested.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void runUntil(ScriptCondition condition, int maxSteps)
+     throws CommandException, ProgramException, VariableException, ControllerException {
+        // numeric arguments are checked by their codes rather than by getValue()
+        int code0 = getVariableCode(condition.getArg0());
+        int code1 = getVariableCode(condition.getArg1());
+        long value0 = 0, value1 = 0;
+        boolean coded = true;
+
+        try {
+            if (code0 == -1)
+                value0 = Integer.parseInt(Conversions.toDecimalForm(condition.getArg0()));
+            if (code1 == -1)
+                value1 = Integer.parseInt(Conversions.toDecimalForm(condition.getArg1()));
+        } catch (NumberFormatException nfe) {
+            coded = false;
+        }
+
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        clearStopRequest();
+        for (int i = 0; maxSteps == 0 || i < maxSteps; i++) {
+            boolean holds;
+            if (coded) {
+                if (code0 != -1)
+                    value0 = getVariableValue(code0);
+                if (code1 != -1)
+                    value1 = getVariableValue(code1);
+                holds = condition.compare(value0, value1);
+            }
+            else
+                holds = condition.compare(this);
+
+            if (holds || isStopRequested())
+                break;
+
+            cpu.executeInstruction();
+            doTimedEvents();
+
+            if (breakpoints.size() > 0 && breakpointReached())
+                break;
+        }
+    }
+
+    /**
+     * Sets the breakpoints. They are compiled into watchpoints: the RAM addresses
+     * and program addresses that they watch are marked in bitmaps, so that
+     * the cpu only stops for them after instructions that touch watched state.
+     */
+    public void setBreakpoints(Vector breakpoints) {
+        super.setBreakpoints(breakpoints);
+
+        Watchpoint[] newWatchpoints = new Watchpoint[breakpoints.size()];
+        int[] watchedRAM = null;
+        int[] watchedPCs = null;
+        boolean newRegistersWatched = false;
+
+        for (int i = 0; i < newWatchpoints.length; i++) {
+            Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+            Watchpoint watchpoint = compileBreakpoint(breakpoint);
+            if (watchpoint == null) {
+                newWatchpoints = null;
+                break;
+            }
+
+            switch (watchpoint.getType()) {
+                case Watchpoint.A:
+                case Watchpoint.D:
+                    newRegistersWatched = true;
+                    break;
+                case Watchpoint.PC:
+                    long pc = watchpoint.getValue();
+                    if (pc >= 0 && pc < Definitions.ROM_SIZE) {
+                        if (watchedPCs == null)
+                            watchedPCs = new int[(Definitions.ROM_SIZE + 31) / 32];
+                        watchedPCs[(int)pc >>> 5] |= 1 << (int)pc;
+                    }
+                    break;
+                case Watchpoint.RAM:
+                    if (watchedRAM == null)
+                        watchedRAM = new int[(Definitions.RAM_SIZE + 31) / 32];
+                    for (int j = watchpoint.getStart(); j <= watchpoint.getEnd(); j++)
+                        watchedRAM[j >>> 5] |= 1 << j;
+                    break;
+            }
+
+            newWatchpoints[i] = watchpoint;
+        }
+
+        if (newWatchpoints == null) {
+            watchedRAM = null;
+            watchedPCs = null;
+        }
+
+        cpu.getRAM().setWatchedAddresses(watchedRAM);
+        cpu.setWatchedPCs(watchedPCs);
+        registersWatched = newRegistersWatched;
+        watchpoints = newWatchpoints;
+    }
+
+    /**
+     * Returns true if the variable of the breakpoint at the given index has
+     * the breakpoint's value.
+     */
+    public boolean breakpointHolds(int index) throws VariableException {
+        Watchpoint[] compiled = watchpoints;
+        if (compiled == null || index >= compiled.length)
+            return super.breakpointHolds(index);
+
+        return compiled[index].holds(cpu);
+    }
+
+    // Compiles the given breakpoint into a watchpoint. Returns null if the
+    // breakpoint's variable is not numeric or its value is not written
+    // exactly as getValue() would write it.
+    private static Watchpoint compileBreakpoint(Breakpoint breakpoint) {
+        int code = getVariableCode(breakpoint.getVarName());
+        if (code == -1)
+            return null;
+
+        long value;
+        try {
+            value = Long.parseLong(breakpoint.getValue());
+            if (!String.valueOf(value).equals(breakpoint.getValue()))
+                return null;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+
+        int index = code & ~CODE_MASK;
+        switch (code & CODE_MASK) {
+            case CODE_A:
+                return new Watchpoint(Watchpoint.A, 0, 0, value);
+            case CODE_D:
+                return new Watchpoint(Watchpoint.D, 0, 0, value);
+            case CODE_PC:
+                return new Watchpoint(Watchpoint.PC, 0, 0, value);
+            case CODE_TIME:
+                return new Watchpoint(Watchpoint.TIME, 0, 0, value);
+            case CODE_RAM:
+                return new Watchpoint(Watchpoint.RAM, index, index, value);
+            default:
+                return new Watchpoint(Watchpoint.ROM, index, index, value);
+        }
+    }
+
+    // Returns true if the breakpoint of a PC watchpoint is reached.
+    private boolean pcWatchpointReached() {
+        for (int i = 0; i < watchpoints.length; i++)
+            if (watchpoints[i].getType() == Watchpoint.PC &&
+                ((Breakpoint)breakpoints.elementAt(i)).isReached())
+                return true;
+
+        return false;
+    }
+
+    // Returns the number of instructions after which a time watchpoint will hold,
+    // or Long.MAX_VALUE if there is none.
+    private long getStepsToTimeWatchpoint() {
+        long steps = Long.MAX_VALUE;
+        for (int i = 0; i < watchpoints.length; i++)
+            if (watchpoints[i].getType() == Watchpoint.TIME &&
+                watchpoints[i].getValue() > cpu.getTime())
+                steps = Math.min(steps, watchpoints[i].getValue() - cpu.getTime());
+
+        return steps;
+    }
+
+    // Executes the given number of instructions. Stops early when a breakpoint
+    // is reached or a stop is requested.
+    private void executeInstructions(long count) throws ProgramException, VariableException {
+        clearStopRequest();
+
+        if (breakpoints.size() == 0) {
+            // with a GUI, a stop may be requested after every instruction
+            int stepsPerCheck = (gui == null) ? STEPS_PER_STOP_CHECK : 1;
+            while (count > 0 && !isStopRequested()) {
+                long steps = Math.min(Math.min(count, stepsPerCheck), getStepsToTimedEvent());
+                cpu.executeInstructions(steps);
+                count -= steps;
+                doTimedEvents();
+            }
+        }
+        else if (watchpoints != null && !registersWatched) {
+            // the watchpoints can change only after instructions that the cpu
+            // stops after (or when the time is reached)
+            int stepsPerCheck = (gui == null) ? STEPS_PER_STOP_CHECK : 1;
+            while (count > 0 && !isStopRequested()) {
+                // a reached PC breakpoint is turned off as soon as the PC leaves it,
+                // so it is checked after every instruction until then
+                if (pcWatchpointReached()) {
+                    cpu.executeInstruction();
+                    count--;
+                    doTimedEvents();
+                    if (breakpointReached())
+                        break;
+                    continue;
+                }
+
+                long steps = Math.min(Math.min(count, stepsPerCheck),
+                                      Math.min(getStepsToTimeWatchpoint(), getStepsToTimedEvent()));
+                long startTime = cpu.getTime();
+                try {
+                    cpu.executeInstructions(steps);
+                } finally {
+                    count -= cpu.getTime() - startTime;
+                }
+                doTimedEvents();
+                if (breakpointReached())
+                    break;
+            }
+        }
+        else {
+            for (; count > 0 && !isStopRequested(); count--) {
+                cpu.executeInstruction();
+                doTimedEvents();
+                if (breakpointReached())
+                    break;
+            }
+        }
+    }
+
+    // Returns the capture of the screen, creating it on first use.
+    private ScreenCapture getScreenCapture() {
+        if (screenCapture == null)
+            screenCapture = new ScreenCapture(cpu.getRAM());
+
+        return screenCapture;
+    }
+
+    // Returns the number of instructions until the next periodic screen frame or
+    // replayed key, or Long.MAX_VALUE if there is none.
+    private long getStepsToTimedEvent() {
+        long steps = Long.MAX_VALUE;
+        if (screenCapture != null)
+            steps = screenCapture.getStepsToNextFrame(cpu.getTime());
+        if (keyboardReplay != null)
+            steps = Math.min(steps, Math.max(1, keyboardReplay.getNextTime() - cpu.getTime()));
+
+        return steps;
+    }
+
+    // Presses the replayed keys and captures the periodic screen frame that
+    // are due by the current time.
+    private void doTimedEvents() {
+        if (keyboardReplay != null) {
+            while (keyboardReplay.getNextTime() <= cpu.getTime()) {
+                History history = cpu.getHistory();
+                if (history != null)
+                    history.recordExternal(Definitions.KEYBOARD_ADDRESS);
+                cpu.getRAM().setValueAt(Definitions.KEYBOARD_ADDRESS, keyboardReplay.nextKey(),
+                                        true);
+            }
+        }
+
+        if (screenCapture != null)
+            screenCapture.stepped(cpu.getTime());
+    }
+
+    // Returns the history of the cpu. Throws CommandException if the history is
+    // not recorded.
+    private History getHistory(String[] command) throws CommandException {
+        History history = cpu.getHistory();
+        if (history == null)
+            throw new CommandException("The history is not recorded", command);
+
+        return history;
+    }
+
+    // Returns the non-negative number at the given index of the given command.
+    // Throws CommandException if it is not a non-negative number.
+    private static long getNumber(String[] command, int index) throws CommandException {
+        long number;
+        try {
+            number = Long.parseLong(command[index]);
+        } catch (NumberFormatException nfe) {
+            throw new CommandException("Illegal argument to command", command);
+        }
+
+        if (number < 0)
+            throw new CommandException("Illegal argument to command", command);
+
+        return number;
+    }
+
+    // Returns the number of steps in the given command (its second argument).
+    // Throws CommandException if it is not a positive number.
+    private static int getStepCount(String[] command) throws CommandException {
+        int count;
+        try {
+            count = Integer.parseInt(command[1]);
+        } catch (NumberFormatException nfe) {
+            throw new CommandException("Illegal number of steps", command);
+        }
+
+        if (count < 1)
+            throw new CommandException("Illegal number of steps", command);
+
+        return count;
+    }
+
+    // Returns the code of the given numeric variable, or -1 if it is not
+    // a legal variable.
+    private static int getVariableCode(String varName) {
+        try {
+            if (varName.equals(VAR_A))
+                return CODE_A;
+            else if (varName.equals(VAR_D))
+                return CODE_D;
+            else if (varName.equals(VAR_PC))
+                return CODE_PC;
+            else if (varName.equals(VAR_TIME))
+                return CODE_TIME;
+            else if (varName.startsWith(VAR_RAM + "["))
+                return CODE_RAM | getRamIndex(varName);
+            else if (varName.startsWith(VAR_ROM + "["))
+                return CODE_ROM | getRomIndex(varName);
+        } catch (VariableException ve) {
+        } catch (NumberFormatException nfe) {
+        }
+
+        return -1;
+    }
+
+    // Returns the value of the variable with the given code.
+    private long getVariableValue(int code) {
+        switch (code & CODE_MASK) {
+            case CODE_A:
+                return cpu.getA().get();
+            case CODE_D:
+                return cpu.getD().get();
+            case CODE_PC:
+                return cpu.getPC().get();
+            case CODE_TIME:
+                return cpu.getTime();
+            case CODE_RAM:
+                return cpu.getRAM().getValueAt(code & ~CODE_MASK);
+            default:
+                return cpu.getROM().getValueAt(code & ~CODE_MASK);
+        }
+    }
+
+    /**
+     * Returns true if the program is idle in a loop that has no effect,
+     * no replayed key will be pressed and no breakpoint waits for the time.
+     */
+    public boolean isIdle() {
+        return cpu.isIdle() && (keyboardReplay == null || keyboardReplay.hasEnded()) &&
+               !hasTimeBreakpoint();
+    }
+
+    /**
+     * Sets the object that is notified when the program may stop being idle:
+     * on every write to the RAM, such as the writes of the keyboard.
+     */
+    public void setIdleMonitor(Object monitor) {
+        cpu.getRAM().setWriteMonitor(monitor);
+    }
+
+    // Returns true if one of the breakpoints is on the time.
+    private boolean hasTimeBreakpoint() {
+        for (int i = 0; i < breakpoints.size(); i++)
+            if (((Breakpoint)breakpoints.elementAt(i)).getVarName().equals(VAR_TIME))
+                return true;
+
+        return false;
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -274,10 +869,39 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         cpu.getALU().hideHighlight();
     }
 
+    /**
+     * Writes the profile report, if the script started profiling.
+     */
+    public void scriptEnded() throws ProgramException {
+        if (screenCapture != null) {
+            screenCapture.setFrames(null, 0);
+            screenCapture.flush();
+        }
+
+        Profiler profiler = cpu.getProfiler();
+        if (profiler == null)
+            return;
+
+        cpu.setProfiler(null);
+
+        // the labels are taken from the .asm source of the program, if there is one,
+        // or from its binary image
+        String sourceFileName = cpu.getROM().getProgramFileName();
+        if (sourceFileName != null && sourceFileName.endsWith(".hack"))
+            sourceFileName = sourceFileName.substring(0, sourceFileName.length() - 5) + ".asm";
+
+        try {
+            profiler.writeReport(profileFileName, cpu.getROM().getContents(), sourceFileName);
+        } catch (IOException ioe) {
+            throw new ProgramException("Could not write profile report: " + ioe.getMessage());
+        }
+    }
+
     /**
      * Restarts the CPUEmulator - program will be restarted.
      */
     public void restart() {
+        cpu.setProfiler(null);
         cpu.initProgram();
     }
 
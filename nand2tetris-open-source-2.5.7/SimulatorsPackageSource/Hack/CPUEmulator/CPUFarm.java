@@ -0,0 +1,265 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import Hack.ComputerParts.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * Runs one program on many independent headless machines in parallel, for
+ * example to test the program against many inputs. The program is loaded
+ * once and all the machines share its ROM image (see ROMImage), while every
+ * machine has its own RAM and registers.
+ * Every input is run from the start of the program until the program reaches
+ * an idle loop (the loop at its end, see CPU.isIdle()), fails, or runs for
+ * the input's maximal time.
+ */
+public class CPUFarm {
+
+    // The number of instructions that a machine executes between checks
+    // for the end of its run
+    private static final long CHUNK_SIZE = 1 << 16;
+
+    /**
+     * An input to the program: the RAM values that are set before it starts
+     * and the maximal time it may run.
+     */
+    public static class Input {
+
+        // The set RAM addresses and their values
+        private int[] addresses, values;
+
+        // The number of set addresses
+        private int count;
+
+        // The maximal time of the run
+        private long maxTime;
+
+        /**
+         * Constructs a new input that runs the program for the given maximal time.
+         */
+        public Input(long maxTime) {
+            this.maxTime = maxTime;
+            addresses = new int[4];
+            values = new int[4];
+        }
+
+        /**
+         * Sets the given RAM address to the given value before the program starts.
+         */
+        public void setRAM(int address, int value) {
+            if (count == addresses.length) {
+                int[] newAddresses = new int[count * 2];
+                int[] newValues = new int[count * 2];
+                System.arraycopy(addresses, 0, newAddresses, 0, count);
+                System.arraycopy(values, 0, newValues, 0, count);
+                addresses = newAddresses;
+                values = newValues;
+            }
+
+            addresses[count] = address;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    /**
+     * The result of running the program on one input.
+     */
+    public static class Result {
+
+        // The RAM words in the result range when the run ended
+        private int[] ram;
+
+        // The time when the run ended
+        private long time;
+
+        // True if the run ended in an idle loop
+        private boolean finished;
+
+        // The error that ended the run, or null if none
+        private String error;
+
+        /**
+         * Returns the RAM words in the result range (see CPUFarm.run()) when
+         * the run ended.
+         */
+        public int[] getRAM() {
+            return ram;
+        }
+
+        /**
+         * Returns the number of instructions that were executed: up to the
+         * idle loop if the program finished, or up to the error if it failed.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns true if the program reached an idle loop, false if it failed
+         * or ran for the maximal time.
+         */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns the error message if the program failed, or null if it didn't.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    // The name of the program file
+    private String programFileName;
+
+    // A ROM with the program. It keeps the shared image of the program
+    // loaded while the farm exists.
+    private ROM rom;
+
+    /**
+     * Constructs a new farm that runs the given program file (HACK, HACKB or ASM).
+     * Throws ProgramException if the program can't be loaded.
+     */
+    public CPUFarm(String programFileName) throws ProgramException {
+        this.programFileName = programFileName;
+        rom = new ROM(null);
+        rom.reset();
+        rom.loadProgram(programFileName);
+    }
+
+    /**
+     * Runs the program on all the given inputs, using the given number of
+     * threads, and returns the results in the order of the inputs. The result
+     * of each run contains the RAM words in the address range
+     * resultStart..resultEnd-1.
+     * Throws ProgramException if the result range or one of the set RAM
+     * addresses is illegal. Throws InterruptedException if the calling thread
+     * is interrupted while waiting for the runs to end.
+     */
+    public Result[] run(final Input[] inputs, final int resultStart, final int resultEnd,
+                        int threadCount) throws ProgramException, InterruptedException {
+        if (resultStart < 0 || resultEnd > Definitions.RAM_SIZE || resultStart > resultEnd)
+            throw new ProgramException("Illegal result range: " + resultStart + ".." +
+                                       (resultEnd - 1));
+        for (int i = 0; i < inputs.length; i++)
+            for (int j = 0; j < inputs[i].count; j++) {
+                int address = inputs[i].addresses[j];
+                if (address < 0 || address >= Definitions.RAM_SIZE)
+                    throw new ProgramException("Illegal RAM address in input " + i + ": " +
+                                               address);
+            }
+
+        final Result[] results = new Result[inputs.length];
+        final AtomicInteger nextInput = new AtomicInteger();
+        final Vector errors = new Vector();
+
+        // every thread runs the inputs that it takes on its own machine
+        Thread[] threads = new Thread[Math.max(1, Math.min(threadCount, inputs.length))];
+        for (int i = 0; i < threads.length; i++) {
+            final CPU cpu = createMachine(programFileName);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int i;
+                        while ((i = nextInput.getAndIncrement()) < inputs.length)
+                            results[i] = runInput(cpu, inputs[i], resultStart, resultEnd);
+                    } catch (Throwable t) {
+                        errors.addElement(t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        try {
+            for (int i = 0; i < threads.length; i++)
+                threads[i].join();
+        } finally {
+            // make the threads stop taking inputs if the wait was interrupted
+            nextInput.set(inputs.length);
+        }
+
+        if (errors.size() > 0)
+            throw new RuntimeException((Throwable)errors.elementAt(0));
+
+        return results;
+    }
+
+    /**
+     * Creates a new headless machine with the given program file, which has
+     * no GUI and shares the program's ROM image.
+     * Throws ProgramException if the program can't be loaded.
+     */
+    static CPU createMachine(String programFileName) throws ProgramException {
+        RAM ram = new RAM(null, null, null);
+        ram.addExtensionDevices();
+        ram.reset();
+
+        ROM machineROM = new ROM(null);
+        machineROM.reset();
+        machineROM.loadProgram(programFileName);
+
+        PointerAddressRegisterAdapter A = new PointerAddressRegisterAdapter(null, ram);
+        A.reset();
+
+        Register D = new Register(null);
+        D.reset();
+
+        PointerAddressRegisterAdapter PC = new PointerAddressRegisterAdapter(null, machineROM);
+        PC.reset();
+
+        ALU alu = new ALU(null);
+        alu.reset();
+
+        Bus bus = new Bus(null);
+        bus.reset();
+
+        return new HeadlessCPU(ram, machineROM, A, D, PC, alu, bus);
+    }
+
+    // Runs the program on the given machine with the given input and returns
+    // the result.
+    private static Result runInput(CPU cpu, Input input, int resultStart, int resultEnd) {
+        RAM ram = cpu.getRAM();
+        ram.reset();
+        cpu.initProgram();
+        for (int i = 0; i < input.count; i++)
+            ram.setValueAt(input.addresses[i], input.values[i], true);
+
+        Result result = new Result();
+        try {
+            while (cpu.getTime() < input.maxTime && !cpu.isIdle())
+                cpu.executeInstructions(Math.min(CHUNK_SIZE, input.maxTime - cpu.getTime()));
+        } catch (ProgramException pe) {
+            result.error = pe.getMessage();
+        }
+
+        result.finished = cpu.isIdle();
+        result.time = (result.finished ? cpu.getIdleTime() : cpu.getTime());
+        result.ram = new int[resultEnd - resultStart];
+        System.arraycopy(ram.getContents(), resultStart, result.ram, 0, result.ram.length);
+
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import Hack.Utilities.*;
+
+/**
+ * A debug console device, which lets programs print messages. It has two
+ * addresses from Definitions.CONSOLE_ADDRESS: a value that is written to the
+ * first one is printed as a character (Hack's newline key code as a new line),
+ * and a value that is written to the second one is printed as a decimal number.
+ * The output is flushed at every new line.
+ */
+public class ConsoleDevice implements Device {
+
+    /**
+     * The number of addresses of the device.
+     */
+    public static final int SIZE = 2;
+
+    // The stream that the console prints to
+    private PrintStream out;
+
+    /**
+     * Constructs a new console device that prints to the given stream.
+     */
+    public ConsoleDevice(PrintStream out) {
+        this.out = out;
+    }
+
+    public int getStartAddress() {
+        return Definitions.CONSOLE_ADDRESS;
+    }
+
+    public int getSize() {
+        return SIZE;
+    }
+
+    public void valueWritten(int address, int value, long time) {
+        if (address == Definitions.CONSOLE_ADDRESS) {
+            if (value == Definitions.NEWLINE_KEY || value == '\n') {
+                out.println();
+                out.flush();
+            }
+            else
+                out.print((char)value);
+        }
+        else
+            out.print(value);
+    }
+
+    public void reset() {
+        out.flush();
+    }
+}
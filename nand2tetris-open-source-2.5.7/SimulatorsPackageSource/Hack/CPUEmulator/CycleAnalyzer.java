@@ -0,0 +1,1058 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Assembler.*;
+import Hack.Controller.*;
+import Hack.Translators.*;
+import Hack.Utilities.*;
+
+/**
+ * A static cycle analyzer for Hack programs. Splits the program into basic
+ * blocks, builds its control-flow graph, finds its routines and loops, and
+ * writes a report of the worst-case number of cycles (executed instructions)
+ * of every routine and loop, without executing the program.
+ * Routines start at address 0 and at every label that is named like a VM
+ * function (Xxx.yyy, without '$') and can't be reached from the previous
+ * instruction. An unconditional jump from a block that saves the address
+ * after the block (a return address) into D or the RAM, or a jump to the
+ * start of a routine, is a call: its cycles are not counted in the calling
+ * routine, and it returns to the next address if a return address was saved.
+ * A conditional jump from a block that saves a return address isn't a call,
+ * but the cycles of the routine or loop that contain it are reported as a
+ * lower bound. Any other jump to an address that isn't known statically
+ * (for example a return) leaves the routine.
+ * The number of iterations of a loop is known when the loop counts a RAM
+ * variable from a constant by a constant step, and leaves when the variable
+ * (possibly minus other variables that are constant in the loop) passes a
+ * constant. Otherwise only the cycles of one iteration are known, and the
+ * cycles that include the loop are reported as a lower bound (with '+').
+ */
+public class CycleAnalyzer {
+
+    // The jump bits of each sign of a value
+    private static final int[] SIGN_JUMPS = {InstructionDecoder.JUMP_NEGATIVE,
+                                             InstructionDecoder.JUMP_ZERO,
+                                             InstructionDecoder.JUMP_POSITIVE};
+
+    // A value that a block computes: the sum of a constant and of at most
+    // two RAM values (as they were when the block started), each multiplied
+    // by a coefficient
+    private static class Value {
+
+        // The value whose computation isn't known
+        static final Value UNKNOWN = new Value(0, new int[0], new int[0]);
+
+        int constant;
+        int[] addresses, coefficients;
+
+        Value(int constant, int[] addresses, int[] coefficients) {
+            this.constant = constant;
+            this.addresses = addresses;
+            this.coefficients = coefficients;
+        }
+
+        // Returns the coefficient of the given address.
+        int getCoefficient(int address) {
+            for (int i = 0; i < addresses.length; i++)
+                if (addresses[i] == address)
+                    return coefficients[i];
+            return 0;
+        }
+    }
+
+    // A natural loop: a header block and the blocks that reach a back edge
+    // to it without passing through it
+    private static class Loop {
+        int header;
+        BitSet body = new BitSet();
+        Vector latches = new Vector();
+        Loop parent;
+        int depth;
+
+        // The number of iterations, or -1 if not known
+        long iterations = -1;
+
+        // True if no block of the loop leaves it
+        boolean endless;
+
+        // The worst-case cycles of one iteration and of the whole loop, and
+        // whether they are only lower bounds
+        long iterationCycles, cycles;
+        boolean unbounded;
+    }
+
+    // The name of the program file
+    private String programFileName;
+
+    // The micro-ops of the program and its length (up to the last instruction)
+    private long[] code;
+    private int length;
+
+    // The label+offset name of every address
+    private String[] names;
+
+    // The first and last address of every block, and the block of every address
+    private int[] blockStarts, blockEnds, blockOf;
+
+    // The successors and predecessors of every block. The virtual root (the
+    // last index) precedes the program start, the routines and every block
+    // that is only reached by unknown jumps.
+    private int[][] successors, predecessors;
+
+    // The values of the RAM addresses that every block writes
+    private Hashtable[] stores;
+
+    // True for blocks that write to an unknown address, call a routine,
+    // or jump to an unknown address
+    private boolean[] clobbers, calls, unknownJumps;
+
+    // True for blocks that save the address after them (a return address)
+    // into D or the RAM
+    private boolean[] returns;
+
+    // True for blocks whose jump may or may not be a call
+    private boolean[] unclearCalls;
+
+    // The jump condition (the exp value) and the jump target block of every
+    // block that ends with a conditional jump, or null & -1.
+    private Value[] tests;
+    private int[] jumpBlocks;
+
+    // The immediate dominator of every block, or -1 if not reachable
+    private int[] dominators;
+
+    // The loops, from the innermost to the outermost, the loop of every
+    // header and the innermost loop of every block
+    private Vector loops = new Vector();
+    private Loop[] loopAt, innermostLoops;
+
+    // The first addresses of the routines, in increasing order
+    private int[] routineStarts;
+
+    /**
+     * Constructs a new analyzer of the given program file (ASM or HACKB) and
+     * analyzes it. Throws ProgramException if the program can't be read.
+     */
+    public CycleAnalyzer(String programFileName) throws ProgramException {
+        this.programFileName = programFileName;
+
+        int[] program;
+        Hashtable labels;
+        try {
+            if (programFileName.endsWith("." + HackBinaryFile.EXTENSION)) {
+                program = HackBinaryFile.read(programFileName, Definitions.ROM_SIZE,
+                                              HackAssemblerTranslator.NOP);
+                labels = HackBinaryFile.readLabels(programFileName);
+            }
+            else if (programFileName.endsWith(".asm")) {
+                HackAssembler assembler = new HackAssembler(programFileName, Definitions.ROM_SIZE,
+                                                            HackAssemblerTranslator.NOP, false);
+                program = assembler.getProgram();
+                labels = assembler.getLabels();
+            }
+            else
+                throw new ProgramException(programFileName + " is not a .asm or ." +
+                                           HackBinaryFile.EXTENSION + " file");
+        } catch (AssemblerException ae) {
+            throw new ProgramException(ae.getMessage());
+        } catch (HackTranslatorException hte) {
+            throw new ProgramException(hte.getMessage());
+        }
+
+        length = program.length;
+        while (length > 0 && program[length - 1] == HackAssemblerTranslator.NOP)
+            length--;
+        if (length == 0)
+            throw new ProgramException(programFileName + " contains no instructions");
+        code = new long[length];
+        for (int i = 0; i < length; i++)
+            code[i] = InstructionDecoder.decode(program[i]);
+        names = Profiler.getAddressNames(length, labels);
+
+        findRoutines(labels);
+        findBlocks(labels);
+        findDominators();
+        findLoops();
+        for (int i = 0; i < loops.size(); i++)
+            analyzeLoop((Loop)loops.elementAt(i));
+    }
+
+    /**
+     * Writes the report into the given writer: the worst-case cycles of every
+     * routine (from the most expensive), the loops with their nesting depth,
+     * iterations and cycles, and the straight-line cycles of every basic block.
+     */
+    public void writeReport(PrintWriter writer) {
+        int blockCount = blockStarts.length;
+
+        writer.println("Program: " + programFileName);
+        writer.println("Instructions: " + length + ", basic blocks: " + blockCount +
+                       ", routines: " + routineStarts.length + ", loops: " + loops.size());
+
+        // the routines by worst-case cycles
+        int routineCount = routineStarts.length;
+        long[] routineCycles = new long[routineCount];
+        boolean[] routineUnbounded = new boolean[routineCount];
+        Integer[] order = new Integer[routineCount];
+        for (int i = 0; i < routineCount; i++) {
+            boolean[] unbounded = new boolean[1];
+            routineCycles[i] = getRoutineCycles(i, unbounded);
+            routineUnbounded[i] = unbounded[0];
+            order[i] = new Integer(i);
+        }
+        final long[] cycles = routineCycles;
+        Arrays.sort(order, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long c1 = cycles[((Integer)o1).intValue()];
+                long c2 = cycles[((Integer)o2).intValue()];
+                return c1 > c2 ? -1 : (c1 < c2 ? 1 : 0);
+            }
+        });
+
+        writer.println();
+        writer.println("Routines by worst-case cycles:");
+        writer.println("  start    end  routine                   instructions  loops  depth  calls" +
+                       "        cycles");
+        for (int i = 0; i < routineCount; i++) {
+            int routine = order[i].intValue();
+            int start = routineStarts[routine];
+            int end = getRoutineEnd(routine);
+
+            int loopCount = 0, depth = 0, callCount = 0;
+            for (int j = 0; j < loops.size(); j++) {
+                Loop loop = (Loop)loops.elementAt(j);
+                if (loop.header >= blockOf[start] && loop.header <= blockOf[end]) {
+                    loopCount++;
+                    depth = Math.max(depth, loop.depth);
+                }
+            }
+            for (int b = blockOf[start]; b <= blockOf[end]; b++)
+                if (calls[b])
+                    callCount++;
+
+            writer.println(Profiler.pad(String.valueOf(start), 7) +
+                           Profiler.pad(String.valueOf(end), 7) + "  " +
+                           Profiler.padRight(getName(start), 26) +
+                           Profiler.pad(String.valueOf(end - start + 1), 12) +
+                           Profiler.pad(String.valueOf(loopCount), 7) +
+                           Profiler.pad(String.valueOf(depth), 7) +
+                           Profiler.pad(String.valueOf(callCount), 7) +
+                           Profiler.pad(getCyclesText(routineCycles[routine],
+                                                      routineUnbounded[routine]), 14));
+        }
+
+        writer.println();
+        writer.println("Loops:");
+        writer.println("  start    end  depth  label                  cycles/iteration" +
+                       "    iterations        cycles");
+        Loop[] sortedLoops = new Loop[loops.size()];
+        loops.copyInto(sortedLoops);
+        Arrays.sort(sortedLoops, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((Loop)o1).header - ((Loop)o2).header;
+            }
+        });
+        for (int i = 0; i < sortedLoops.length; i++) {
+            Loop loop = sortedLoops[i];
+            int start = blockStarts[loop.header];
+            int end = blockEnds[loop.body.length() - 1];
+            String iterations = loop.endless ? "endless" :
+                                (loop.iterations < 0 ? "unknown" : String.valueOf(loop.iterations));
+            writer.println(Profiler.pad(String.valueOf(start), 7) +
+                           Profiler.pad(String.valueOf(end), 7) +
+                           Profiler.pad(String.valueOf(loop.depth), 7) + "  " +
+                           Profiler.padRight(getName(start), 22) +
+                           Profiler.pad(getCyclesText(loop.iterationCycles, false), 17) +
+                           Profiler.pad(iterations, 14) +
+                           Profiler.pad(loop.endless ? "-" :
+                                        getCyclesText(loop.cycles, loop.unbounded), 14));
+        }
+
+        writer.println();
+        writer.println("Basic blocks:");
+        writer.println("  start    end  depth  label                          cycles");
+        for (int b = 0; b < blockCount; b++) {
+            writer.println(Profiler.pad(String.valueOf(blockStarts[b]), 7) +
+                           Profiler.pad(String.valueOf(blockEnds[b]), 7) +
+                           Profiler.pad(String.valueOf(getDepth(b)), 7) + "  " +
+                           Profiler.padRight(getName(blockStarts[b]), 25) +
+                           Profiler.pad(String.valueOf(blockEnds[b] - blockStarts[b] + 1), 12));
+        }
+
+        writer.flush();
+    }
+
+    // Finds the first addresses of the routines.
+    private void findRoutines(Hashtable labels) {
+        BitSet starts = new BitSet();
+        starts.set(0);
+        Enumeration e = labels.keys();
+        while (e.hasMoreElements()) {
+            String label = (String)e.nextElement();
+            int address = ((Integer)labels.get(label)).intValue();
+            if (address < length && label.indexOf('.') > 0 && label.indexOf('$') < 0 &&
+                (address == 0 || isJump(code[address - 1])))
+                starts.set(address);
+        }
+
+        routineStarts = new int[starts.cardinality()];
+        for (int i = 0, address = starts.nextSetBit(0); address >= 0;
+             address = starts.nextSetBit(address + 1))
+            routineStarts[i++] = address;
+    }
+
+    // Splits the program into basic blocks, computes the values that every
+    // block writes and tests, and builds the control-flow graph.
+    private void findBlocks(Hashtable labels) {
+        // the first address of every block: after every jump, at every
+        // known jump target and at every label
+        BitSet leaders = new BitSet();
+        leaders.set(0);
+        Enumeration e = labels.elements();
+        while (e.hasMoreElements()) {
+            int address = ((Integer)e.nextElement()).intValue();
+            if (address < length)
+                leaders.set(address);
+        }
+        for (int i = 0; i < length; i++)
+            if (InstructionDecoder.isBlockEnd(code[i]) && i + 1 < length)
+                leaders.set(i + 1);
+
+        // the blocks are split at the jump targets that are found, until no
+        // new targets are found
+        int[] jumpTargets;
+        boolean split;
+        do {
+            splitBlocks(leaders);
+            jumpTargets = new int[blockStarts.length];
+            split = false;
+            for (int b = 0; b < blockStarts.length; b++) {
+                jumpTargets[b] = analyzeBlock(b);
+                int target = jumpTargets[b];
+                if (target >= 0 && target < length && !leaders.get(target)) {
+                    leaders.set(target);
+                    split = true;
+                }
+            }
+        } while (split);
+
+        int count = blockStarts.length;
+        Vector[] successorLists = new Vector[count];
+        for (int b = 0; b < count; b++)
+            successorLists[b] = new Vector();
+
+        // the successors of every block
+        BitSet routines = new BitSet();
+        for (int i = 0; i < routineStarts.length; i++)
+            routines.set(routineStarts[i]);
+
+        for (int b = 0; b < count; b++) {
+            long op = code[blockEnds[b]];
+            int type = InstructionDecoder.getType(op);
+            int jump = (type == InstructionDecoder.TYPE_C ? (int)op & InstructionDecoder.JUMP_MASK : 0);
+            Value test = tests[b];
+            boolean jumps = jump != 0, alwaysJumps = jump == InstructionDecoder.JUMP_MASK;
+            if (jumps && test.addresses.length == 0 && test != Value.UNKNOWN) {
+                // a jump on a constant
+                alwaysJumps = (jump & getSignJump(test.constant)) != 0;
+                jumps = alwaysJumps;
+            }
+            if (!jumps || alwaysJumps)
+                tests[b] = null;
+
+            jumpBlocks[b] = -1;
+            if (jumps) {
+                int target = jumpTargets[b];
+                if ((returns[b] && alwaysJumps && target != blockEnds[b] + 1) ||
+                    (target >= 0 && routines.get(target)))
+                    calls[b] = true;
+                else if (target < 0)
+                    unknownJumps[b] = true;
+                else if (target < length) {
+                    jumpBlocks[b] = blockOf[target];
+                    successorLists[b].addElement(new Integer(blockOf[target]));
+                }
+                if (!calls[b] && returns[b] && target != blockEnds[b] + 1)
+                    unclearCalls[b] = true;
+            }
+
+            int next = blockEnds[b] + 1;
+            if ((!alwaysJumps || calls[b] && returns[b]) && type != InstructionDecoder.TYPE_ILLEGAL &&
+                next < length &&
+                !routines.get(next) && jumpBlocks[b] != b + 1)
+                successorLists[b].addElement(new Integer(b + 1));
+        }
+
+        // the predecessors, and the blocks that are only reached by unknown jumps
+        Vector[] predecessorLists = new Vector[count + 1];
+        for (int b = 0; b <= count; b++)
+            predecessorLists[b] = new Vector();
+        for (int b = 0; b < count; b++)
+            for (int i = 0; i < successorLists[b].size(); i++)
+                predecessorLists[((Integer)successorLists[b].elementAt(i)).intValue()]
+                    .addElement(new Integer(b));
+
+        Vector rootList = new Vector();
+        for (int b = 0; b < count; b++)
+            if (b == 0 || routines.get(blockStarts[b]) || predecessorLists[b].size() == 0) {
+                rootList.addElement(new Integer(b));
+                predecessorLists[b].addElement(new Integer(count));
+            }
+
+        successors = new int[count + 1][];
+        predecessors = new int[count + 1][];
+        for (int b = 0; b < count; b++) {
+            successors[b] = toArray(successorLists[b]);
+            predecessors[b] = toArray(predecessorLists[b]);
+        }
+        successors[count] = toArray(rootList);
+        predecessors[count] = new int[0];
+    }
+
+    // Splits the program into basic blocks that start at the given addresses.
+    private void splitBlocks(BitSet leaders) {
+        int count = leaders.cardinality();
+        blockStarts = new int[count];
+        blockEnds = new int[count];
+        blockOf = new int[length];
+        for (int b = 0, address = leaders.nextSetBit(0); address >= 0;
+             address = leaders.nextSetBit(address + 1), b++) {
+            blockStarts[b] = address;
+            int next = leaders.nextSetBit(address + 1);
+            blockEnds[b] = (next < 0 ? length : next) - 1;
+            for (int i = address; i <= blockEnds[b]; i++)
+                blockOf[i] = b;
+        }
+
+        stores = new Hashtable[count];
+        clobbers = new boolean[count];
+        calls = new boolean[count];
+        unknownJumps = new boolean[count];
+        returns = new boolean[count];
+        unclearCalls = new boolean[count];
+        tests = new Value[count];
+        jumpBlocks = new int[count];
+    }
+
+    // Computes the values that the given block writes into the RAM and tests
+    // in its jump, and returns the target of its jump, or -1 if it has no
+    // jump or the target isn't known.
+    private int analyzeBlock(int block) {
+        Hashtable written = new Hashtable();
+        Value a = Value.UNKNOWN, d = Value.UNKNOWN;
+        Value out = Value.UNKNOWN;
+
+        for (int i = blockStarts[block]; i <= blockEnds[block]; i++) {
+            long op = code[i];
+            int type = InstructionDecoder.getType(op);
+            if (type == InstructionDecoder.TYPE_A) {
+                a = constant(InstructionDecoder.getValue(op));
+            }
+            else if (type == InstructionDecoder.TYPE_C) {
+                int address = getAddress(a);
+                Value m = Value.UNKNOWN;
+                if (address >= 0 && !clobbers[block]) {
+                    m = (Value)written.get(new Integer(address));
+                    if (m == null)
+                        m = new Value(0, new int[]{address}, new int[]{1});
+                }
+
+                out = compute(InstructionDecoder.getExpText(op), d, a, m);
+
+                // a return address that is saved, not only used in a computation
+                int instruction = (int)op;
+                if ((instruction & (InstructionDecoder.DEST_D | InstructionDecoder.DEST_M)) != 0 &&
+                    out != Value.UNKNOWN && out.addresses.length == 0 &&
+                    out.constant == blockEnds[block] + 1)
+                    returns[block] = true;
+
+                if ((instruction & InstructionDecoder.DEST_M) != 0) {
+                    if (address >= 0)
+                        written.put(new Integer(address), out);
+                    else
+                        clobbers[block] = true;
+                }
+                if ((instruction & InstructionDecoder.DEST_A) != 0)
+                    a = out;
+                if ((instruction & InstructionDecoder.DEST_D) != 0)
+                    d = out;
+            }
+        }
+
+        stores[block] = written;
+        tests[block] = out;
+        return InstructionDecoder.isBlockEnd(code[blockEnds[block]]) ? getAddress(a) : -1;
+    }
+
+    // Returns the value of the given exp with the given D, A & M values.
+    private static Value compute(String exp, Value d, Value a, Value m) {
+        if (exp == null)
+            return Value.UNKNOWN;
+
+        exp = exp.replace('D', 'x').replace('A', 'y').replace('M', 'z');
+        if (exp.length() == 1)
+            return getOperand(exp.charAt(0), d, a, m);
+        else if (exp.length() == 2 && exp.charAt(0) == '-' && exp.charAt(1) == '1')
+            return constant(-1);
+        else if (exp.length() == 2 && exp.charAt(0) == '-')
+            return negate(getOperand(exp.charAt(1), d, a, m));
+        else if (exp.length() == 3 && (exp.charAt(1) == '+' || exp.charAt(1) == '-')) {
+            Value x = getOperand(exp.charAt(0), d, a, m);
+            Value y = getOperand(exp.charAt(2), d, a, m);
+            return add(x, exp.charAt(1) == '+' ? y : negate(y));
+        }
+        else
+            return Value.UNKNOWN;
+    }
+
+    // Returns the value of the given operand of an exp (x for D, y for A,
+    // z for M or a digit).
+    private static Value getOperand(char operand, Value d, Value a, Value m) {
+        switch (operand) {
+            case 'x':
+                return d;
+            case 'y':
+                return a;
+            case 'z':
+                return m;
+            default:
+                return Character.isDigit(operand) ? constant(operand - '0') : Value.UNKNOWN;
+        }
+    }
+
+    // Returns a constant value.
+    private static Value constant(int value) {
+        return new Value(value, new int[0], new int[0]);
+    }
+
+    // Returns the negation of the given value.
+    private static Value negate(Value value) {
+        if (value == Value.UNKNOWN)
+            return value;
+
+        int[] coefficients = new int[value.coefficients.length];
+        for (int i = 0; i < coefficients.length; i++)
+            coefficients[i] = -value.coefficients[i];
+        return new Value(-value.constant, value.addresses, coefficients);
+    }
+
+    // Returns the sum of the given values, or UNKNOWN if it involves more
+    // than two RAM values.
+    private static Value add(Value x, Value y) {
+        if (x == Value.UNKNOWN || y == Value.UNKNOWN)
+            return Value.UNKNOWN;
+
+        int[] addresses = new int[x.addresses.length + y.addresses.length];
+        int[] coefficients = new int[addresses.length];
+        int count = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            Value v = (i < x.addresses.length ? x : y);
+            int j = (i < x.addresses.length ? i : i - x.addresses.length);
+            int k = 0;
+            while (k < count && addresses[k] != v.addresses[j])
+                k++;
+            addresses[k] = v.addresses[j];
+            coefficients[k] += v.coefficients[j];
+            if (k == count)
+                count++;
+        }
+
+        int terms = 0;
+        for (int i = 0; i < count; i++)
+            if (coefficients[i] != 0) {
+                addresses[terms] = addresses[i];
+                coefficients[terms++] = coefficients[i];
+            }
+        if (terms > 2)
+            return Value.UNKNOWN;
+
+        int[] resultAddresses = new int[terms], resultCoefficients = new int[terms];
+        System.arraycopy(addresses, 0, resultAddresses, 0, terms);
+        System.arraycopy(coefficients, 0, resultCoefficients, 0, terms);
+        return new Value(x.constant + y.constant, resultAddresses, resultCoefficients);
+    }
+
+    // Returns the given value if it is a legal constant address, or -1.
+    private static int getAddress(Value value) {
+        if (value == Value.UNKNOWN || value.addresses.length > 0 ||
+            value.constant < 0 || value.constant >= Definitions.RAM_SIZE)
+            return -1;
+        return value.constant;
+    }
+
+    // Returns true if the given micro-op always jumps.
+    private static boolean isJump(long op) {
+        return InstructionDecoder.getType(op) == InstructionDecoder.TYPE_C &&
+               ((int)op & InstructionDecoder.JUMP_MASK) == InstructionDecoder.JUMP_MASK;
+    }
+
+    // Returns the jump bit of the sign of the given value.
+    private static int getSignJump(long value) {
+        return SIGN_JUMPS[value < 0 ? 0 : (value == 0 ? 1 : 2)];
+    }
+
+    // Computes the immediate dominator of every block (Cooper, Harvey & Kennedy).
+    private void findDominators() {
+        int root = successors.length - 1;
+
+        // the blocks in reverse postorder from the root
+        int[] order = new int[root + 1];
+        int[] orderIndex = new int[root + 1];
+        Arrays.fill(orderIndex, -1);
+        int[] stack = new int[root + 1], next = new int[root + 1];
+        boolean[] visited = new boolean[root + 1];
+        int count = 0, top = 0;
+        stack[0] = root;
+        visited[root] = true;
+        while (top >= 0) {
+            int b = stack[top];
+            if (next[b] < successors[b].length) {
+                int s = successors[b][next[b]++];
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[++top] = s;
+                }
+            }
+            else {
+                order[count++] = b;
+                top--;
+            }
+        }
+        for (int i = 0; i < count / 2; i++) {
+            int t = order[i];
+            order[i] = order[count - 1 - i];
+            order[count - 1 - i] = t;
+        }
+        for (int i = 0; i < count; i++)
+            orderIndex[order[i]] = i;
+
+        dominators = new int[root + 1];
+        Arrays.fill(dominators, -1);
+        dominators[root] = root;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < count; i++) {
+                int b = order[i];
+                int dominator = -1;
+                for (int j = 0; j < predecessors[b].length; j++) {
+                    int p = predecessors[b][j];
+                    if (dominators[p] < 0)
+                        continue;
+                    if (dominator < 0)
+                        dominator = p;
+                    else {
+                        // the closest common dominator of p and dominator
+                        while (p != dominator) {
+                            while (orderIndex[p] > orderIndex[dominator])
+                                p = dominators[p];
+                            while (orderIndex[dominator] > orderIndex[p])
+                                dominator = dominators[dominator];
+                        }
+                    }
+                }
+                if (dominators[b] != dominator) {
+                    dominators[b] = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // Returns true if the first given block dominates the second one.
+    private boolean dominates(int dominator, int block) {
+        int root = dominators.length - 1;
+        if (dominators[block] < 0)
+            return false;
+
+        while (block != dominator && block != root)
+            block = dominators[block];
+        return block == dominator;
+    }
+
+    // Finds the natural loops and their nesting.
+    private void findLoops() {
+        int count = blockStarts.length;
+        loopAt = new Loop[count];
+        for (int b = 0; b < count; b++)
+            for (int i = 0; i < successors[b].length; i++) {
+                int header = successors[b][i];
+                if (!dominates(header, b))
+                    continue;
+
+                Loop loop = loopAt[header];
+                if (loop == null) {
+                    loop = new Loop();
+                    loop.header = header;
+                    loop.body.set(header);
+                    loopAt[header] = loop;
+                    loops.addElement(loop);
+                }
+                loop.latches.addElement(new Integer(b));
+
+                // the blocks that reach the back edge without passing the header
+                Vector work = new Vector();
+                if (!loop.body.get(b)) {
+                    loop.body.set(b);
+                    work.addElement(new Integer(b));
+                }
+                while (work.size() > 0) {
+                    int block = ((Integer)work.remove(work.size() - 1)).intValue();
+                    for (int j = 0; j < predecessors[block].length; j++) {
+                        int p = predecessors[block][j];
+                        if (p < count && !loop.body.get(p)) {
+                            loop.body.set(p);
+                            work.addElement(new Integer(p));
+                        }
+                    }
+                }
+            }
+
+        // from the innermost loop to the outermost one
+        Collections.sort(loops, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((Loop)o1).body.cardinality() - ((Loop)o2).body.cardinality();
+            }
+        });
+
+        innermostLoops = new Loop[count];
+        for (int i = 0; i < loops.size(); i++) {
+            Loop loop = (Loop)loops.elementAt(i);
+            for (int b = loop.body.nextSetBit(0); b >= 0; b = loop.body.nextSetBit(b + 1)) {
+                if (innermostLoops[b] == null)
+                    innermostLoops[b] = loop;
+                else if (innermostLoops[b] != loop) {
+                    Loop inner = innermostLoops[b];
+                    while (inner.parent != null && inner.parent != loop)
+                        inner = inner.parent;
+                    inner.parent = loop;
+                }
+            }
+        }
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Loop loop = (Loop)loops.elementAt(i);
+            loop.depth = (loop.parent == null ? 1 : loop.parent.depth + 1);
+        }
+    }
+
+    // Returns the loop nesting depth of the given block.
+    private int getDepth(int block) {
+        return innermostLoops[block] == null ? 0 : innermostLoops[block].depth;
+    }
+
+    // Finds the iterations and the worst-case cycles of the given loop. The loops
+    // that are nested in it should already be analyzed.
+    private void analyzeLoop(Loop loop) {
+        loop.endless = true;
+        for (int b = loop.body.nextSetBit(0); b >= 0; b = loop.body.nextSetBit(b + 1)) {
+            if (unknownJumps[b])
+                loop.endless = false;
+            for (int i = 0; i < successors[b].length; i++)
+                if (!loop.body.get(successors[b][i]))
+                    loop.endless = false;
+        }
+
+        boolean[] unbounded = new boolean[1];
+        loop.iterationCycles = getLongestPath(loop.header, loop.body, loop, unbounded);
+        if (!loop.endless)
+            loop.iterations = getIterations(loop);
+
+        loop.unbounded = unbounded[0] || (!loop.endless && loop.iterations < 0);
+        loop.cycles = loop.iterationCycles * (loop.iterations < 0 ? 1 : loop.iterations);
+    }
+
+    // Returns the number of iterations of the given loop, or -1 if not known.
+    private long getIterations(Loop loop) {
+        // the loop must not write to unknown addresses or call routines
+        for (int b = loop.body.nextSetBit(0); b >= 0; b = loop.body.nextSetBit(b + 1))
+            if (clobbers[b] || calls[b])
+                return -1;
+
+        long iterations = -1;
+        for (int t = loop.body.nextSetBit(0); t >= 0; t = loop.body.nextSetBit(t + 1)) {
+            // a test that leaves the loop on one side, in every iteration
+            Value test = tests[t];
+            if (test == null || test == Value.UNKNOWN || jumpBlocks[t] < 0 ||
+                innermostLoops[t] != loop || !dominatesLatches(t, loop))
+                continue;
+            int jump = (int)code[blockEnds[t]] & InstructionDecoder.JUMP_MASK;
+            boolean jumpStays = loop.body.get(jumpBlocks[t]);
+            boolean nextStays = t + 1 < blockStarts.length && loop.body.get(t + 1) &&
+                                contains(successors[t], t + 1);
+            if (jumpStays == nextStays)
+                continue;
+            int exitJumps = (jumpStays ? ~jump & InstructionDecoder.JUMP_MASK : jump);
+
+            // the tested variable that the loop changes
+            int counter = -1, update = -1;
+            long constant = test.constant;
+            boolean legal = true;
+            for (int i = 0; i < test.addresses.length && legal; i++) {
+                int address = test.addresses[i];
+                int writer = getWriter(loop, address);
+                if (writer == -2)
+                    legal = false;
+                else if (writer >= 0) {
+                    legal = (counter < 0);
+                    counter = i;
+                    update = writer;
+                }
+                else {
+                    Value value = getValueBefore(loop, address);
+                    legal = (value != null);
+                    if (legal)
+                        constant += (long)test.coefficients[i] * value.constant;
+                }
+            }
+            if (!legal || counter < 0 || !dominatesLatches(update, loop))
+                continue;
+
+            int address = test.addresses[counter];
+            Value updated = (Value)stores[update].get(new Integer(address));
+            Value start = getValueBefore(loop, address);
+            if (start == null || updated.addresses.length != 1 ||
+                updated.addresses[0] != address || updated.coefficients[0] != 1 ||
+                updated.constant == 0)
+                continue;
+
+            // the value of the test at the n'th time is a + b * n
+            long step = updated.constant;
+            long coefficient = test.coefficients[counter];
+            boolean updatedBefore = (update != t && dominates(update, t));
+            long a = constant + coefficient * (start.constant + (updatedBefore ? step : 0));
+            long b = coefficient * step;
+            long exit = getFirstExit(a, b, exitJumps);
+            if (exit >= 0 && (iterations < 0 || exit + 1 < iterations))
+                iterations = exit + 1;
+        }
+
+        return iterations;
+    }
+
+    // Returns the first n >= 0 at which the sign of a + b * n has one of the
+    // given jump bits, or -1 if there is none. Since the value is monotonic,
+    // its sign may change only at the first n at which it reaches zero or
+    // passes it, and at the n after it.
+    private static long getFirstExit(long a, long b, int jumps) {
+        long crossing;
+        if (b > 0)
+            crossing = (a >= 0 ? 0 : (-a + b - 1) / b);
+        else
+            crossing = (a <= 0 ? 0 : (a - b - 1) / -b);
+
+        long[] candidates = {0, crossing, crossing + 1};
+        for (int i = 0; i < candidates.length; i++)
+            if ((getSignJump(a + b * candidates[i]) & jumps) != 0)
+                return candidates[i];
+
+        return -1;
+    }
+
+    // Returns true if the given block dominates all the latches of the given loop.
+    private boolean dominatesLatches(int block, Loop loop) {
+        for (int i = 0; i < loop.latches.size(); i++)
+            if (!dominates(block, ((Integer)loop.latches.elementAt(i)).intValue()))
+                return false;
+        return true;
+    }
+
+    // Returns the only block of the given loop that writes to the given address,
+    // -1 if none does or -2 if more than one does.
+    private int getWriter(Loop loop, int address) {
+        int writer = -1;
+        for (int b = loop.body.nextSetBit(0); b >= 0; b = loop.body.nextSetBit(b + 1))
+            if (stores[b].get(new Integer(address)) != null) {
+                if (writer >= 0)
+                    return -2;
+                writer = b;
+            }
+
+        return writer;
+    }
+
+    // Returns the constant value of the given address before the given loop,
+    // written by the closest dominator of the loop that writes to it, or null
+    // if it isn't known.
+    private Value getValueBefore(Loop loop, int address) {
+        int root = dominators.length - 1;
+        for (int b = dominators[loop.header]; b >= 0 && b != root; b = dominators[b]) {
+            if (clobbers[b] || calls[b])
+                return null;
+            Value value = (Value)stores[b].get(new Integer(address));
+            if (value != null)
+                return (value != Value.UNKNOWN && value.addresses.length == 0 ? value : null);
+        }
+
+        return null;
+    }
+
+    // Returns the worst-case cycles of a path through the given region
+    // (the blocks of a loop or a routine) from the given entry block. The
+    // loops of the region other than the given loop (may be null) count as
+    // one node with the cycles of the whole loop, and back edges to the
+    // given loop's header end the path. Sets unbounded[0] if the result is
+    // only a lower bound.
+    private long getLongestPath(int entry, BitSet region, Loop loop, boolean[] unbounded) {
+        int count = blockStarts.length;
+        int[] nodes = new int[count];
+        int[] state = new int[count]; // 0 - new, 1 - in progress, 2 - done
+        int[] stack = new int[count], next = new int[count];
+        int[][] nodeSuccessors = new int[count][];
+        int nodeCount = 0, top = 0;
+
+        // the nodes in postorder
+        stack[0] = entry;
+        state[entry] = 1;
+        nodeSuccessors[entry] = getNodeSuccessors(entry, region, loop);
+        while (top >= 0) {
+            int node = stack[top];
+            if (next[node] < nodeSuccessors[node].length) {
+                int s = nodeSuccessors[node][next[node]++];
+                if (state[s] == 0) {
+                    state[s] = 1;
+                    nodeSuccessors[s] = getNodeSuccessors(s, region, loop);
+                    stack[++top] = s;
+                }
+                else if (state[s] == 1)
+                    // a cycle without a dominating header
+                    unbounded[0] = true;
+            }
+            else {
+                state[node] = 2;
+                nodes[nodeCount++] = node;
+                top--;
+            }
+        }
+
+        // the longest path to every node, in reverse postorder, along the
+        // edges that go forward in it
+        int[] orderIndex = new int[count];
+        for (int i = 0; i < nodeCount; i++)
+            orderIndex[nodes[i]] = nodeCount - 1 - i;
+        long[] cycles = new long[count];
+        long longest = 0;
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            int node = nodes[i];
+            Loop inner = (loopAt[node] != loop ? loopAt[node] : null);
+            if (inner != null)
+                unbounded[0] |= inner.unbounded;
+            else
+                unbounded[0] |= unclearCalls[node];
+            cycles[node] += (inner != null ? inner.cycles :
+                             blockEnds[node] - blockStarts[node] + 1);
+            longest = Math.max(longest, cycles[node]);
+
+            for (int j = 0; j < nodeSuccessors[node].length; j++) {
+                int s = nodeSuccessors[node][j];
+                if (orderIndex[s] > orderIndex[node] && cycles[s] < cycles[node])
+                    cycles[s] = cycles[node];
+            }
+        }
+
+        return longest;
+    }
+
+    // Returns the successors of the given node of a region: a block, or the
+    // header of a loop of the region (other than the given loop) that stands
+    // for the whole loop.
+    private int[] getNodeSuccessors(int node, BitSet region, Loop loop) {
+        Loop inner = (loopAt[node] != loop ? loopAt[node] : null);
+        BitSet blocks = new BitSet();
+        if (inner != null)
+            blocks = inner.body;
+        else
+            blocks.set(node);
+
+        BitSet result = new BitSet();
+        for (int b = blocks.nextSetBit(0); b >= 0; b = blocks.nextSetBit(b + 1))
+            for (int i = 0; i < successors[b].length; i++) {
+                int s = successors[b][i];
+                if (!region.get(s) || (loop != null && s == loop.header) ||
+                    (inner != null && inner.body.get(s)))
+                    continue;
+                int n = getNode(s, loop);
+                if (n != node && region.get(n))
+                    result.set(n);
+            }
+
+        int[] nodeSuccessors = new int[result.cardinality()];
+        for (int i = 0, s = result.nextSetBit(0); s >= 0; s = result.nextSetBit(s + 1))
+            nodeSuccessors[i++] = s;
+        return nodeSuccessors;
+    }
+
+    // Returns the node that stands for the given block in the region of the
+    // given loop (may be null): the header of the outermost loop in the region
+    // that contains it, or the block itself.
+    private int getNode(int block, Loop loop) {
+        Loop inner = innermostLoops[block];
+        if (inner == null || inner == loop)
+            return block;
+
+        while (inner.parent != loop && inner.parent != null)
+            inner = inner.parent;
+        return inner.parent == loop ? inner.header : block;
+    }
+
+    // Returns the worst-case cycles of the given routine, not counting the
+    // routines that it calls. Sets unbounded[0] if the result is only a lower bound.
+    private long getRoutineCycles(int routine, boolean[] unbounded) {
+        int first = blockOf[routineStarts[routine]];
+        int last = blockOf[getRoutineEnd(routine)];
+        BitSet region = new BitSet();
+        region.set(first, last + 1);
+
+        // the routine may start with a loop
+        int entry = getNode(first, null);
+        return getLongestPath(region.get(entry) ? entry : first, region, null, unbounded);
+    }
+
+    // Returns the last address of the given routine.
+    private int getRoutineEnd(int routine) {
+        return routine + 1 < routineStarts.length ? routineStarts[routine + 1] - 1 : length - 1;
+    }
+
+    // Returns the name of the given address, or "-" if it has none.
+    private String getName(int address) {
+        return names[address].length() > 0 ? names[address] : "-";
+    }
+
+    // Returns the text of the given cycles, followed by '+' if they are only a lower bound.
+    private static String getCyclesText(long cycles, boolean unbounded) {
+        return cycles + (unbounded ? "+" : "");
+    }
+
+    // Returns true if the given array contains the given value.
+    private static boolean contains(int[] array, int value) {
+        for (int i = 0; i < array.length; i++)
+            if (array[i] == value)
+                return true;
+        return false;
+    }
+
+    // Returns the Integers of the given vector as an array.
+    private static int[] toArray(Vector vector) {
+        int[] array = new int[vector.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = ((Integer)vector.elementAt(i)).intValue();
+        return array;
+    }
+}
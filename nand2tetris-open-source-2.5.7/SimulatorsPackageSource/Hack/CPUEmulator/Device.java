@@ -0,0 +1,49 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+/**
+ * A memory-mapped device: a range of RAM addresses whose writes have an effect
+ * besides storing the value (for example the screen). Devices are added to the
+ * RAM (see RAM.addDevice()), which notifies them of the writes to their addresses
+ * through a page table, so that writes to plain RAM cost no range checks.
+ */
+public interface Device {
+
+    /**
+     * Returns the first address of the device.
+     */
+    public int getStartAddress();
+
+    /**
+     * Returns the number of addresses of the device.
+     */
+    public int getSize();
+
+    /**
+     * Called after the given value was written into the given address of the
+     * device, at the given time (the number of instructions that the CPU
+     * executed before the one that wrote it).
+     */
+    public void valueWritten(int address, int value, long time);
+
+    /**
+     * Resets the device. Called when the RAM is reset.
+     */
+    public void reset();
+}
@@ -0,0 +1,446 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import Hack.Assembler.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * A coverage-guided fuzzer for Hack programs. Runs the program many times on
+ * mutated inputs - the values of a range of RAM addresses and, optionally, a
+ * timed sequence of keyboard keys - and looks for inputs that make the program
+ * fail (for example with an illegal address in A or by running past the
+ * last line).
+ * Every run starts from a snapshot of the machine right after the program was
+ * loaded, which is copied back into the machine's RAM and registers instead of
+ * loading the program again. The program's ROM image is shared by all the
+ * machines (see ROMImage).
+ * The ROM addresses that a run executed and the jumps that it took are its
+ * coverage. Inputs that cover something new are kept in the corpus and are
+ * mutated further. For every distinct error a test script that reproduces it
+ * is written.
+ * A run ends when the program fails, reaches an idle loop after all its keys
+ * were pressed (see CPU.isIdle()), or runs for the maximal time.
+ */
+public class Fuzzer {
+
+    // The number of instructions that a machine executes between checks
+    // for the end of its run
+    private static final long CHUNK_SIZE = 1 << 16;
+
+    // Values that often make programs fail
+    private static final int[] INTERESTING_VALUES = {
+        0, 1, -1, 2, 16, 255, 256, 1024, 16383, 16384, 24575, 24576, 32767, -32768};
+
+    // The keys of generated key sequences
+    private static final int[] KEYS = {
+        0, ' ', '0', '9', 'A', 'Z', Definitions.NEWLINE_KEY, Definitions.BACKSPACE_KEY,
+        Definitions.LEFT_KEY, Definitions.UP_KEY, Definitions.RIGHT_KEY, Definitions.DOWN_KEY,
+        Definitions.ESC_KEY};
+
+    /**
+     * A distinct error that was found, and the test script that reproduces it.
+     */
+    public static class Crash {
+
+        // The error message
+        private String message;
+
+        // The name of the test script
+        private String scriptFileName;
+
+        /**
+         * Returns the error message.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the name of the test script that reproduces the error.
+         */
+        public String getScriptFileName() {
+            return scriptFileName;
+        }
+    }
+
+    // An input to the program: the values of the input RAM range and the
+    // times (after the start) and codes of the keys
+    private static class Input {
+        int[] values;
+        long[] keyTimes;
+        int[] keys;
+    }
+
+    // The name of the program file
+    private String programFileName;
+
+    // The input RAM range and the number of keys in every input
+    private int inputStart, inputEnd, keyCount;
+
+    // The maximal time of a run
+    private long maxTime;
+
+    // The seed of the random mutations
+    private long seed;
+
+    // The number of addresses that the program occupies
+    private int programLength;
+
+    // A ROM with the program. It keeps the shared image of the program
+    // loaded while the fuzzer exists.
+    private ROM rom;
+
+    // The snapshot that every run starts from
+    private int[] snapshotRAM;
+    private int snapshotA, snapshotD, snapshotPC;
+
+    // The covered addresses and taken jumps
+    private boolean[] covered, jumped;
+
+    // The number of covered addresses and taken jumps
+    private int coverage;
+
+    // The inputs that covered something new
+    private Vector corpus = new Vector();
+
+    // The crashes that were found, and their error messages without the
+    // values of the registers (see getErrorKind)
+    private Vector crashes = new Vector();
+    private Hashtable crashKinds = new Hashtable();
+
+    // The number of the last test script that was written
+    private int crashNumber;
+
+    // The number of runs
+    private AtomicLong executions = new AtomicLong();
+
+    /**
+     * Constructs a new fuzzer of the given program file (HACK, HACKB or ASM),
+     * which mutates the RAM addresses inputStart..inputEnd-1 and a sequence of
+     * keyCount keys, and runs the program for at most maxTime instructions.
+     * The mutations are generated from the given seed.
+     * Throws ProgramException if the program can't be loaded or the input
+     * range is illegal.
+     */
+    public Fuzzer(String programFileName, int inputStart, int inputEnd, int keyCount,
+                  long maxTime, long seed) throws ProgramException {
+        if (inputStart < 0 || inputEnd > Definitions.RAM_SIZE || inputStart > inputEnd)
+            throw new ProgramException("Illegal input range: " + inputStart + ".." +
+                                       (inputEnd - 1));
+
+        this.programFileName = programFileName;
+        this.inputStart = inputStart;
+        this.inputEnd = inputEnd;
+        this.keyCount = keyCount;
+        this.maxTime = maxTime;
+        this.seed = seed;
+
+        rom = new ROM(null);
+        rom.reset();
+        rom.loadProgram(programFileName);
+
+        int[] program = rom.getContents();
+        programLength = program.length;
+        while (programLength > 0 && program[programLength - 1] == HackAssemblerTranslator.NOP)
+            programLength--;
+        covered = new boolean[programLength];
+        jumped = new boolean[programLength];
+
+        CPU cpu = CPUFarm.createMachine(programFileName);
+        cpu.initProgram();
+        snapshotRAM = (int[])cpu.getRAM().getContents().clone();
+        snapshotA = cpu.getA().get();
+        snapshotD = cpu.getD().get();
+        snapshotPC = cpu.getPC().get();
+
+        Input empty = new Input();
+        empty.values = new int[inputEnd - inputStart];
+        empty.keyTimes = new long[0];
+        empty.keys = new int[0];
+        corpus.addElement(empty);
+    }
+
+    /**
+     * Runs the program the given number of times on mutated inputs, using the
+     * given number of threads. The test scripts that reproduce the errors are
+     * written into the given directory.
+     * Throws InterruptedException if the calling thread is interrupted while
+     * waiting for the runs to end.
+     */
+    public void run(final long count, int threadCount, final String directory)
+     throws ProgramException, InterruptedException {
+        final long end = executions.get() + count;
+        final Vector errors = new Vector();
+
+        Thread[] threads = new Thread[Math.max(1, threadCount)];
+        for (int i = 0; i < threads.length; i++) {
+            final CPU cpu = CPUFarm.createMachine(programFileName);
+            final Profiler profiler = new Profiler(Definitions.ROM_SIZE);
+            final Random random = new Random(seed + executions.get() + i);
+            cpu.setProfiler(profiler);
+
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (executions.getAndIncrement() < end) {
+                            Input input = mutate(random);
+                            String error = runInput(cpu, input);
+                            checkCoverage(profiler, input);
+                            if (error != null)
+                                addCrash(input, error, cpu.getTime(), directory);
+                        }
+                    } catch (Throwable t) {
+                        errors.addElement(t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        try {
+            for (int i = 0; i < threads.length; i++)
+                threads[i].join();
+        } finally {
+            // make the threads stop if the wait was interrupted
+            executions.set(end);
+        }
+
+        executions.set(end);
+        if (errors.size() > 0)
+            throw new RuntimeException((Throwable)errors.elementAt(0));
+    }
+
+    /**
+     * Returns the number of runs so far.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Returns the number of covered addresses and taken jumps so far.
+     */
+    public synchronized int getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Returns the number of inputs in the corpus.
+     */
+    public int getCorpusSize() {
+        return corpus.size();
+    }
+
+    /**
+     * Returns the crashes that were found so far.
+     */
+    public Crash[] getCrashes() {
+        synchronized (crashes) {
+            Crash[] result = new Crash[crashes.size()];
+            crashes.copyInto(result);
+            return result;
+        }
+    }
+
+    // Returns a mutation of a random input of the corpus.
+    private Input mutate(Random random) {
+        Input parent = (Input)corpus.elementAt(random.nextInt(corpus.size()));
+        Input input = new Input();
+        input.values = (int[])parent.values.clone();
+        input.keyTimes = (long[])parent.keyTimes.clone();
+        input.keys = (int[])parent.keys.clone();
+
+        if (input.keys.length < keyCount) {
+            // the first inputs get a random key sequence
+            input.keyTimes = new long[keyCount];
+            input.keys = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                input.keyTimes[i] = (long)(random.nextDouble() * maxTime);
+                input.keys[i] = KEYS[random.nextInt(KEYS.length)];
+            }
+            Arrays.sort(input.keyTimes);
+        }
+
+        int mutations = 1 + random.nextInt(4);
+        for (int i = 0; i < mutations; i++) {
+            if (keyCount > 0 && (input.values.length == 0 || random.nextInt(4) == 0)) {
+                int j = random.nextInt(keyCount);
+                if (random.nextBoolean())
+                    input.keys[j] = KEYS[random.nextInt(KEYS.length)];
+                else {
+                    input.keyTimes[j] = (long)(random.nextDouble() * maxTime);
+                    Arrays.sort(input.keyTimes);
+                }
+            }
+            else if (input.values.length > 0) {
+                int j = random.nextInt(input.values.length);
+                int value = input.values[j];
+                switch (random.nextInt(5)) {
+                    case 0:
+                        value ^= 1 << random.nextInt(16);
+                        break;
+                    case 1:
+                        value += random.nextInt(33) - 16;
+                        break;
+                    case 2:
+                        value = INTERESTING_VALUES[random.nextInt(INTERESTING_VALUES.length)];
+                        break;
+                    case 3:
+                        value = random.nextInt(0x10000);
+                        break;
+                    default:
+                        Input other = (Input)corpus.elementAt(random.nextInt(corpus.size()));
+                        value = other.values[j];
+                }
+                // the values are 16-bit two's complement numbers
+                input.values[j] = (short)value;
+            }
+        }
+
+        return input;
+    }
+
+    // Runs the program on the given machine with the given input, starting from
+    // the snapshot. Returns the error message if the program failed, or null.
+    private String runInput(CPU cpu, Input input) {
+        cpu.restoreSnapshot(snapshotRAM, snapshotA, snapshotD, snapshotPC);
+        RAM ram = cpu.getRAM();
+        ram.setValuesAt(inputStart, input.values, 0, input.values.length);
+        cpu.getProfiler().clear(programLength);
+
+        try {
+            int nextKey = 0;
+            while (cpu.getTime() < maxTime) {
+                // through the RAM, so that the cpu sees the change (see CPU.isIdle())
+                while (nextKey < input.keys.length && input.keyTimes[nextKey] <= cpu.getTime())
+                    ram.setValueAt(Definitions.KEYBOARD_ADDRESS, input.keys[nextKey++], true);
+                if (nextKey == input.keys.length && cpu.isIdle())
+                    break;
+
+                long end = Math.min(maxTime, nextKey < input.keys.length ?
+                                             input.keyTimes[nextKey] : Long.MAX_VALUE);
+                cpu.executeInstructions(Math.min(CHUNK_SIZE, end - cpu.getTime()));
+            }
+        } catch (ProgramException pe) {
+            return pe.getMessage();
+        }
+
+        return null;
+    }
+
+    // Adds the coverage of the last run of the given profiler to the total
+    // coverage, and adds the given input to the corpus if it covered something new.
+    private void checkCoverage(Profiler profiler, Input input) {
+        long[] counts = profiler.getExecutions(programLength);
+        boolean isNew = false;
+
+        synchronized (this) {
+            for (int i = 0; i < programLength; i++) {
+                if (counts[i] > 0 && !covered[i]) {
+                    covered[i] = true;
+                    coverage++;
+                    isNew = true;
+                }
+                if (!jumped[i] && profiler.isJumpTaken(i)) {
+                    jumped[i] = true;
+                    coverage++;
+                    isNew = true;
+                }
+            }
+        }
+
+        if (isNew)
+            corpus.addElement(input);
+    }
+
+    // Records the given error of the given input, which happened at the given
+    // time, and writes a test script that reproduces it, unless the same error
+    // at the same line was already found.
+    private void addCrash(Input input, String error, long time, String directory)
+     throws IOException {
+        Crash crash = new Crash();
+        int number;
+        synchronized (crashes) {
+            String kind = getErrorKind(error);
+            if (crashKinds.get(kind) != null)
+                return;
+            crashKinds.put(kind, error);
+            crash.message = error;
+
+            // scripts of earlier fuzzers are not overwritten
+            do {
+                crashNumber++;
+            } while (new File(getCrashFileName(directory, crashNumber, ".tst")).exists());
+            number = crashNumber;
+            crash.scriptFileName = getCrashFileName(directory, number, ".tst");
+            crashes.addElement(crash);
+        }
+
+        String keysFileName = getCrashFileName(directory, number, ".keys");
+        PrintWriter script = new PrintWriter(new FileWriter(crash.scriptFileName));
+        try {
+            script.println("// Reproduces: " + error);
+            script.println("load " + getRelativePath(directory, programFileName) + ",");
+            for (int i = 0; i < input.values.length; i++)
+                if (input.values[i] != snapshotRAM[inputStart + i])
+                    script.println("set RAM[" + (inputStart + i) + "] " + input.values[i] + ",");
+            if (input.keys.length > 0) {
+                PrintWriter keys = new PrintWriter(new FileWriter(keysFileName));
+                try {
+                    for (int i = 0; i < input.keys.length; i++)
+                        keys.println(input.keyTimes[i] + " " + input.keys[i]);
+                } finally {
+                    keys.close();
+                }
+                script.println("keyboard " + new File(keysFileName).getName() + ",");
+            }
+            script.println("ticktock " + (time + 1) + ";");
+        } finally {
+            script.close();
+        }
+    }
+
+    // Returns the given error message without the values of the registers
+    // (for example "A=-5"), so that the same error at the same line is found once.
+    private static String getErrorKind(String error) {
+        return error.replaceAll("=-?[0-9]+", "=");
+    }
+
+    // Returns the name of the file of the crash with the given number in
+    // the given directory, with the given extension.
+    private String getCrashFileName(String directory, int number, String extension) {
+        String name = new File(programFileName).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+            name = name.substring(0, dot);
+
+        return new File(directory, name + "-crash-" + number + extension).getPath();
+    }
+
+    // Returns the path of the given file relative to the given directory.
+    private static String getRelativePath(String directory, String fileName) {
+        return new File(directory).getAbsoluteFile().toPath().normalize()
+            .relativize(new File(fileName).getAbsoluteFile().toPath().normalize())
+            .toString().replace(File.separatorChar, '/');
+    }
+}
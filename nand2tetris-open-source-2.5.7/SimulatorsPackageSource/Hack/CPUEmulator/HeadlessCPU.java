@@ -0,0 +1,389 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Controller.*;
+import Hack.ComputerParts.*;
+import Hack.Utilities.*;
+
+/**
+ * A CPU for emulators that have no GUI. Executes the program directly on the
+ * RAM & ROM arrays instead of sending every value through the bus, the ALU
+ * and the register computer parts.
+ * While the program runs, A, D & PC are kept in plain int fields. They are
+ * written back into the register computer parts only when one of the registers
+ * is requested (for example when a script reads or sets a variable), and are
+ * read again from them before the next instruction is executed.
+ * Instructions are taken from the ROM's table of decoded micro-ops and are
+ * interpreted one basic block at a time. Blocks are not compiled, since
+ * there is no bytecode generator in this package.
+ * The ALU computer part is not updated by this CPU.
+ */
+public class HeadlessCPU extends CPU
+{
+    // ALU control bits (zx, nx, zy, ny, f, no)
+    private static final int ZERO_X = 0x20;
+    private static final int NEGATE_X = 0x10;
+    private static final int ZERO_Y = 0x08;
+    private static final int NEGATE_Y = 0x04;
+    private static final int ADD = 0x02;
+    private static final int NEGATE_OUT = 0x01;
+
+    // The values of the A, D & PC registers
+    private int a, d, pc;
+
+    // If true, a, d & pc hold the current register values and the register
+    // computer parts may be out of date.
+    private boolean cached;
+
+    // The ALU control bits of the last legal exp that was computed.
+    private int aluControl;
+
+    /**
+     * Constructs a new headless cpu with the given ROM, RAM, A, D, PC & ALU.
+     * The RAM should not have a screen GUI or memory segments.
+     */
+    public HeadlessCPU(RAM ram, ROM rom, PointerAddressRegisterAdapter A, Register D,
+                       PointerAddressRegisterAdapter PC, ALU alu, Bus bus) {
+        super(ram, rom, A, D, PC, alu, bus);
+    }
+
+    /**
+     * Returns the A register.
+     */
+    public Register getA() {
+        writeRegisters();
+        return A;
+    }
+
+    /**
+     * Returns the D register.
+     */
+    public Register getD() {
+        writeRegisters();
+        return D;
+    }
+
+    /**
+     * Returns the PC register.
+     */
+    public Register getPC() {
+        writeRegisters();
+        return PC;
+    }
+
+    /**
+     * Returns the comp function of the last legal exp that was computed.
+     */
+    protected int getALUControl() {
+        return aluControl;
+    }
+
+    /**
+     * Sets the comp function that an exp with an unknown comp function computes.
+     */
+    protected void setALUControl(int control) {
+        aluControl = control;
+    }
+
+    /**
+     * Restarts the program from the beginning.
+     */
+    public void initProgram() {
+        cached = false;
+        super.initProgram();
+    }
+
+    /**
+     * Executes the current instruction (ROM at pc).
+     * Throws ProgramException if the current instruction is illegal or
+     * if it causes an illegal effect (read/write from M when A is an illegal
+     * address or jump when A is an illegal address).
+     */
+    public void executeInstruction() throws ProgramException {
+        executeInstructions(1);
+    }
+
+    /**
+     * Executes the given number of instructions, starting at the current
+     * instruction (ROM at pc).
+     * The program is executed one basic block at a time (see ROM.getBlockLengths()),
+     * so the instruction count and the program counter range are checked
+     * once per block rather than once per instruction. Once the program is
+     * found to be in an idle loop (see CPU.isIdle()), the remaining whole
+     * iterations of the loop are skipped and only added to the time.
+     * When profiling, the executions are counted once per block, and a jump
+     * to the next address is counted as not taken. The executions of the
+     * skipped iterations are added too, unless the loop has too many blocks,
+     * in which case its iterations are not skipped.
+     * Stops early after an instruction that writes to a watched RAM address
+     * or leads to a watched program address. Blocks that contain a watched
+     * program address are split before it, so steps that touch no watched
+     * state are not checked.
+     * While the history is recorded or addresses are watched, idle loops
+     * are not skipped. While the history is recorded, the instructions are
+     * executed one at a time.
+     * Writes to the addresses of the RAM's devices are passed to them
+     * (see RAM.getDevicePages()), without going through the RAM.
+     * Throws ProgramException if one of the instructions is illegal or causes
+     * an illegal effect. In that case, the registers, the RAM and the time
+     * are left exactly as after the last legal instruction.
+     */
+    public void executeInstructions(long count) throws ProgramException {
+        History history = this.history;
+        if (history != null)
+            history.beforeExecution();
+
+        if (!cached)
+            readRegisters();
+        if (M.getWriteCount() != ramWriteCount)
+            clearLoops();
+
+        long[] code = rom.getDecodedContents();
+        int[] blockLengths = rom.getBlockLengths();
+        int[] ram = M.getContents();
+        int ramSize = ram.length;
+        int a = this.a, d = this.d, pc = this.pc;
+        int control = aluControl;
+        long hash = ramHash;
+        Profiler profiler = this.profiler;
+        int[] watchedRAM = M.getWatchedAddresses();
+        Device[] devices = M.getDevicePages();
+        int[] watchedPCs = this.watchedPCs;
+        boolean watchHit = false;
+
+        // idle loops are skipped only when no step of them needs to be seen
+        boolean skipIdle = (history == null && watchedRAM == null && watchedPCs == null);
+
+        // the state that the history needs to undo an instruction
+        int oldA = 0, oldD = 0, writtenAddress = -1, writtenValue = 0;
+
+        // the instructions before blockStart were executed
+        long executed = 0;
+        int blockStart = pc;
+
+        try {
+            while (executed < count && !watchHit) {
+                // the last instruction of the block (or of the requested count)
+                int last = pc + (int)Math.min(blockLengths[pc], count - executed) - 1;
+                if (watchedPCs != null)
+                    last = getLastBeforeWatched(watchedPCs, pc, last);
+                if (history != null) {
+                    last = pc;
+                    oldA = a;
+                    oldD = d;
+                    writtenAddress = -1;
+                }
+
+                while (true) {
+                    long op = code[pc];
+                    int instruction = (int)op;
+                    int nextPC = pc + 1;
+                    int type = InstructionDecoder.getType(op);
+
+                    if (type == InstructionDecoder.TYPE_A)
+                        a = (int)(op >> 32);
+                    else if (type == InstructionDecoder.TYPE_C) {
+                        int comp = InstructionDecoder.getComp(op);
+                        if (comp != InstructionDecoder.COMP_KEEP)
+                            control = comp;
+
+                        int y;
+                        if ((instruction & InstructionDecoder.OPERAND_M) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Expression involves M but A=" +
+                                                           a + " is an illegal memory address.");
+                            y = busValue(ram[a]);
+                        }
+                        else
+                            y = busValue(a);
+
+                        int out = compute(control, busValue(d), y);
+                        int value = busValue(out);
+
+                        if ((instruction & InstructionDecoder.DEST_M) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Destination is M but A=" +
+                                                           a + " is an illegal memory address.");
+                            int oldValue = ram[a];
+                            if (history != null) {
+                                writtenAddress = a;
+                                writtenValue = oldValue;
+                            }
+                            ram[a] = value;
+                            hash += writeHash(a, value - oldValue);
+
+                            if (devices != null) {
+                                Device device = devices[a >>> RAM.PAGE_SHIFT];
+                                if (device != null) {
+                                    device.valueWritten(a, value, time + executed + (pc - blockStart));
+                                    clearLoops();
+                                }
+                            }
+
+                            if (watchedRAM != null && RAM.isWatched(watchedRAM, a)) {
+                                watchHit = true;
+                                last = pc;
+                            }
+                        }
+                        if ((instruction & InstructionDecoder.DEST_A) != 0)
+                            a = value;
+                        if ((instruction & InstructionDecoder.DEST_D) != 0)
+                            d = value;
+
+                        // only the last instruction of a block has jump bits
+                        if ((out < 0 && (instruction & InstructionDecoder.JUMP_NEGATIVE) != 0) ||
+                            (out == 0 && (instruction & InstructionDecoder.JUMP_ZERO) != 0) ||
+                            (out > 0 && (instruction & InstructionDecoder.JUMP_POSITIVE) != 0)) {
+                            if (a < 0 || a >= Definitions.ROM_SIZE)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Jump requested but A=" + a +
+                                                           " is an illegal program address.");
+                            nextPC = busValue(a);
+                        }
+                    }
+                    else if (type == InstructionDecoder.TYPE_ILLEGAL)
+                        throw new ProgramException("At line " + pc + ": Illegal instruction");
+
+                    if (pc == last) {
+                        if (nextPC < 0 || nextPC >= Definitions.ROM_SIZE)
+                            throw new ProgramException("At line " + pc +
+                                                       ": Can't continue past last line");
+                        executed += pc - blockStart + 1;
+
+                        if (watchedPCs != null && RAM.isWatched(watchedPCs, nextPC))
+                            watchHit = true;
+
+                        if (history != null &&
+                            history.record(oldA, oldD, pc, writtenAddress, writtenValue))
+                            history.takeSnapshot(ram, a, d, nextPC, time + executed);
+
+                        if (profiler != null) {
+                            profiler.addExecutions(blockStart, pc, 1);
+                            if (nextPC != pc + 1)
+                                profiler.addJump(pc, nextPC, 1);
+                        }
+
+                        if (loopBlocks >= 0)
+                            addLoopBlock(blockStart, pc, nextPC);
+
+                        if (nextPC <= pc && checkLoop(nextPC, a, d, control, hash,
+                                                      time + executed) && skipIdle)
+                            executed += skipIdleLoop(count - executed);
+
+                        pc = nextPC;
+                        blockStart = pc;
+                        break;
+                    }
+
+                    pc = nextPC;
+                }
+            }
+        } finally {
+            this.a = a;
+            this.d = d;
+            this.pc = pc;
+            aluControl = control;
+            ramHash = hash;
+            time += executed + (pc - blockStart);
+
+            // the instructions of the block that were executed before an error
+            if (profiler != null && pc > blockStart)
+                profiler.addExecutions(blockStart, pc - 1, 1);
+        }
+    }
+
+    // Skips the whole iterations of the idle loop that fit in the given number
+    // of steps, adding their executions to the profile. Returns the number of
+    // skipped steps.
+    private long skipIdleLoop(long steps) {
+        long iterations = steps / idlePeriod;
+        if (iterations == 0 || (profiler != null && idleBlocks < 0))
+            return 0;
+
+        if (profiler != null)
+            for (int i = 0; i < idleBlocks; i++) {
+                profiler.addExecutions(loopBlockStarts[i], loopBlockEnds[i], iterations);
+                if (loopBlockTargets[i] != loopBlockEnds[i] + 1)
+                    profiler.addJump(loopBlockEnds[i], loopBlockTargets[i], iterations);
+            }
+
+        return iterations * idlePeriod;
+    }
+
+    // Returns the last address from start to last (including) that is followed
+    // by no watched address in the given bitmap: the last address before the first
+    // watched address after start.
+    private static int getLastBeforeWatched(int[] watched, int start, int last) {
+        for (int i = start + 1; i <= last; i++)
+            if (RAM.isWatched(watched, i))
+                return i - 1;
+
+        return last;
+    }
+
+    // Reads the register values from the register computer parts.
+    // Since they may have been changed from outside, a loop that was in
+    // progress is no longer known to repeat itself.
+    private void readRegisters() {
+        a = A.getValueAt(0);
+        d = D.getValueAt(0);
+        pc = PC.getValueAt(0);
+        cached = true;
+        clearLoops();
+    }
+
+    // Writes the cached register values back into the register computer parts.
+    private void writeRegisters() {
+        if (cached) {
+            A.setValueAt(0, a, true);
+            D.setValueAt(0, d, true);
+            PC.setValueAt(0, pc, true);
+            cached = false;
+        }
+    }
+
+    // Returns the given value as it would arrive at its target through the bus.
+    private static int busValue(int value) {
+        return (value & 0xc0000000) == 0x40000000 ? value - 0x40000000 : value;
+    }
+
+    // Computes the ALU function with the given control bits (or extended
+    // function) on the given inputs.
+    private static int compute(int control, int x, int y) {
+        if ((control & InstructionDecoder.COMP_EXTENDED) != 0)
+            return InstructionDecoder.computeExtended(control & ~InstructionDecoder.COMP_EXTENDED,
+                                                      x, y);
+
+        if ((control & ZERO_X) != 0)
+            x = 0;
+        if ((control & ZERO_Y) != 0)
+            y = 0;
+        if ((control & NEGATE_X) != 0)
+            x = ~x;
+        if ((control & NEGATE_Y) != 0)
+            y = ~y;
+        int result = (control & ADD) != 0 ? x + y : x & y;
+        if ((control & NEGATE_OUT) != 0)
+            result = ~result;
+
+        return result;
+    }
+}
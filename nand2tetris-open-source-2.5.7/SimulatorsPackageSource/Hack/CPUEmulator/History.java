@@ -0,0 +1,339 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Controller.*;
+
+/**
+ * The execution history of a CPU, for running the program backwards.
+ * Holds a bounded ring buffer of undo records - one for every executed
+ * instruction (the values of A, D & PC before it and the address and old value
+ * of the RAM cell that it wrote) and one for every change that was made from
+ * outside the program (by a script) - and full snapshots of the RAM and the
+ * registers, taken every given number of instructions and before the first
+ * instruction after a change from outside.
+ * Going back to a time that is still covered by the ring buffer undoes the
+ * records. Going back further restores the last snapshot before that time and
+ * executes the program from it again, which also refills the ring buffer.
+ * Going forward again restores the last snapshot before the time, so the
+ * changes from outside are made again. The snapshots after the current time
+ * are dropped once the program is changed or executed in another way.
+ * When the snapshots fill their share of the memory, every second periodic
+ * snapshot is dropped and the interval is doubled, so the snapshots always
+ * cover the whole history.
+ * The records are kept in int arrays, so recording allocates no objects.
+ * The ALU's last command is not recorded.
+ */
+public class History {
+
+    // The number of bytes of an undo record
+    private static final int RECORD_SIZE = 5 * 4 + 1;
+
+    // The cpu
+    private CPU cpu;
+
+    // The undo records ring buffer: the values of A, D & PC before the instruction
+    // or change, the address (or -1) and old value of the RAM cell that it
+    // changed, and whether it was a change from outside the program.
+    private int[] as, ds, pcs, addresses, values;
+    private boolean[] external;
+
+    // The index of the next record and the number of records
+    private int next, size;
+
+    // The time before the oldest instruction record
+    private long startTime;
+
+    // The time of the last change from outside the program whose snapshot
+    // was dropped: the program can't be executed again across it
+    private long droppedTime;
+
+    // The snapshots, ordered by time. Arrays of dropped snapshots are kept
+    // after the last snapshot for reuse.
+    private int[][] snapshotRAMs;
+    private int[] snapshotAs, snapshotDs, snapshotPCs;
+    private long[] snapshotTimes;
+    private boolean[] snapshotExternal;
+    private int snapshots;
+
+    // The number of instructions between periodic snapshots
+    private long interval;
+
+    // The number of instructions since the last snapshot
+    private long sinceSnapshot;
+
+    // True if a snapshot should be taken before the next instruction
+    private boolean snapshotPending;
+
+    // True while goTo() executes the program
+    private boolean replaying;
+
+    /**
+     * Constructs a new history of the given cpu that takes a snapshot every given
+     * number of instructions and uses about the given number of bytes (but
+     * at least enough for two snapshots and one interval of undo records).
+     */
+    public History(CPU cpu, long memorySize, int interval) {
+        this.cpu = cpu;
+        this.interval = interval;
+
+        int capacity = (int)Math.min(Integer.MAX_VALUE,
+                                     Math.max(interval, memorySize / 2 / RECORD_SIZE));
+        as = new int[capacity];
+        ds = new int[capacity];
+        pcs = new int[capacity];
+        addresses = new int[capacity];
+        values = new int[capacity];
+        external = new boolean[capacity];
+
+        long snapshotSize = 4L * (cpu.getRAM().getSize() + 5);
+        int snapshotCapacity = (int)Math.min(Integer.MAX_VALUE,
+                                             Math.max(2, memorySize / 2 / snapshotSize));
+        snapshotRAMs = new int[snapshotCapacity][];
+        snapshotAs = new int[snapshotCapacity];
+        snapshotDs = new int[snapshotCapacity];
+        snapshotPCs = new int[snapshotCapacity];
+        snapshotTimes = new long[snapshotCapacity];
+        snapshotExternal = new boolean[snapshotCapacity];
+
+        reset();
+    }
+
+    /**
+     * Clears the history. It starts again before the next instruction.
+     */
+    public void reset() {
+        next = 0;
+        size = 0;
+        startTime = cpu.getTime();
+        droppedTime = startTime;
+        snapshots = 0;
+        sinceSnapshot = 0;
+        snapshotPending = true;
+    }
+
+    /**
+     * Returns the earliest time that the cpu can go back to.
+     */
+    public long getStartTime() {
+        return (snapshots > 0 ? Math.max(Math.min(snapshotTimes[0], startTime), droppedTime)
+                              : cpu.getTime());
+    }
+
+    /**
+     * Called by the cpu before it executes instructions. Takes the snapshot that
+     * is pending since the history was reset or changed from outside the program.
+     */
+    public void beforeExecution() {
+        if (!replaying)
+            dropFutureSnapshots();
+
+        if (snapshotPending)
+            takeSnapshot(cpu.getRAM().getContents(), cpu.getA().get(), cpu.getD().get(),
+                         cpu.getPC().get(), cpu.getTime(), true);
+    }
+
+    /**
+     * Records an executed instruction: the values of A, D & PC before it, and the
+     * address (-1 if none) and old value of the RAM cell that it wrote.
+     * Returns true if a periodic snapshot should now be taken with takeSnapshot().
+     */
+    public boolean record(int a, int d, int pc, int address, int value) {
+        add(a, d, pc, address, value, false);
+        return ++sinceSnapshot >= interval;
+    }
+
+    /**
+     * Records a change from outside the program to the registers (address -1)
+     * or to the given RAM address, before it is made.
+     */
+    public void recordExternal(int address) {
+        dropFutureSnapshots();
+        add(cpu.getA().get(), cpu.getD().get(), cpu.getPC().get(), address,
+            address >= 0 ? cpu.getRAM().getValueAt(address) : 0, true);
+        snapshotPending = true;
+    }
+
+    /**
+     * Takes a periodic snapshot of the given RAM contents, registers and time.
+     */
+    public void takeSnapshot(int[] ram, int a, int d, int pc, long time) {
+        takeSnapshot(ram, a, d, pc, time, false);
+    }
+
+    // Takes a snapshot of the given RAM contents, registers and time, unless
+    // there is a later snapshot (when the program is executed again) or
+    // a snapshot of a change from outside at the same time.
+    private void takeSnapshot(int[] ram, int a, int d, int pc, long time, boolean isExternal) {
+        sinceSnapshot = 0;
+        snapshotPending = false;
+
+        int i;
+        if (snapshots > 0 && (snapshotTimes[snapshots - 1] > time ||
+                              (snapshotTimes[snapshots - 1] == time &&
+                               snapshotExternal[snapshots - 1] && !isExternal)))
+            return;
+        else if (snapshots > 0 && snapshotTimes[snapshots - 1] == time)
+            i = snapshots - 1;
+        else {
+            if (snapshots == snapshotTimes.length)
+                dropSnapshots();
+            i = snapshots++;
+        }
+
+        if (snapshotRAMs[i] == null)
+            snapshotRAMs[i] = new int[ram.length];
+        System.arraycopy(ram, 0, snapshotRAMs[i], 0, ram.length);
+        snapshotAs[i] = a;
+        snapshotDs[i] = d;
+        snapshotPCs[i] = pc;
+        snapshotTimes[i] = time;
+        snapshotExternal[i] = isExternal;
+    }
+
+    /**
+     * Goes back or forward to the given time. The changes from outside the program
+     * that were made at the given time are kept.
+     * Throws ProgramException if the time is before getStartTime() or if the
+     * program fails when it is executed again.
+     */
+    public void goTo(long time) throws ProgramException {
+        if (time < getStartTime())
+            throw new ProgramException("The history starts at time " + getStartTime());
+
+        if (snapshotPending)
+            takeSnapshot(cpu.getRAM().getContents(), cpu.getA().get(), cpu.getD().get(),
+                         cpu.getPC().get(), cpu.getTime(), true);
+
+        int i = getLastSnapshot(time);
+        if ((time < cpu.getTime() && time < startTime) ||
+            (time > cpu.getTime() && snapshotTimes[i] > cpu.getTime() && snapshotTimes[i] <= time)) {
+            // restore the last snapshot at or before the time
+            next = 0;
+            size = 0;
+            startTime = snapshotTimes[i];
+            cpu.getRAM().setContents(snapshotRAMs[i], 0);
+            setRegisters(snapshotAs[i], snapshotDs[i], snapshotPCs[i]);
+            cpu.time = snapshotTimes[i];
+        }
+
+        // undo the records after the time
+        while (cpu.getTime() > time) {
+            next = (next == 0 ? as.length : next) - 1;
+            size--;
+            if (addresses[next] >= 0)
+                cpu.getRAM().setValueAt(addresses[next], values[next], true);
+            setRegisters(as[next], ds[next], pcs[next]);
+            if (!external[next])
+                cpu.time--;
+        }
+
+        sinceSnapshot = cpu.getTime() - snapshotTimes[getLastSnapshot(cpu.getTime())];
+        cpu.clearLoops();
+
+        // execute the program forward to the time
+        Profiler profiler = cpu.getProfiler();
+        cpu.setProfiler(null);
+        replaying = true;
+        try {
+            while (cpu.getTime() < time)
+                cpu.executeInstructions(time - cpu.getTime());
+        } finally {
+            replaying = false;
+            cpu.setProfiler(profiler);
+        }
+    }
+
+    // Returns the index of the last snapshot at or before the given time.
+    private int getLastSnapshot(long time) {
+        int i = snapshots - 1;
+        while (i > 0 && snapshotTimes[i] > time)
+            i--;
+
+        return i;
+    }
+
+    // Drops the snapshots after the current time: the program is about to
+    // be changed or executed in another way.
+    private void dropFutureSnapshots() {
+        while (snapshots > 1 && snapshotTimes[snapshots - 1] > cpu.getTime())
+            snapshots--;
+    }
+
+    // Adds an undo record, overwriting the oldest one if the ring buffer is full.
+    private void add(int a, int d, int pc, int address, int value, boolean isExternal) {
+        if (size == as.length) {
+            if (!external[next])
+                startTime++;
+        }
+        else
+            size++;
+
+        as[next] = a;
+        ds[next] = d;
+        pcs[next] = pc;
+        addresses[next] = address;
+        values[next] = value;
+        external[next] = isExternal;
+        next = (next + 1 == as.length ? 0 : next + 1);
+    }
+
+    // Makes room for a snapshot: drops every second periodic snapshot (except
+    // for the first snapshot) and doubles the interval. If all the snapshots are
+    // of changes from outside the program, drops the first one, since the
+    // program can't be executed again across a change that has no snapshot.
+    private void dropSnapshots() {
+        int kept = 1;
+        for (int i = 1; i < snapshots; i++)
+            if (snapshotExternal[i] || i % 2 == 0)
+                moveSnapshot(i, kept++);
+
+        if (kept == snapshots) {
+            if (snapshotExternal[0])
+                droppedTime = snapshotTimes[0];
+            for (int i = 1; i < snapshots; i++)
+                moveSnapshot(i, i - 1);
+            kept--;
+        }
+        else
+            interval *= 2;
+
+        snapshots = kept;
+    }
+
+    // Moves the snapshot at the given index to the given (lower or equal) index.
+    // The RAM arrays are swapped so that the array of the overwritten snapshot
+    // is kept for reuse.
+    private void moveSnapshot(int from, int to) {
+        int[] ram = snapshotRAMs[to];
+        snapshotRAMs[to] = snapshotRAMs[from];
+        snapshotRAMs[from] = ram;
+        snapshotAs[to] = snapshotAs[from];
+        snapshotDs[to] = snapshotDs[from];
+        snapshotPCs[to] = snapshotPCs[from];
+        snapshotTimes[to] = snapshotTimes[from];
+        snapshotExternal[to] = snapshotExternal[from];
+    }
+
+    // Sets the registers of the cpu.
+    private void setRegisters(int a, int d, int pc) {
+        cpu.getA().store(a);
+        cpu.getD().store(d);
+        cpu.getPC().store(pc);
+    }
+}
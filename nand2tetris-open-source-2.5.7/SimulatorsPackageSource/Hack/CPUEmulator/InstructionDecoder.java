@@ -0,0 +1,288 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Assembler.*;
+
+/**
+ * Decodes machine language instructions into micro-ops, which are kept by the
+ * ROM in a table parallel to the program.
+ * A micro-op is a long value. Its low 32 bits contain the instruction type,
+ * the comp function (the ALU control bits zx, nx, zy, ny, f, no, or an extended
+ * function - see HackAssemblerTranslator.setExtendedInstructionSet()), the A/M
+ * operand select, the destination mask and the jump condition. Its high 32 bits
+ * contain the value that an A-instruction loads into the A register.
+ */
+public class InstructionDecoder {
+
+    /**
+     * Instruction type of an A-instruction.
+     */
+    public static final int TYPE_A = 1;
+
+    /**
+     * Instruction type of a C-instruction.
+     */
+    public static final int TYPE_C = 2;
+
+    /**
+     * Instruction type of an empty ROM cell.
+     */
+    public static final int TYPE_NOP = 3;
+
+    /**
+     * Instruction type of an illegal instruction.
+     */
+    public static final int TYPE_ILLEGAL = 4;
+
+    /**
+     * Mask of the jump condition bits.
+     */
+    public static final int JUMP_MASK = 0x07;
+
+    /**
+     * Jump condition bit: jump if the ALU output is negative.
+     */
+    public static final int JUMP_NEGATIVE = 0x04;
+
+    /**
+     * Jump condition bit: jump if the ALU output is zero.
+     */
+    public static final int JUMP_ZERO = 0x02;
+
+    /**
+     * Jump condition bit: jump if the ALU output is positive.
+     */
+    public static final int JUMP_POSITIVE = 0x01;
+
+    /**
+     * Mask of the destination bits.
+     */
+    public static final int DEST_MASK = 0x38;
+
+    /**
+     * Destination bit of the A register.
+     */
+    public static final int DEST_A = 0x20;
+
+    /**
+     * Destination bit of the D register.
+     */
+    public static final int DEST_D = 0x10;
+
+    /**
+     * Destination bit of M (RAM[A]).
+     */
+    public static final int DEST_M = 0x08;
+
+    /**
+     * Operand select bit: the second ALU input is M (RAM[A]) instead of A.
+     */
+    public static final int OPERAND_M = 0x40;
+
+    /**
+     * Comp function of an unknown exp code: the ALU keeps its last command.
+     */
+    public static final int COMP_KEEP = 0x7f;
+
+    /**
+     * Comp function bit of the extended instruction set. The low bits of such
+     * a comp function are one of the EXTENDED_* functions.
+     */
+    public static final int COMP_EXTENDED = 0x40;
+
+    /**
+     * Extended function: D times A/M.
+     */
+    public static final int EXTENDED_MULTIPLY = 0;
+
+    /**
+     * Extended function: D shifted left by one bit.
+     */
+    public static final int EXTENDED_SHIFT_LEFT_D = 1;
+
+    /**
+     * Extended function: D shifted right by one bit (keeping the sign).
+     */
+    public static final int EXTENDED_SHIFT_RIGHT_D = 2;
+
+    /**
+     * Extended function: A/M shifted left by one bit.
+     */
+    public static final int EXTENDED_SHIFT_LEFT_Y = 3;
+
+    /**
+     * Extended function: A/M shifted right by one bit (keeping the sign).
+     */
+    public static final int EXTENDED_SHIFT_RIGHT_Y = 4;
+
+    // The position and mask of the comp function
+    private static final int COMP_SHIFT = 8;
+    private static final int COMP_MASK = 0x7f;
+
+    // The position and mask of the instruction type
+    private static final int TYPE_SHIFT = 16;
+    private static final int TYPE_MASK = 0x0f;
+
+    // The text of every legal exp, indexed by its operand select and comp function
+    // (in the format of the low 7 bits of (exp >> 6)), or null if not legal.
+    private static String[] expTexts;
+
+    // The text of every legal extended exp, in the same format
+    private static String[] extendedExpTexts;
+
+    /**
+     * Decodes the given machine language instruction and returns its micro-op.
+     */
+    public static long decode(int instruction) {
+        int op;
+        int value = 0;
+
+        if ((instruction & 0x40000000) == 0x40000000) {
+            op = TYPE_A << TYPE_SHIFT;
+            // the value is converted as it would be by the bus
+            value = (instruction & 0x80000000) == 0 ? instruction - 0x40000000 : instruction;
+        }
+        else if ((instruction & 0xe000) == 0xe000) {
+            int exp = (instruction >> 6) & 0x7f;
+            int comp = getExpTexts()[exp] != null ? exp & 0x3f : COMP_KEEP;
+
+            op = (TYPE_C << TYPE_SHIFT) | (comp << COMP_SHIFT) | (exp & OPERAND_M) |
+                 (instruction & (DEST_MASK | JUMP_MASK));
+        }
+        else if ((instruction & 0xe000) == 0xa000 &&
+                 HackAssemblerTranslator.isExtendedInstructionSet()) {
+            int exp = (instruction >> 6) & 0x7f;
+            if (getExtendedExpTexts()[exp] != null)
+                op = (TYPE_C << TYPE_SHIFT) | ((COMP_EXTENDED | (exp & 0x3f)) << COMP_SHIFT) |
+                     (exp & OPERAND_M) | (instruction & (DEST_MASK | JUMP_MASK));
+            else
+                op = TYPE_ILLEGAL << TYPE_SHIFT;
+        }
+        else if (instruction == HackAssemblerTranslator.NOP)
+            op = TYPE_NOP << TYPE_SHIFT;
+        else
+            op = TYPE_ILLEGAL << TYPE_SHIFT;
+
+        return ((long)value << 32) | (op & 0xffffffffL);
+    }
+
+    /**
+     * Returns true if the given micro-op ends a basic block: if it is a
+     * C-instruction that may jump or an illegal instruction.
+     */
+    public static boolean isBlockEnd(long op) {
+        int type = getType(op);
+        return type == TYPE_ILLEGAL || (type == TYPE_C && ((int)op & JUMP_MASK) != 0);
+    }
+
+    /**
+     * Returns the instruction type of the given micro-op.
+     */
+    public static int getType(long op) {
+        return ((int)op >> TYPE_SHIFT) & TYPE_MASK;
+    }
+
+    /**
+     * Returns the comp function of the given micro-op.
+     */
+    public static int getComp(long op) {
+        return ((int)op >> COMP_SHIFT) & COMP_MASK;
+    }
+
+    /**
+     * Returns the value that the given A-instruction micro-op loads into A.
+     */
+    public static int getValue(long op) {
+        return (int)(op >> 32);
+    }
+
+    /**
+     * Returns the exp text of the given C-instruction micro-op, or null if
+     * its comp function is COMP_KEEP.
+     */
+    public static String getExpText(long op) {
+        int comp = getComp(op);
+        if (comp == COMP_KEEP)
+            return null;
+        else if ((comp & COMP_EXTENDED) != 0)
+            return getExtendedExpTexts()[((int)op & OPERAND_M) | (comp & ~COMP_EXTENDED)];
+        else
+            return getExpTexts()[((int)op & OPERAND_M) | comp];
+    }
+
+    /**
+     * Returns the text of an exp with the given comp function: the exp whose
+     * operand is A, or the one whose operand is M if there is none.
+     * Returns null if the comp function is not computed by any legal exp.
+     */
+    public static String getCompText(int comp) {
+        String[] texts = (comp & COMP_EXTENDED) != 0 ? getExtendedExpTexts() : getExpTexts();
+        int index = comp & 0x3f;
+
+        return texts[index] != null ? texts[index] : texts[OPERAND_M | index];
+    }
+
+    /**
+     * Computes the given extended function on the given inputs: x is D and y is A/M.
+     */
+    public static int computeExtended(int function, int x, int y) {
+        switch (function) {
+            case EXTENDED_MULTIPLY:
+                return x * y;
+            case EXTENDED_SHIFT_LEFT_D:
+                return x << 1;
+            case EXTENDED_SHIFT_RIGHT_D:
+                return x >> 1;
+            case EXTENDED_SHIFT_LEFT_Y:
+                return y << 1;
+            default:
+                return y >> 1;
+        }
+    }
+
+    // Returns the exp texts table, building it on first use.
+    private static String[] getExpTexts() {
+        if (expTexts == null)
+            expTexts = buildExpTexts(0xe000);
+
+        return expTexts;
+    }
+
+    // Returns the extended exp texts table, building it on first use.
+    private static String[] getExtendedExpTexts() {
+        if (extendedExpTexts == null)
+            extendedExpTexts = buildExpTexts(0xa000);
+
+        return extendedExpTexts;
+    }
+
+    // Builds a table of the texts of the exps with the given instruction prefix.
+    private static String[] buildExpTexts(int prefix) {
+        HackAssemblerTranslator translator = HackAssemblerTranslator.getInstance();
+        String[] texts = new String[0x80];
+
+        for (int i = 0; i < texts.length; i++) {
+            try {
+                texts[i] = translator.getExpByCode(prefix | (i << 6));
+            } catch (AssemblerException ae) {}
+        }
+
+        return texts;
+    }
+}
@@ -23,9 +23,10 @@ import Hack.CPUEmulator.*;
 import Hack.ComputerParts.*;
 
 /**
- * A computer keyboard.
+ * A computer keyboard. It is a device of the RAM (see Device), so that the
+ * GUI also shows the keys that scripts and programs write to its address.
  */
-public class Keyboard extends ComputerPart implements KeyListener {
+public class Keyboard extends ComputerPart implements KeyListener, Device {
 
     // The ram (the keyboard address is changed according to the current key)
     private RAM ram;
@@ -42,8 +43,30 @@ public class Keyboard extends ComputerPart implements KeyListener {
         this.ram = ram;
         this.gui = gui;
 
-        if (hasGUI)
+        if (hasGUI) {
             gui.getKeyEventHandler().addKeyListener(this);
+            ram.addDevice(this);
+        }
+    }
+
+    public int getStartAddress() {
+        return Definitions.KEYBOARD_ADDRESS;
+    }
+
+    public int getSize() {
+        return 1;
+    }
+
+    /**
+     * Shows the given key, which was written to the keyboard address.
+     */
+    public void valueWritten(int address, int value, long time) {
+        if (value == 0)
+            gui.clearKey();
+        else if (value > ' ' && value < 127)
+            gui.setKey(String.valueOf((char)value));
+        else
+            gui.setKey(String.valueOf(value));
     }
 
     /**
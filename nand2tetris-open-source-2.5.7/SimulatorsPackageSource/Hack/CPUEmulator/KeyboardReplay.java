@@ -0,0 +1,164 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * A timed list of keyboard keys that is replayed into the keyboard memory map,
+ * so that interactive programs can be run without a GUI and reproducibly.
+ * The list is read from a text file with one key per line:
+ *
+ *     <steps> <key>
+ *
+ * where steps is the number of steps (cycles of the CPU emulator, VM steps
+ * of the VM emulator) after the replay started at which the key is pressed,
+ * and key is a key code, a single character (other than a digit) or one of the key names newline,
+ * backspace, left, up, right, down, home, end, pageup, pagedown, insert, delete,
+ * esc, f1 .. f12, space and none (no key - the key is released).
+ * The steps must not decrease. Empty lines and text after // are ignored.
+ */
+public class KeyboardReplay {
+
+    // The key names and their codes
+    private static final String[] KEY_NAMES = {
+        "none", "space", "newline", "backspace", "left", "up", "right", "down", "home", "end",
+        "pageup", "pagedown", "insert", "delete", "esc"};
+    private static final int[] KEY_CODES = {
+        0, ' ', Definitions.NEWLINE_KEY, Definitions.BACKSPACE_KEY, Definitions.LEFT_KEY,
+        Definitions.UP_KEY, Definitions.RIGHT_KEY, Definitions.DOWN_KEY, Definitions.HOME_KEY,
+        Definitions.END_KEY, Definitions.PAGE_UP_KEY, Definitions.PAGE_DOWN_KEY,
+        Definitions.INSERT_KEY, Definitions.DELETE_KEY, Definitions.ESC_KEY};
+
+    // The times (relative to the start) and codes of the keys
+    private long[] times;
+    private int[] keys;
+
+    // The time at which the replay started
+    private long startTime;
+
+    // The index of the next key
+    private int next;
+
+    /**
+     * Constructs a new replay of the keys in the given file, which starts at
+     * the given time.
+     * Throws ProgramException if the file can't be read or is not legal.
+     */
+    public KeyboardReplay(String fileName, long startTime) throws ProgramException {
+        this.startTime = startTime;
+
+        Vector timeList = new Vector();
+        Vector keyList = new Vector();
+        String name = new File(fileName).getName();
+        int lineNumber = 0;
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                String line;
+                long lastTime = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    int comment = line.indexOf("//");
+                    if (comment >= 0)
+                        line = line.substring(0, comment);
+
+                    StringTokenizer tokenizer = new StringTokenizer(line);
+                    if (!tokenizer.hasMoreTokens())
+                        continue;
+
+                    long time = Long.parseLong(tokenizer.nextToken());
+                    if (!tokenizer.hasMoreTokens())
+                        throw new ProgramException("In line " + lineNumber + " of " + name +
+                                                   ": Missing key");
+                    int key = getKeyCode(tokenizer.nextToken());
+                    if (time < lastTime || key < 0 || tokenizer.hasMoreTokens())
+                        throw new NumberFormatException();
+
+                    timeList.addElement(new Long(time));
+                    keyList.addElement(new Integer(key));
+                    lastTime = time;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (NumberFormatException nfe) {
+            throw new ProgramException("In line " + lineNumber + " of " + name +
+                                       ": Illegal key entry");
+        } catch (IOException ioe) {
+            throw new ProgramException("Could not read keys from " + name + ": " +
+                                       ioe.getMessage());
+        }
+
+        times = new long[timeList.size()];
+        keys = new int[times.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = ((Long)timeList.elementAt(i)).longValue();
+            keys[i] = ((Integer)keyList.elementAt(i)).intValue();
+        }
+    }
+
+    /**
+     * Returns the time of the next key, or Long.MAX_VALUE if there are no more keys.
+     */
+    public long getNextTime() {
+        return next < times.length ? startTime + times[next] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the code of the next key and moves to the key after it.
+     */
+    public int nextKey() {
+        return keys[next++];
+    }
+
+    /**
+     * Returns true if all the keys were replayed.
+     */
+    public boolean hasEnded() {
+        return next == times.length;
+    }
+
+    // Returns the code of the given key (a number, a character or a key name),
+    // or -1 if it is not legal.
+    private static int getKeyCode(String key) {
+        if (Character.isDigit(key.charAt(0)))
+            return Integer.parseInt(key);
+        else if (key.length() == 1)
+            return key.charAt(0);
+
+        String lowerCase = key.toLowerCase();
+        for (int i = 0; i < KEY_NAMES.length; i++)
+            if (lowerCase.equals(KEY_NAMES[i]))
+                return KEY_CODES[i];
+
+        if (lowerCase.startsWith("f")) {
+            try {
+                int number = Integer.parseInt(lowerCase.substring(1));
+                if (number >= 1 && number <= 12)
+                    return Definitions.F1_KEY + number - 1;
+            } catch (NumberFormatException nfe) {}
+        }
+
+        return -1;
+    }
+}
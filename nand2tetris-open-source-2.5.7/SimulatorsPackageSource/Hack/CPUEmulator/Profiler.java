@@ -0,0 +1,302 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Assembler.*;
+import Hack.Translators.*;
+import Hack.Utilities.*;
+
+/**
+ * An execution profiler for the CPU. Counts how many times every ROM address
+ * was executed and how many times every jump was taken, and writes a report
+ * of the hottest addresses and of the loops that took the most cycles.
+ * Executions are counted per address range (one range per basic block), so
+ * the counters are kept as differences between neighbouring addresses and
+ * are summed up only when the report is written.
+ */
+public class Profiler {
+
+    // The number of entries in each table of the report
+    private static final int REPORT_SIZE = 20;
+
+    // counts[i] - counts[i - 1] executions of address i (see addExecutions)
+    private long[] counts;
+
+    // The number of times the jump at each address was taken
+    private long[] taken;
+
+    // The address that the jump at each address went to the last time it was taken
+    private int[] targets;
+
+    /**
+     * Constructs a new profiler for a program of the given size.
+     */
+    public Profiler(int size) {
+        counts = new long[size + 1];
+        taken = new long[size];
+        targets = new int[size];
+    }
+
+    /**
+     * Counts the given number of executions of all the addresses from start to end.
+     */
+    public void addExecutions(int start, int end, long times) {
+        counts[start] += times;
+        counts[end + 1] -= times;
+    }
+
+    /**
+     * Counts the given number of times that the jump at the given address was
+     * taken to the given target.
+     */
+    public void addJump(int address, int target, long times) {
+        taken[address] += times;
+        targets[address] = target;
+    }
+
+    /**
+     * Returns the number of executions of every address.
+     */
+    public long[] getExecutions() {
+        return getExecutions(taken.length);
+    }
+
+    /**
+     * Returns the number of executions of every address below the given address.
+     */
+    public long[] getExecutions(int end) {
+        long[] result = new long[end];
+        long count = 0;
+        for (int i = 0; i < end; i++) {
+            count += counts[i];
+            result[i] = count;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns true if the jump at the given address was taken.
+     */
+    public boolean isJumpTaken(int address) {
+        return taken[address] > 0;
+    }
+
+    /**
+     * Clears the counts of the addresses below the given address. The counts
+     * of the addresses from it on are no longer valid.
+     */
+    public void clear(int end) {
+        Arrays.fill(counts, 0, end, 0);
+        Arrays.fill(taken, 0, end, 0);
+    }
+
+    /**
+     * Writes the report into the given file. The given program (the contents of
+     * the ROM) is used to show the instructions, and the labels of the given
+     * .asm or .hackb file (may be null) are used to name the addresses if the
+     * file contains the same program.
+     * Throws IOException if the report can't be written.
+     */
+    public void writeReport(String fileName, int[] program, String sourceFileName)
+     throws IOException {
+        long[] executions = getExecutions();
+        String[] names = getAddressNames(program, sourceFileName);
+
+        long total = 0;
+        for (int i = 0; i < executions.length; i++)
+            total += executions[i];
+
+        PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+        writer.println("Executed instructions: " + total);
+
+        writer.println();
+        writer.println("Hottest addresses:");
+        writer.println("  address  label                        executions      %  instruction");
+        int[] hottest = getLargest(executions, REPORT_SIZE);
+        for (int i = 0; i < hottest.length; i++) {
+            int address = hottest[i];
+            writer.println(pad(String.valueOf(address), 9) + "  " + padRight(names[address], 25) +
+                           pad(String.valueOf(executions[address]), 14) +
+                           pad(percent(executions[address], total), 7) + "  " +
+                           getInstructionText(program[address]));
+        }
+
+        // every jump that was taken backwards closes a loop from its target to itself
+        long[] loopCycles = new long[taken.length];
+        for (int i = 0; i < taken.length; i++)
+            if (taken[i] > 0 && targets[i] <= i)
+                for (int j = targets[i]; j <= i; j++)
+                    loopCycles[i] += executions[j];
+
+        writer.println();
+        writer.println("Loops by cycles:");
+        writer.println("  start    end    label                    iterations        cycles      %");
+        int[] loops = getLargest(loopCycles, REPORT_SIZE);
+        for (int i = 0; i < loops.length; i++) {
+            int end = loops[i];
+            int start = targets[end];
+            writer.println(pad(String.valueOf(start), 7) + pad(String.valueOf(end), 7) + "    " +
+                           padRight(names[start], 21) + pad(String.valueOf(taken[end]), 14) +
+                           pad(String.valueOf(loopCycles[end]), 14) +
+                           pad(percent(loopCycles[end], total), 7));
+        }
+
+        writer.println();
+        writer.println("Jumps:");
+        writer.println("  address  label                             taken     not taken");
+        long[] jumpExecutions = new long[taken.length];
+        for (int i = 0; i < taken.length; i++) {
+            long op = InstructionDecoder.decode(program[i]);
+            if (InstructionDecoder.getType(op) == InstructionDecoder.TYPE_C &&
+                ((int)op & InstructionDecoder.JUMP_MASK) != 0)
+                jumpExecutions[i] = executions[i];
+        }
+        int[] jumps = getLargest(jumpExecutions, REPORT_SIZE);
+        for (int i = 0; i < jumps.length; i++) {
+            int address = jumps[i];
+            writer.println(pad(String.valueOf(address), 9) + "  " + padRight(names[address], 25) +
+                           pad(String.valueOf(taken[address]), 14) +
+                           pad(String.valueOf(executions[address] - taken[address]), 14));
+        }
+
+        writer.close();
+        if (writer.checkError())
+            throw new IOException("Could not write " + fileName);
+    }
+
+    // Returns the names of all the addresses (label+offset), according to the
+    // labels of the given .asm or .hackb file. If the file doesn't exist or
+    // doesn't contain the given program, the names are empty.
+    private static String[] getAddressNames(int[] program, String sourceFileName) {
+        String[] names = new String[program.length];
+        Arrays.fill(names, "");
+        if (sourceFileName == null || !new File(sourceFileName).exists())
+            return names;
+
+        Hashtable labels;
+        try {
+            if (sourceFileName.endsWith("." + HackBinaryFile.EXTENSION)) {
+                if (!Arrays.equals(HackBinaryFile.read(sourceFileName, program.length,
+                                                       HackAssemblerTranslator.NOP), program))
+                    return names;
+                labels = HackBinaryFile.readLabels(sourceFileName);
+            }
+            else {
+                HackAssembler assembler = new HackAssembler(sourceFileName, program.length,
+                                                            HackAssemblerTranslator.NOP, false);
+                if (!Arrays.equals(assembler.getProgram(), program))
+                    return names;
+                labels = assembler.getLabels();
+            }
+        } catch (AssemblerException ae) {
+            return names;
+        } catch (HackTranslatorException hte) {
+            return names;
+        }
+
+        return getAddressNames(program.length, labels);
+    }
+
+    /**
+     * Returns the names of the addresses below the given size (label+offset),
+     * according to the given labels, mapped to their addresses. Addresses
+     * before the first label have empty names.
+     */
+    static String[] getAddressNames(int size, Hashtable labels) {
+        String[] names = new String[size];
+        Arrays.fill(names, "");
+
+        // the first label (alphabetically) of every labeled address
+        String[] labelAt = new String[size];
+        Enumeration e = labels.keys();
+        while (e.hasMoreElements()) {
+            String label = (String)e.nextElement();
+            int address = ((Integer)labels.get(label)).intValue();
+            if (address < size &&
+                (labelAt[address] == null || label.compareTo(labelAt[address]) < 0))
+                labelAt[address] = label;
+        }
+
+        String label = null;
+        int labelAddress = 0;
+        for (int i = 0; i < size; i++) {
+            if (labelAt[i] != null) {
+                label = labelAt[i];
+                labelAddress = i;
+            }
+            if (label != null)
+                names[i] = (i == labelAddress ? label : label + "+" + (i - labelAddress));
+        }
+
+        return names;
+    }
+
+    // Returns the indices of the (at most) given number of largest positive values,
+    // from the largest to the smallest.
+    private static int[] getLargest(long[] values, int n) {
+        int[] result = new int[n];
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] <= 0 || (size == n && values[i] <= values[result[n - 1]]))
+                continue;
+
+            int j = (size < n ? size++ : n - 1);
+            for (; j > 0 && values[result[j - 1]] < values[i]; j--)
+                result[j] = result[j - 1];
+            result[j] = i;
+        }
+
+        int[] largest = new int[size];
+        System.arraycopy(result, 0, largest, 0, size);
+        return largest;
+    }
+
+    // Returns the assembly text of the given instruction.
+    private static String getInstructionText(int instruction) {
+        try {
+            return HackAssemblerTranslator.getInstance().codeToText(instruction);
+        } catch (AssemblerException ae) {
+            return "";
+        }
+    }
+
+    // Returns the given part of the given total in percents.
+    private static String percent(long part, long total) {
+        long tenths = (total == 0 ? 0 : part * 1000 / total);
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    // Pads the given string with spaces on the left to the given width.
+    static String pad(String s, int width) {
+        StringBuffer result = new StringBuffer();
+        for (int i = s.length(); i < width; i++)
+            result.append(' ');
+        return result.append(s).toString();
+    }
+
+    // Pads the given string with spaces on the right to the given width.
+    static String padRight(String s, int width) {
+        StringBuffer result = new StringBuffer(s);
+        for (int i = s.length(); i < width; i++)
+            result.append(' ');
+        return result.toString();
+    }
+}
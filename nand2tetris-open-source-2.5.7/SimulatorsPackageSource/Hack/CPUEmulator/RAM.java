@@ -17,17 +17,29 @@
 
 package Hack.CPUEmulator;
 
+import java.util.*;
 import Hack.Utilities.*;
 import Hack.ComputerParts.*;
 
 /**
  * A Random Access Memory, which is mapped to a screen, and enables a segmented view on it.
+ * The screen, the memory segment pointers and any other memory-mapped devices
+ * are notified of the writes to their addresses through a page table of
+ * the devices (see Device).
  */
 public class RAM extends PointedMemory
 {
+    /**
+     * log2 of the number of addresses in a page of the device table.
+     */
+    public static final int PAGE_SHIFT = 4;
+
     // The amount of miliseconds that a label should flash.
     private static final int LABEL_FLASH_TIME = 500;
 
+    // If true, the timer and the debug console devices are added by addExtensionDevices()
+    private static boolean extensionDevices = Boolean.getBoolean("hack.devices");
+
     private static final int[] emptyScreen = new int[Definitions.SCREEN_SIZE_IN_WORDS];
 
     // The gui of the screen
@@ -36,6 +48,28 @@ public class RAM extends PointedMemory
     // memory segments mapping
     private MemorySegment[][] segments;
 
+    // The devices of the RAM
+    private Vector devices = new Vector();
+
+    // The device of every page, or null if no device has addresses in the page
+    // (null if there are no devices)
+    private Device[] devicePages;
+
+    // The time of the writes through setValueAt
+    private long time;
+
+    // The number of words that were written through the methods of the RAM
+    private volatile long writeCount;
+
+    // The object that is notified of the writes to the RAM (null if none)
+    private volatile Object writeMonitor;
+
+    // A bitmap of the watched addresses (null if none are watched)
+    private int[] watchedAddresses;
+
+    // True if a watched address was written since the last clearWatchHit()
+    private boolean watchHit;
+
     /**
      * Constructs a new RAM with the given optional GUI components:
      * mainGUI - the main GUI of the ram.
@@ -45,12 +79,20 @@ public class RAM extends PointedMemory
      *            the memory value at the entry's location.
      *            If a memorySegment is an instance of memorySegment, its start
      *            address will be set according to the memory value at the entry's location.
+     *            Only the entries of the pointer addresses (SP_ADDRESS to
+     *            THAT_POINTER_ADDRESS) are used, and they may be set later.
      * screenGUI - the GUI of the screen.
      */
     public RAM(PointedMemoryGUI mainGUI, MemorySegment[][] segments, ScreenGUI screenGUI) {
         super(Definitions.RAM_SIZE, mainGUI);
         this.segments = segments;
         this.screen = screenGUI;
+
+        if (screenGUI != null)
+            addDevice(new ScreenDevice());
+
+        if (segments != null)
+            addDevice(new SegmentPointers());
     }
 
     /**
@@ -58,23 +100,190 @@ public class RAM extends PointedMemory
      */
     public void setValueAt(int address, int value, boolean quiet) {
         super.setValueAt(address, value, quiet);
+        countWrites(1);
+
+        if (watchedAddresses != null && isWatched(watchedAddresses, address))
+            watchHit = true;
+
+        if (devicePages != null) {
+            Device device = devicePages[address >>> PAGE_SHIFT];
+            if (device != null)
+                device.valueWritten(address, value, time);
+        }
+    }
+
+    /**
+     * Writes the given number of values from the given array (starting at the
+     * given offset) to the memory, starting at the given address.
+     * Has the same effect as quietly setting each value with setValueAt(): the
+     * screen is notified only of the written words, and repaints the changed
+     * ones together.
+     */
+    public void setValuesAt(int address, int[] values, int offset, int length) {
+        System.arraycopy(values, offset, mem, address, length);
+        valuesWritten(address, length);
+    }
+
+    /**
+     * Reads the given number of values from the memory, starting at the given
+     * address, into the given array (starting at the given offset).
+     */
+    public void getValuesAt(int address, int[] values, int offset, int length) {
+        System.arraycopy(mem, address, values, offset, length);
+    }
+
+    /**
+     * Sets the given number of words, starting at the given address, to the
+     * given value (see setValuesAt()).
+     */
+    public void fill(int address, int length, int value) {
+        Arrays.fill(mem, address, address + length, value);
+        valuesWritten(address, length);
+    }
+
+    /**
+     * Copies the given number of words from the source address to the
+     * destination address. The ranges may overlap (see setValuesAt()).
+     */
+    public void copy(int source, int destination, int length) {
+        System.arraycopy(mem, source, mem, destination, length);
+        valuesWritten(destination, length);
+    }
+
+    // Notifies the GUIs, the watchpoints and the devices of quiet writes to
+    // the given number of words from the given address.
+    private void valuesWritten(int address, int length) {
+        countWrites(length);
+        int end = address + length;
+        for (int i = address; i < end; i++) {
+            if (displayChanges)
+                quietUpdateGUI(i, mem[i]);
+
+            if (watchedAddresses != null && isWatched(watchedAddresses, i))
+                watchHit = true;
+
+            if (devicePages != null) {
+                Device device = devicePages[i >>> PAGE_SHIFT];
+                if (device != null)
+                    device.valueWritten(i, mem[i], time);
+            }
+        }
+    }
 
-        // if screen area changed, update its GUI
-        if (screen != null && address >= Definitions.SCREEN_START_ADDRESS
-             && address < Definitions.SCREEN_START_ADDRESS + Definitions.SCREEN_SIZE_IN_WORDS)
-            screen.setValueAt((int)(address - Definitions.SCREEN_START_ADDRESS), value);
+    /**
+     * Sets the time of the following writes through setValueAt, which is
+     * passed to the devices (see Device.valueWritten()).
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
 
-        // if a memory segment pointer changed, update its GUI
-        if (segments != null && segments[address] != null) {
+    /**
+     * Adds the given device. Its addresses may share pages with other devices,
+     * but not addresses.
+     */
+    public void addDevice(Device device) {
+        devices.addElement(device);
+        buildDevicePages();
+    }
 
-            for (int i = 0; i < segments[address].length; i++) {
-                // check if the relevant memory segment is a pointed one.
-                if (segments[address][i] instanceof PointedMemorySegment)
-                    ((PointedMemorySegment)segments[address][i]).setPointerAddress(value);
-                else
-                    segments[address][i].setStartAddress(value);
+    /**
+     * Removes the given device.
+     */
+    public void removeDevice(Device device) {
+        devices.removeElement(device);
+        buildDevicePages();
+    }
+
+    /**
+     * Returns the device table: the device that should be notified of the
+     * writes to every page of the RAM (address >>> PAGE_SHIFT), or null if
+     * the page has no device. Returns null if the RAM has no devices.
+     */
+    public Device[] getDevicePages() {
+        return devicePages;
+    }
+
+    /**
+     * Adds the timer and the debug console devices (see TimerDevice and
+     * ConsoleDevice), which print to the standard output, if the system
+     * property hack.devices is true. Programs that use their addresses as
+     * plain RAM still work when the property isn't set.
+     */
+    public void addExtensionDevices() {
+        if (extensionDevices) {
+            addDevice(new TimerDevice(this));
+            addDevice(new ConsoleDevice(System.out));
+        }
+    }
+
+    // Builds the device table from the devices.
+    private void buildDevicePages() {
+        if (devices.size() == 0) {
+            devicePages = null;
+            return;
+        }
+
+        Device[] pages = new Device[(size + (1 << PAGE_SHIFT) - 1) >>> PAGE_SHIFT];
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = (Device)devices.elementAt(i);
+            int start = device.getStartAddress();
+            int end = start + device.getSize() - 1;
+            for (int page = start >>> PAGE_SHIFT; page <= end >>> PAGE_SHIFT; page++) {
+                boolean covered = (start <= page << PAGE_SHIFT &&
+                                   end >= ((page + 1) << PAGE_SHIFT) - 1);
+                if (pages[page] == null && covered)
+                    pages[page] = device;
+                else {
+                    // the page is shared by several devices or has plain addresses
+                    PageDevices shared = (pages[page] instanceof PageDevices ?
+                                          (PageDevices)pages[page] : new PageDevices(page));
+                    if (pages[page] != null && pages[page] != shared)
+                        shared.add(pages[page]);
+                    shared.add(device);
+                    pages[page] = shared;
+                }
             }
         }
+
+        devicePages = pages;
+    }
+
+    /**
+     * Sets the bitmap of the watched addresses: address i is watched if bit (i % 32)
+     * of element (i / 32) is set. A null bitmap watches nothing.
+     * Writing to a watched address sets the watch hit flag.
+     */
+    public void setWatchedAddresses(int[] watchedAddresses) {
+        this.watchedAddresses = watchedAddresses;
+    }
+
+    /**
+     * Returns the bitmap of the watched addresses (null if none are watched).
+     */
+    public int[] getWatchedAddresses() {
+        return watchedAddresses;
+    }
+
+    /**
+     * Returns true if a watched address was written since the last clearWatchHit().
+     */
+    public boolean isWatchHit() {
+        return watchHit;
+    }
+
+    /**
+     * Clears the watch hit flag.
+     */
+    public void clearWatchHit() {
+        watchHit = false;
+    }
+
+    /**
+     * Returns true if the given address is set in the given bitmap of addresses.
+     */
+    public static boolean isWatched(int[] bitmap, int address) {
+        return (bitmap[address >>> 5] & (1 << address)) != 0;
     }
 
     /**
@@ -106,8 +315,73 @@ public class RAM extends PointedMemory
      */
     public void reset() {
         super.reset();
-        if (screen != null)
-            screen.reset();
+        countWrites(size);
+        resetDevices();
+    }
+
+    /**
+     * Returns the number of words that were written through the methods of
+     * the RAM (and not directly into the array of its contents), for telling
+     * whether the RAM was changed since some time.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Sets the object whose waiting threads are notified (see Object.notifyAll())
+     * of every write through the methods of the RAM, or null for none.
+     * A thread may wait on it for a change of the RAM from outside the
+     * program, such as a key press.
+     */
+    public void setWriteMonitor(Object monitor) {
+        writeMonitor = monitor;
+    }
+
+    // Adds the given number of words to the write count and notifies the
+    // write monitor.
+    private void countWrites(int words) {
+        writeCount += words;
+
+        Object monitor = writeMonitor;
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Restores the contents of the whole memory from the given snapshot and
+     * resets the devices, as if the memory was reset and then set to the
+     * snapshot.
+     */
+    public void restore(int[] contents) {
+        resetDevices();
+        setContents(contents, 0);
+    }
+
+    // Resets the devices.
+    private void resetDevices() {
+        for (int i = 0; i < devices.size(); i++)
+            ((Device)devices.elementAt(i)).reset();
+    }
+
+    /**
+     * Sets the contents of the memory from the given start address with the given
+     * contents, and updates the part of the screen that they cover.
+     */
+    public void setContents(int[] contents, int startAddress) {
+        super.setContents(contents, startAddress);
+        countWrites(contents.length);
+
+        if (screen != null) {
+            int start = Math.max(startAddress, Definitions.SCREEN_START_ADDRESS);
+            int end = Math.min(startAddress + contents.length,
+                               Definitions.SCREEN_START_ADDRESS + Definitions.SCREEN_SIZE_IN_WORDS);
+            for (int address = start; address < end; address++)
+                screen.setValueAt(address - Definitions.SCREEN_START_ADDRESS, mem[address]);
+        }
     }
 
     /**
@@ -137,4 +411,90 @@ public class RAM extends PointedMemory
                 }
             }
     }
+
+    // The screen: updates the screen GUI
+    private class ScreenDevice implements Device {
+
+        public int getStartAddress() {
+            return Definitions.SCREEN_START_ADDRESS;
+        }
+
+        public int getSize() {
+            return Definitions.SCREEN_SIZE_IN_WORDS;
+        }
+
+        public void valueWritten(int address, int value, long time) {
+            screen.setValueAt(address - Definitions.SCREEN_START_ADDRESS, value);
+        }
+
+        public void reset() {
+            screen.reset();
+        }
+    }
+
+    // The memory segment pointers: update the GUIs of the segments
+    private class SegmentPointers implements Device {
+
+        public int getStartAddress() {
+            return Definitions.SP_ADDRESS;
+        }
+
+        public int getSize() {
+            return Definitions.THAT_POINTER_ADDRESS - Definitions.SP_ADDRESS + 1;
+        }
+
+        public void valueWritten(int address, int value, long time) {
+            if (segments[address] != null) {
+                for (int i = 0; i < segments[address].length; i++) {
+                    // check if the relevant memory segment is a pointed one.
+                    if (segments[address][i] instanceof PointedMemorySegment)
+                        ((PointedMemorySegment)segments[address][i]).setPointerAddress(value);
+                    else
+                        segments[address][i].setStartAddress(value);
+                }
+            }
+        }
+
+        public void reset() {}
+    }
+
+    // The devices of a page that is shared by several devices, or that has
+    // addresses of no device: passes every write to the device of its address
+    private static class PageDevices implements Device {
+
+        // The page
+        private int page;
+
+        // The device of every address of the page (or null)
+        private Device[] devices = new Device[1 << PAGE_SHIFT];
+
+        PageDevices(int page) {
+            this.page = page;
+        }
+
+        // Adds the addresses of the given device in the page.
+        void add(Device device) {
+            int first = page << PAGE_SHIFT;
+            int start = Math.max(device.getStartAddress(), first);
+            int end = Math.min(device.getStartAddress() + device.getSize(), first + devices.length);
+            for (int address = start; address < end; address++)
+                devices[address - first] = device;
+        }
+
+        public int getStartAddress() {
+            return page << PAGE_SHIFT;
+        }
+
+        public int getSize() {
+            return devices.length;
+        }
+
+        public void valueWritten(int address, int value, long time) {
+            Device device = devices[address & (devices.length - 1)];
+            if (device != null)
+                device.valueWritten(address, value, time);
+        }
+
+        public void reset() {}
+    }
 }
@@ -53,6 +53,17 @@ public class ROM extends PointedMemory implements ProgramEventListener
     // listeners to program changes
     private Vector listeners;
 
+    // The contents of the ROM: the program (which is also mem), the decoded
+    // program and the lengths of the basic blocks
+    private ROMImage image;
+
+    // True if the image may be shared with other ROMs, so it must be copied
+    // before it is changed
+    private boolean shared;
+
+    // The name of the file that the program was loaded from (null if none)
+    private String programFileName;
+
     /**
      * Constructs a new ROM with the given ROM GUI.
      */
@@ -60,6 +71,7 @@ public class ROM extends PointedMemory implements ProgramEventListener
         super(Definitions.ROM_SIZE, gui);
         setNullValue(HackAssemblerTranslator.NOP, true);
         listeners = new Vector();
+        setImage(ROMImage.getEmptyImage(size, 0));
 
         if (hasGUI) {
           gui.addProgramListener( (ProgramEventListener)this);
@@ -69,19 +81,16 @@ public class ROM extends PointedMemory implements ProgramEventListener
     }
 
     /**
-     * Loads the given program file (HACK or ASM) into the ROM.
+     * Loads the given program file (HACK, HACKB or ASM) into the ROM.
      */
     public synchronized void loadProgram(String fileName) throws ProgramException {
-        int[] program = null;
-
         if (displayChanges)
             ((ROMGUI)gui).showMessage("Loading...");
 
         try {
-            program = HackAssemblerTranslator.loadProgram(fileName, Definitions.ROM_SIZE,
-                                                          HackAssemblerTranslator.NOP);
-
-            mem = program;
+            setImage(ROMImage.loadImage(fileName, Definitions.ROM_SIZE,
+                                        HackAssemblerTranslator.NOP));
+            programFileName = fileName;
 
             if (displayChanges) {
                 gui.setContents(mem);
@@ -102,6 +111,75 @@ public class ROM extends PointedMemory implements ProgramEventListener
 
     }
 
+    public void doSetValueAt(int address, int value) {
+        unshare();
+        mem[address] = value;
+        image.decode(address, address + 1);
+    }
+
+    public void setContents(int[] contents, int startAddress) {
+        unshare();
+        System.arraycopy(contents, 0, mem, startAddress, contents.length);
+        image.decode(startAddress, startAddress + contents.length);
+        refreshGUI();
+    }
+
+    protected void clearContents() {
+        setImage(ROMImage.getEmptyImage(size, nullValue));
+    }
+
+    /**
+     * Returns the name of the file that the program was loaded from, or null
+     * if no program was loaded.
+     */
+    public String getProgramFileName() {
+        return programFileName;
+    }
+
+    /**
+     * Returns the micro-op of the instruction at the given address.
+     */
+    public long getDecodedValueAt(int address) {
+        return image.decoded[address];
+    }
+
+    /**
+     * Returns the decoded program: an array that contains the micro-op of the
+     * instruction at every ROM address (see InstructionDecoder).
+     * The array is updated whenever the contents of the ROM change.
+     */
+    public long[] getDecodedContents() {
+        return image.decoded;
+    }
+
+    /**
+     * Returns the basic block lengths of the program: an array that contains
+     * for every ROM address the number of instructions from that address up to
+     * and including the next instruction that may jump, the next illegal
+     * instruction or the last ROM cell. Only the last instruction of a block
+     * may change the program counter to anything other than the next address.
+     * The array is updated whenever the contents of the ROM change.
+     */
+    public int[] getBlockLengths() {
+        return image.blockLengths;
+    }
+
+    // Sets the contents of the ROM to the given (possibly shared) image.
+    private void setImage(ROMImage image) {
+        this.image = image;
+        mem = image.program;
+        shared = true;
+    }
+
+    // Copies the image if it may be shared, before the contents are changed.
+    private void unshare() {
+        if (shared) {
+            image = image.copy();
+            mem = image.program;
+            shared = false;
+        }
+    }
+
     /**
      * Called when the ROM's current program is changed.
      * The event contains the source object, event type and the new program's file name (if any).
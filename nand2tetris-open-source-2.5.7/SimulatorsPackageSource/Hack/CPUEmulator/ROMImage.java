@@ -0,0 +1,168 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import Hack.Assembler.*;
+
+/**
+ * The contents of a ROM: a program and its decoded form (see InstructionDecoder).
+ * Images that were loaded from a file are shared by all the ROMs that loaded the
+ * same file, so many emulators that run the same program keep one copy of it.
+ * A shared image must not be changed: a ROM copies it before changing its contents.
+ * Since the decoding depends on whether the extended instruction set is enabled
+ * (see HackAssemblerTranslator.setExtendedInstructionSet()), images are shared
+ * only by ROMs that loaded them with the same setting.
+ */
+class ROMImage {
+
+    // The images loaded from files, by canonical file name. The values are weak
+    // references, so an image is kept only while some ROM uses it.
+    private static Hashtable loadedImages = new Hashtable();
+
+    // The empty image that was last used
+    private static ROMImage emptyImage;
+
+    /**
+     * The program.
+     */
+    final int[] program;
+
+    /**
+     * The micro-op of every instruction of the program.
+     */
+    final long[] decoded;
+
+    /**
+     * The length of the basic block that starts at every address (see
+     * ROM.getBlockLengths()).
+     */
+    final int[] blockLengths;
+
+    // True if the extended instruction set was enabled when the image was decoded
+    private boolean extended;
+
+    // The modification time and length of the file that the image was loaded from
+    private long lastModified, length;
+
+    // Constructs a new image of the given program and decodes it.
+    private ROMImage(int[] program) {
+        this.program = program;
+        extended = HackAssemblerTranslator.isExtendedInstructionSet();
+        decoded = new long[program.length];
+        blockLengths = new int[program.length];
+        decode(0, program.length);
+    }
+
+    // Constructs a new image with copies of the given image's arrays.
+    private ROMImage(ROMImage image) {
+        program = (int[])image.program.clone();
+        decoded = (long[])image.decoded.clone();
+        blockLengths = (int[])image.blockLengths.clone();
+        extended = image.extended;
+    }
+
+    /**
+     * Returns an image of the given size with the given value in all its addresses.
+     * The returned image may be shared.
+     */
+    static synchronized ROMImage getEmptyImage(int size, int value) {
+        if (emptyImage == null || emptyImage.program.length != size ||
+            emptyImage.program[0] != value ||
+            emptyImage.extended != HackAssemblerTranslator.isExtendedInstructionSet()) {
+            int[] program = new int[size];
+            Arrays.fill(program, value);
+            emptyImage = new ROMImage(program);
+        }
+
+        return emptyImage;
+    }
+
+    /**
+     * Returns the image of the given program file (HACK, HACKB or ASM), loading it if no
+     * ROM uses it since it was last modified or since the extended instruction set
+     * was enabled or disabled. The returned image may be shared.
+     */
+    static ROMImage loadImage(String fileName, int size, int nullValue)
+     throws AssemblerException {
+        File file = new File(fileName);
+        String key = "/" + size + "/" + nullValue + "/" +
+                     HackAssemblerTranslator.isExtendedInstructionSet();
+        try {
+            key = file.getCanonicalPath() + key;
+        } catch (IOException ioe) {
+            key = file.getAbsolutePath() + key;
+        }
+
+        synchronized (loadedImages) {
+            Reference reference = (Reference)loadedImages.get(key);
+            ROMImage image = (reference != null ? (ROMImage)reference.get() : null);
+            if (image != null && image.lastModified == file.lastModified() &&
+                image.length == file.length() &&
+                image.extended == HackAssemblerTranslator.isExtendedInstructionSet())
+                return image;
+        }
+
+        // the file is assembled outside of the lock, since it may take a while
+        long lastModified = file.lastModified();
+        long length = file.length();
+        ROMImage image = new ROMImage(HackAssemblerTranslator.loadProgram(fileName, size,
+                                                                           nullValue));
+        image.lastModified = lastModified;
+        image.length = length;
+
+        synchronized (loadedImages) {
+            // forget the images that are no longer used
+            for (Iterator i = loadedImages.values().iterator(); i.hasNext(); )
+                if (((Reference)i.next()).get() == null)
+                    i.remove();
+
+            loadedImages.put(key, new WeakReference(image));
+        }
+
+        return image;
+    }
+
+    /**
+     * Returns a copy of this image that is not shared.
+     */
+    ROMImage copy() {
+        return new ROMImage(this);
+    }
+
+    /**
+     * Decodes the instructions in the address range from..to-1 into the decoded
+     * program and updates the lengths of the basic blocks that contain them.
+     */
+    void decode(int from, int to) {
+        for (int i = from; i < to; i++)
+            decoded[i] = InstructionDecoder.decode(program[i]);
+
+        // the blocks that start before the range are updated until a block is
+        // found that doesn't continue into the range.
+        for (int i = to - 1; i >= 0; i--) {
+            int length = (i == program.length - 1 || InstructionDecoder.isBlockEnd(decoded[i])) ?
+                         1 : blockLengths[i + 1] + 1;
+            if (i < from && blockLengths[i] == length)
+                break;
+            blockLengths[i] = length;
+        }
+    }
+}
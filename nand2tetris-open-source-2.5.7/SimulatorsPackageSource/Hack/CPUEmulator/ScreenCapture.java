@@ -0,0 +1,410 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * Captures the screen of a RAM into image files without a GUI.
+ * A capture copies the screen words from the RAM array. The copies are encoded
+ * and written by a background thread, so the simulation only pays for the copy.
+ * Files whose name ends with .png are written as PNG, other files as binary PBM.
+ * Frames can also be captured every given number of steps, into files that
+ * are numbered by the time of the frame.
+ * Screens are compared by a perceptual hash: the screen is divided into a grid of
+ * cells, and each cell gives one bit that is set if it has ink and at least
+ * as much ink as the average cell. Similar screens have hashes that differ
+ * in few bits.
+ */
+public class ScreenCapture implements Runnable {
+
+    // The number of cells of the perceptual hash in each direction
+    private static final int HASH_COLUMNS = 16;
+    private static final int HASH_ROWS = 16;
+
+    // The number of longs in a perceptual hash
+    private static final int HASH_LENGTH = HASH_COLUMNS * HASH_ROWS / 64;
+
+    // The size of a hash cell in words and in rows
+    private static final int CELL_WORDS = Definitions.SCREEN_WIDTH / Definitions.BITS_PER_WORD /
+                                          HASH_COLUMNS;
+    private static final int CELL_ROWS = Definitions.SCREEN_HEIGHT / HASH_ROWS;
+
+    // The number of words in a screen row
+    private static final int WORDS_PER_ROW = Definitions.SCREEN_WIDTH / Definitions.BITS_PER_WORD;
+
+    // The maximum number of frames that wait to be written
+    private static final int MAX_QUEUED_FRAMES = 64;
+
+    // The RAM
+    private RAM ram;
+
+    // The frames that wait to be written: pairs of a file name and screen words
+    private Vector queue = new Vector();
+
+    // The writer thread (null until the first capture)
+    private Thread writer;
+
+    // True while the writer thread writes a frame that was taken from the queue
+    private boolean writing;
+
+    // The first error of the writer thread since the last flush (or null)
+    private String error;
+
+    // The file name pattern of the periodic frames and the number of steps
+    // between them (0 if none are captured)
+    private String framePattern;
+    private long frameInterval;
+
+    /**
+     * Constructs a new screen capture of the given RAM.
+     */
+    public ScreenCapture(RAM ram) {
+        this.ram = ram;
+    }
+
+    /**
+     * Captures the current screen into the given file.
+     */
+    public void capture(String fileName) {
+        int[] screen = copyScreen();
+
+        synchronized (this) {
+            while (queue.size() >= MAX_QUEUED_FRAMES) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {}
+            }
+
+            queue.addElement(new Object[]{fileName, screen});
+            notifyAll();
+
+            if (writer == null) {
+                writer = new Thread(this, "Screen capture");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+    }
+
+    /**
+     * Captures a frame every given number of steps (0 for none) into files with
+     * the given name, where the time of the frame is inserted before the extension.
+     */
+    public void setFrames(String fileName, long interval) {
+        framePattern = fileName;
+        frameInterval = interval;
+    }
+
+    /**
+     * Returns the number of steps from the given time to the next periodic
+     * frame, or Long.MAX_VALUE if no frames are captured.
+     */
+    public long getStepsToNextFrame(long time) {
+        return frameInterval > 0 ? frameInterval - time % frameInterval : Long.MAX_VALUE;
+    }
+
+    /**
+     * Called after steps were executed, with the current time.
+     * Captures a periodic frame if one is due at that time.
+     */
+    public void stepped(long time) {
+        if (frameInterval > 0 && time % frameInterval == 0) {
+            int dot = framePattern.lastIndexOf('.');
+            if (dot <= framePattern.lastIndexOf('/'))
+                dot = framePattern.length();
+            capture(framePattern.substring(0, dot) + "-" + time + framePattern.substring(dot));
+        }
+    }
+
+    /**
+     * Waits until all the captured frames are written.
+     * Throws ProgramException if one of them couldn't be written.
+     */
+    public void flush() throws ProgramException {
+        String error;
+        synchronized (this) {
+            while (queue.size() > 0 || writing) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {}
+            }
+
+            error = this.error;
+            this.error = null;
+        }
+
+        if (error != null)
+            throw new ProgramException(error);
+    }
+
+    /**
+     * Writes the captured frames. Executed by the writer thread.
+     */
+    public void run() {
+        while (true) {
+            String fileName;
+            int[] screen;
+            synchronized (this) {
+                while (queue.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {}
+                }
+
+                Object[] frame = (Object[])queue.elementAt(0);
+                queue.removeElementAt(0);
+                fileName = (String)frame[0];
+                screen = (int[])frame[1];
+                writing = true;
+                notifyAll();
+            }
+
+            // any failure is reported by the next flush, and the thread goes on
+            // writing the following frames
+            String failure = null;
+            try {
+                write(fileName, screen);
+            } catch (IOException ioe) {
+                failure = ioe.getMessage();
+            } catch (Throwable t) {
+                failure = t.toString();
+            } finally {
+                synchronized (this) {
+                    if (failure != null && error == null)
+                        error = "Could not write screen to " + fileName + ": " + failure;
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the perceptual hash of the current screen with that of the given
+     * image file (see read()). Throws ProgramException if they differ in more than
+     * the given number of bits or if the file can't be read.
+     */
+    public void compare(String fileName, int maxDistance) throws ProgramException {
+        // the file may be a frame that was just captured
+        flush();
+
+        int[] expected;
+        try {
+            expected = read(fileName);
+        } catch (IOException ioe) {
+            throw new ProgramException("Could not read screen from " + fileName + ": " +
+                                       ioe.getMessage());
+        }
+
+        int distance = getDistance(getHash(copyScreen()), getHash(expected));
+        if (distance > maxDistance)
+            throw new ProgramException("The screen differs from " + fileName + " (distance " +
+                                       distance + ")");
+    }
+
+    /**
+     * Returns the perceptual hash of the given screen words.
+     */
+    public static long[] getHash(int[] screen) {
+        int[] ink = new int[HASH_COLUMNS * HASH_ROWS];
+        int total = 0;
+
+        for (int row = 0; row < Definitions.SCREEN_HEIGHT; row++) {
+            for (int word = 0; word < WORDS_PER_ROW; word++) {
+                int count = Integer.bitCount(screen[row * WORDS_PER_ROW + word] & 0xffff);
+                ink[(row / CELL_ROWS) * HASH_COLUMNS + word / CELL_WORDS] += count;
+                total += count;
+            }
+        }
+
+        long[] hash = new long[HASH_LENGTH];
+        for (int i = 0; i < ink.length; i++)
+            if (ink[i] > 0 && ink[i] * ink.length >= total)
+                hash[i >> 6] |= 1L << i;
+
+        return hash;
+    }
+
+    /**
+     * Returns the number of bits in which the given hashes differ.
+     */
+    public static int getDistance(long[] hash1, long[] hash2) {
+        int distance = 0;
+        for (int i = 0; i < hash1.length; i++)
+            distance += Long.bitCount(hash1[i] ^ hash2[i]);
+
+        return distance;
+    }
+
+    /**
+     * Writes the given screen words into the given file (PNG or PBM).
+     */
+    public static void write(String fileName, int[] screen) throws IOException {
+        if (fileName.toLowerCase().endsWith(".png")) {
+            BufferedImage image = new BufferedImage(Definitions.SCREEN_WIDTH,
+                                                    Definitions.SCREEN_HEIGHT,
+                                                    BufferedImage.TYPE_BYTE_BINARY);
+            WritableRaster raster = image.getRaster();
+            for (int y = 0; y < Definitions.SCREEN_HEIGHT; y++)
+                for (int x = 0; x < Definitions.SCREEN_WIDTH; x++)
+                    raster.setSample(x, y, 0, isInk(screen, x, y) ? 0 : 1);
+
+            if (!ImageIO.write(image, "png", new File(fileName)))
+                throw new IOException("PNG is not supported");
+        }
+        else {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+            try {
+                out.write(("P4\n" + Definitions.SCREEN_WIDTH + " " + Definitions.SCREEN_HEIGHT +
+                           "\n").getBytes("US-ASCII"));
+
+                // the first pixel of a word is its lowest bit, and the first
+                // pixel of a PBM byte is its highest bit
+                for (int i = 0; i < screen.length; i++) {
+                    int reversed = Integer.reverse(screen[i]);
+                    out.write(reversed >>> 24);
+                    out.write(reversed >>> 16);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the given image file (PNG, or plain or binary PBM) of the screen's size
+     * and returns its screen words. Dark pixels are ink.
+     */
+    public static int[] read(String fileName) throws IOException {
+        int[] screen = new int[Definitions.SCREEN_SIZE_IN_WORDS];
+
+        if (fileName.toLowerCase().endsWith(".png")) {
+            BufferedImage image = ImageIO.read(new File(fileName));
+            if (image == null)
+                throw new IOException("not a PNG file");
+            checkSize(image.getWidth(), image.getHeight());
+
+            for (int y = 0; y < Definitions.SCREEN_HEIGHT; y++) {
+                for (int x = 0; x < Definitions.SCREEN_WIDTH; x++) {
+                    int rgb = image.getRGB(x, y);
+                    int luminance = (((rgb >> 16) & 0xff) * 3 + ((rgb >> 8) & 0xff) * 6 +
+                                     (rgb & 0xff)) / 10;
+                    if (luminance < 128)
+                        setInk(screen, x, y);
+                }
+            }
+        }
+        else {
+            InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+            try {
+                String magic = readToken(in);
+                if (!magic.equals("P1") && !magic.equals("P4"))
+                    throw new IOException("not a PBM file");
+                checkSize(Integer.parseInt(readToken(in)), Integer.parseInt(readToken(in)));
+
+                for (int y = 0; y < Definitions.SCREEN_HEIGHT; y++) {
+                    if (magic.equals("P1")) {
+                        for (int x = 0; x < Definitions.SCREEN_WIDTH; x++) {
+                            int c;
+                            do {
+                                c = in.read();
+                            } while (c != '0' && c != '1' && c != -1);
+                            if (c == -1)
+                                throw new EOFException("the file is truncated");
+                            if (c == '1')
+                                setInk(screen, x, y);
+                        }
+                    }
+                    else {
+                        // every byte holds 8 pixels, the first in its highest bit
+                        for (int x = 0; x < Definitions.SCREEN_WIDTH; x += 8) {
+                            int b = in.read();
+                            if (b == -1)
+                                throw new EOFException("the file is truncated");
+                            for (int i = 0; i < 8; i++)
+                                if ((b & (0x80 >> i)) != 0)
+                                    setInk(screen, x + i, y);
+                        }
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IOException("illegal PBM size");
+            } finally {
+                in.close();
+            }
+        }
+
+        return screen;
+    }
+
+    // Returns a copy of the screen words of the RAM.
+    private int[] copyScreen() {
+        int[] screen = new int[Definitions.SCREEN_SIZE_IN_WORDS];
+        System.arraycopy(ram.getContents(), Definitions.SCREEN_START_ADDRESS, screen, 0,
+                         screen.length);
+        return screen;
+    }
+
+    // Returns true if the pixel at the given coordinates of the given screen is ink.
+    private static boolean isInk(int[] screen, int x, int y) {
+        return (screen[y * WORDS_PER_ROW + x / Definitions.BITS_PER_WORD] &
+                (1 << (x % Definitions.BITS_PER_WORD))) != 0;
+    }
+
+    // Sets the pixel at the given coordinates of the given screen to ink.
+    private static void setInk(int[] screen, int x, int y) {
+        screen[y * WORDS_PER_ROW + x / Definitions.BITS_PER_WORD] |=
+            1 << (x % Definitions.BITS_PER_WORD);
+    }
+
+    // Throws IOException if the given image size is not the screen's size.
+    private static void checkSize(int width, int height) throws IOException {
+        if (width != Definitions.SCREEN_WIDTH || height != Definitions.SCREEN_HEIGHT)
+            throw new IOException("the image is " + width + "x" + height + " instead of " +
+                                  Definitions.SCREEN_WIDTH + "x" + Definitions.SCREEN_HEIGHT);
+    }
+
+    // Reads a PBM header token, skipping white space and comments.
+    private static String readToken(InputStream in) throws IOException {
+        int c = in.read();
+        while (c == '#' || Character.isWhitespace((char)c)) {
+            if (c == '#')
+                while (c != '\n' && c != -1)
+                    c = in.read();
+            else
+                c = in.read();
+        }
+
+        StringBuffer token = new StringBuffer();
+        while (c != -1 && !Character.isWhitespace((char)c)) {
+            token.append((char)c);
+            c = in.read();
+        }
+
+        if (token.length() == 0)
+            throw new EOFException("the file is truncated");
+
+        return token.toString();
+    }
+}
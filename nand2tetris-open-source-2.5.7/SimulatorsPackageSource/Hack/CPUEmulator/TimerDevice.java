@@ -0,0 +1,74 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Utilities.*;
+
+/**
+ * A cycle counter device, which lets programs measure how many instructions
+ * a piece of code takes. It has three addresses from Definitions.TIMER_ADDRESS:
+ * writing 0 to the first one restarts the counter, and writing any other value
+ * to it stores the number of instructions that were executed since the restart
+ * into the second address (its low 15 bits) and into the third address (the
+ * next 15 bits), so that both are positive 16-bit values.
+ */
+public class TimerDevice implements Device {
+
+    /**
+     * The number of addresses of the device.
+     */
+    public static final int SIZE = 3;
+
+    // The ram of the device
+    private RAM ram;
+
+    // The time at which the counter was restarted
+    private long startTime;
+
+    /**
+     * Constructs a new timer device in the given RAM.
+     */
+    public TimerDevice(RAM ram) {
+        this.ram = ram;
+    }
+
+    public int getStartAddress() {
+        return Definitions.TIMER_ADDRESS;
+    }
+
+    public int getSize() {
+        return SIZE;
+    }
+
+    public void valueWritten(int address, int value, long time) {
+        if (address != Definitions.TIMER_ADDRESS)
+            return;
+
+        if (value == 0)
+            startTime = time;
+        else {
+            long elapsed = time - startTime;
+            ram.setValueAt(address + 1, (int)(elapsed & 0x7fff), true);
+            ram.setValueAt(address + 2, (int)((elapsed >> 15) & 0x7fff), true);
+        }
+    }
+
+    public void reset() {
+        startTime = 0;
+    }
+}
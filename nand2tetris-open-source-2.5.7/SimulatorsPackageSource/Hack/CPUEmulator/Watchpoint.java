@@ -0,0 +1,111 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+/**
+ * A watchpoint of the CPU emulator: a breakpoint that was compiled once into
+ * the watched part of the machine (a register, a range of RAM or ROM addresses
+ * or the time) and the value that it waits for.
+ * A RAM watchpoint holds if any of its addresses has the value.
+ */
+public class Watchpoint {
+
+    /**
+     * The watched parts
+     */
+    public static final int A = 1;
+    public static final int D = 2;
+    public static final int PC = 3;
+    public static final int TIME = 4;
+    public static final int RAM = 5;
+    public static final int ROM = 6;
+
+    // The watched part
+    private int type;
+
+    // The range of watched addresses (for RAM & ROM watchpoints)
+    private int start, end;
+
+    // The value that the watchpoint waits for
+    private long value;
+
+    /**
+     * Constructs a new watchpoint of the given part (out of the constants above),
+     * range of addresses (ignored for registers and the time) and value.
+     */
+    public Watchpoint(int type, int start, int end, long value) {
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.value = value;
+    }
+
+    /**
+     * Returns the watched part.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the first watched address.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the last watched address.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the value that the watchpoint waits for.
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * Returns true if the watched part of the given cpu has the value.
+     */
+    public boolean holds(CPU cpu) {
+        switch (type) {
+            case A:
+                return cpu.getA().get() == value;
+            case D:
+                return cpu.getD().get() == value;
+            case PC:
+                return cpu.getPC().get() == value;
+            case TIME:
+                return cpu.getTime() == value;
+            case RAM:
+                for (int i = start; i <= end; i++)
+                    if (cpu.getRAM().getValueAt(i) == value)
+                        return true;
+                return false;
+            default:
+                for (int i = start; i <= end; i++)
+                    if (cpu.getROM().getValueAt(i) == value)
+                        return true;
+                return false;
+        }
+    }
+}
@@ -20,12 +20,23 @@ package Hack.VMEmulator;
 import Hack.Controller.ProgramException;
 import Hack.Utilities.Definitions;
 import java.io.File;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
+import java.util.Hashtable;
+import java.util.Vector;
 
 /**
  * A class that runs built-in VM code as a coroutine so that
  * built-in code may pause and call VM code that the user may debug and step
  * through.
+ * Built-in functions are first invoked directly on the VM emulator thread.
+ * A function that needs to pause (by calling a VM function or entering an
+ * infinite loop) is unwound, its memory writes are undone, and it is re-run
+ * (and from then on always run) as a coroutine on the built-in code thread.
+ * Built-in functions should therefore request such calls before changing any
+ * state of their own.
+ * Each built-in function is looked up once and is then called by its id
+ * through a method handle.
  */
 public class BuiltInFunctionsRunner implements Runnable {
 
@@ -45,16 +56,53 @@ public class BuiltInFunctionsRunner implements Runnable {
 	}
     private class ProgramToBuiltInRequest {
 		int request;
-		Method functionObject;
-		Object[] params;
+		BuiltInFunction function;
+		int[] params;
 		int returnValue;
 	};
 	private BuiltInToProgramRequest builtInToProgram;
 	private ProgramToBuiltInRequest programToBuiltIn;
 
-	// The thread that runs the built-in code
+	/**
+	 * Thrown down the stack of a directly invoked built-in function that
+	 * needs to pause, so that it will be re-run as a coroutine.
+	 */
+	private static class SuspendRequest extends Error {
+	}
+
+	/**
+	 * A resolved built-in function.
+	 */
+	private static class BuiltInFunction {
+		// The name of the implementing method
+		String name;
+		// The implementing method, adapted to take an int[] and return an int
+		MethodHandle handle;
+		// True if the function must run as a coroutine
+		boolean coroutine;
+	}
+
+	// The thread that runs the built-in code (started when first needed)
 	private Thread thread;
 
+	// The resolved built-in functions, indexed by their ids
+	private Vector builtInFunctions;
+
+	// The ids (Integer) of the resolved built-in functions by name and
+	// number of arguments
+	private Hashtable builtInFunctionIds;
+
+	// True while a built-in function is invoked directly
+	private boolean direct;
+
+	// The error that terminated a directly invoked function (or null)
+	private String directError;
+
+	// The addresses and previous values written by a directly invoked function
+	private int[] undoAddresses;
+	private int[] undoValues;
+	private int undoCount;
+
 	// The CPU that communicates with this class
 	private CPU cpu;
 
@@ -91,13 +139,26 @@ public class BuiltInFunctionsRunner implements Runnable {
 		this.builtInDir = builtInDir;
 		builtInToProgram = new BuiltInToProgramRequest();
 		programToBuiltIn = new ProgramToBuiltInRequest();
+		builtInFunctions = new Vector();
+		builtInFunctionIds = new Hashtable();
+		undoAddresses = new int[16];
+		undoValues = new int[16];
+    }
+
+	/**
+	 * Starts the built-in code runner thread if it isn't running yet.
+	 */
+	private void startThread() {
+		if (thread != null)
+			return;
+
 		thread = new Thread(this);
 		synchronized (this) {
 			thread.start();
 			continueOtherThread(); // Let the built-in code runner init itself
 								   // The notify part of this call does nothing
 		}
-    }
+	}
 
 	/**
 	 * Called by the VM emulator. Tells the built-in code runner thread
@@ -105,6 +166,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * this was completed.
 	 */
 	public void killAllRunningBuiltInFunctions() {
+		if (thread == null)
+			return; // no built-in function ever ran as a coroutine
+
 		programToBuiltIn.request = END_PROGRAM_REQUEST;
 		continueOtherThread();
 	}
@@ -123,11 +187,47 @@ public class BuiltInFunctionsRunner implements Runnable {
 	/**
 	 * Called by the VM emulator. Searches for a built-in vm function by its
 	 * name and number of parameters (the length of the params array).
-	 * If found - tells the built-in code runner thread
-	 * to call the named built-in function with the given params.
+	 * If found - calls the named built-in function with the given params.
 	 * Throws a ProgramException if no built-in implementation was found.
 	 */
 	public void callBuiltInFunction(String functionName, int[] params) throws ProgramException {
+		callBuiltInFunction(getBuiltInFunctionId(functionName, params.length),
+							params);
+	}
+
+	/**
+	 * Called by the VM emulator. Calls the built-in function with the given
+	 * id (see getBuiltInFunctionId) with the given params.
+	 */
+	public void callBuiltInFunction(int functionId, int[] params) throws ProgramException {
+		BuiltInFunction function = (BuiltInFunction)builtInFunctions.elementAt(functionId);
+		if (!function.coroutine) {
+			if (callDirectly(function, params))
+				return;
+			function.coroutine = true;
+		}
+
+		startThread();
+		programToBuiltIn.request = CALL_REQUEST;
+		programToBuiltIn.params = params;
+		programToBuiltIn.function = function;
+
+		sendBuiltInRequestAndWaitForAnswer();
+	}
+
+	/**
+	 * Searches for a built-in vm function by its name and number of
+	 * parameters and returns its id. The search is done only once for each
+	 * function.
+	 * Throws a ProgramException if no built-in implementation was found.
+	 */
+	public int getBuiltInFunctionId(String functionName, int numberOfArguments)
+			throws ProgramException {
+		String key = functionName + "/" + numberOfArguments;
+		Integer id = (Integer)builtInFunctionIds.get(key);
+		if (id != null)
+			return id.intValue();
+
         int dotLocation = functionName.indexOf(".");
         if (dotLocation == -1) {
             throw new ProgramException("Illegal function name: " + functionName);
@@ -161,11 +261,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
 		}
 
-		// Find the implementing method & fill in the request
-		Class[] paramsClasses = new Class[params.length];
-		Object[] requestParams = new Object[params.length];
-		for (int i=0; i<params.length; ++i) {
-			requestParams[i] = new Integer(params[i]);
+		// Find the implementing method
+		Class[] paramsClasses = new Class[numberOfArguments];
+		for (int i=0; i<numberOfArguments; ++i) {
 			paramsClasses[i] = int.class;
 		}
 
@@ -174,18 +272,101 @@ public class BuiltInFunctionsRunner implements Runnable {
 			functionObject =
 				implementingClass.getDeclaredMethod(methodName, paramsClasses);
 		} catch (NoSuchMethodException nsme) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+params.length+" argument"+(params.length==1?"":"s")+".");
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+numberOfArguments+" argument"+(numberOfArguments==1?"":"s")+".");
 		}
 		Class returnType = functionObject.getReturnType();
 		if (returnType != int.class && returnType != void.class &&
 			returnType != char.class && returnType != boolean.class) {
-			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+params.length+" arguments doesn't return int/char/void/boolean.");
+			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+numberOfArguments+" arguments doesn't return int/char/void/boolean.");
 		}
-		programToBuiltIn.request = CALL_REQUEST;
-		programToBuiltIn.params = requestParams;
-		programToBuiltIn.functionObject = functionObject;
-			
-		sendBuiltInRequestAndWaitForAnswer();
+
+		BuiltInFunction function = new BuiltInFunction();
+		function.name = methodName;
+		function.handle = getHandle(functionObject, numberOfArguments);
+		builtInFunctions.addElement(function);
+		id = new Integer(builtInFunctions.size() - 1);
+		builtInFunctionIds.put(key, id);
+		return id.intValue();
+	}
+
+	/**
+	 * Returns a method handle for the given built-in method that takes the
+	 * given number of arguments as an int[] and returns a VM value.
+	 */
+	private static MethodHandle getHandle(Method functionObject,
+										  int numberOfArguments)
+			throws ProgramException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle handle;
+		try {
+			handle = lookup.unreflect(functionObject);
+			Class returnType = functionObject.getReturnType();
+			if (returnType == void.class) {
+				handle = MethodHandles.filterReturnValue(handle,
+					MethodHandles.constant(int.class, new Integer(0)));
+			} else if (returnType == boolean.class) {
+				handle = MethodHandles.filterReturnValue(handle,
+					lookup.findStatic(BuiltInFunctionsRunner.class, "toVMValue",
+						MethodType.methodType(int.class, boolean.class)));
+			} else { // int or char
+				handle = handle.asType(handle.type().changeReturnType(int.class));
+			}
+		} catch (IllegalAccessException iae) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+functionObject.getName());
+		} catch (NoSuchMethodException nsme) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+functionObject.getName());
+		}
+		return handle.asSpreader(int[].class, numberOfArguments);
+	}
+
+	/**
+	 * Invokes the given built-in function on the VM emulator thread and
+	 * returns its value to the CPU. Returns false (after undoing the memory
+	 * writes of the function) if the function needs to pause and should
+	 * therefore run as a coroutine.
+	 * If an exception was thrown by the function, throws a ProgramException.
+	 */
+	private boolean callDirectly(BuiltInFunction function, int[] params)
+			throws ProgramException {
+		// Make sure that memory access for the built-in code run on this
+		// thread is done by this instance of BuiltInFunctionsRunner.
+		BuiltInVMClass.associateForThread(this);
+		direct = true;
+		directError = null;
+		undoCount = 0;
+
+		int returnValue;
+		try {
+			returnValue = (int)function.handle.invokeExact(params);
+		} catch (SuspendRequest sr) {
+			undoMemoryWrites();
+			return false;
+		} catch (Throwable t) {
+			if (t instanceof TerminateVMProgramThrowable && directError != null)
+				throw new ProgramException(directError);
+			throw new ProgramException("The built-in implementation of "+function.name+" caused an exception: "+t.toString());
+		} finally {
+			direct = false;
+		}
+
+		cpu.returnFromBuiltInFunction(returnValue);
+		return true;
+	}
+
+	/**
+	 * Restores the memory written by a directly invoked built-in function.
+	 */
+	private void undoMemoryWrites() {
+		for (int i = undoCount - 1; i >= 0; i--)
+			cpu.getRAM().setValueAt(undoAddresses[i], undoValues[i], false);
+		undoCount = 0;
+	}
+
+	/**
+	 * Converts a boolean returned by a built-in function to a VM value.
+	 */
+	private static int toVMValue(boolean returnValue) {
+		return returnValue ? -1 : 0;
 	}
 
 	/**
@@ -257,49 +438,28 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * necessary cleanups, and rethrow it.
      */
 	public int builtInFunctionRequestsCall(String functionName, int[] params) throws TerminateVMProgramThrowable {
+		if (direct)
+			throw new SuspendRequest();
+
 		builtInToProgram.request = CALL_REQUEST;
 		builtInToProgram.details = functionName;
 		builtInToProgram.params = params;
 		// Wait for a command and loop while we're getting call commands
 		for(continueOtherThread(); programToBuiltIn.request == CALL_REQUEST;
 			continueOtherThread()) {
+			// programToBuiltIn might be overwritten until the return
+			// from the call. Save what's needed.
+			BuiltInFunction function = programToBuiltIn.function;
 			try { // Try to run the built-in implementation
-				// programToBuiltIn might be overwritten until the return
-				// from the call. Save what's needed.
-				Class returnType = programToBuiltIn.functionObject.getReturnType();
-				functionName =
-					programToBuiltIn.functionObject.getName();
-				// Execute
-				Object returnValue =
-					programToBuiltIn.functionObject.invoke(null,
-														   programToBuiltIn.params);
+				builtInToProgram.returnValue =
+					(int)function.handle.invokeExact(programToBuiltIn.params);
 				builtInToProgram.request = RETURN_REQUEST;
-				if (returnType == int.class) {
-					builtInToProgram.returnValue = ((Integer)returnValue).intValue();
-				} else if (returnType == char.class) {
-					builtInToProgram.returnValue = (int)((Character)returnValue).charValue();
-				} else if (returnType == boolean.class) {
-					if (((Boolean)returnValue).booleanValue()) {
-						builtInToProgram.returnValue = (int)-1;
-					} else {
-						builtInToProgram.returnValue = 0;
-					}
-				} else { // returnType == void.class
-					builtInToProgram.returnValue = 0;
-				}
-			} catch (IllegalAccessException iae) {
-				// Error running - abort VM program
+			} catch (TerminateVMProgramThrowable t) {
+				throw t;
+			} catch (Throwable t) {
+				// Error in the built-in function - abort VM program
 				builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-				builtInToProgram.details = "Error trying to run the built-in implementation of "+functionName;
-			} catch (InvocationTargetException ita) {
-				// Rethrow a TerminateVMProgramThrowable object that was thrown
-				try {
-					throw (TerminateVMProgramThrowable)ita.getTargetException();
-				} catch (ClassCastException cce) {
-					// Error in the built-in function - abort VM program
-					builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-					builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+ita.getTargetException().toString();
-				}
+				builtInToProgram.details = "The built-in implementation of "+function.name+" caused an exception: "+t.toString();
 			}
 		}
 		if (programToBuiltIn.request == RETURN_REQUEST) {
@@ -319,6 +479,10 @@ public class BuiltInFunctionsRunner implements Runnable {
         if (!((address >= Definitions.HEAP_START_ADDRESS && address <= Definitions.HEAP_END_ADDRESS) ||
               (address >= Definitions.SCREEN_START_ADDRESS && address <= Definitions.SCREEN_END_ADDRESS) ||
               address == 0)) {
+			if (direct) {
+				directError = "A built-in function tried to access memory outside the Heap or Screen range";
+				throw new TerminateVMProgramThrowable();
+			}
 			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
 			builtInToProgram.details = "A built-in function tried to access memory outside the Heap or Screen range";
 			continueOtherThread();
@@ -338,6 +502,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsInfiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
+		if (direct)
+			throw new SuspendRequest();
+
 		builtInToProgram.request = INFINITE_LOOP_REQUEST;
 		builtInToProgram.details = message;
 		continueOtherThread();
@@ -345,12 +512,22 @@ public class BuiltInFunctionsRunner implements Runnable {
 		throw new TerminateVMProgramThrowable();
 	}
 
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Waits for the keyboard to change.
+	 */
+	public void builtInFunctionRequestsKeyboardWait() {
+		cpu.waitForKeyboard();
+	}
+
 	/**
      * Called by a built-in function through the BuiltInVMClass class.
 	 * Writes the given value top the given address in the VM memory.
 	 */
 	public void builtInFunctionRequestsMemoryWrite(int address, int value) throws TerminateVMProgramThrowable {
 		checkMemoryAddress(address);
+		if (direct)
+			recordMemoryWrites(address, 1);
 		cpu.getRAM().setValueAt(address, value, false);
 	}
 
@@ -362,4 +539,97 @@ public class BuiltInFunctionsRunner implements Runnable {
 		checkMemoryAddress(address);
 		return cpu.getRAM().getValueAt(address);
 	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Writes the given number of values from the given array (starting at
+	 * the given offset) to the VM memory, starting at the given address.
+	 */
+	public void builtInFunctionRequestsMemoryWriteRange(int address, int[] values,
+														int offset, int length)
+			throws TerminateVMProgramThrowable {
+		if (length <= 0)
+			return;
+		checkMemoryRange(address, length);
+		if (direct)
+			recordMemoryWrites(address, length);
+		cpu.getRAM().setValuesAt(address, values, offset, length);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Reads the given number of values from the VM memory, starting at the
+	 * given address, into the given array (starting at the given offset).
+	 */
+	public void builtInFunctionRequestsMemoryReadRange(int address, int[] values,
+													   int offset, int length)
+			throws TerminateVMProgramThrowable {
+		if (length <= 0)
+			return;
+		checkMemoryRange(address, length);
+		cpu.getRAM().getValuesAt(address, values, offset, length);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Sets the given number of words of the VM memory, starting at the given
+	 * address, to the given value.
+	 */
+	public void builtInFunctionRequestsMemoryFill(int address, int length, int value)
+			throws TerminateVMProgramThrowable {
+		if (length <= 0)
+			return;
+		checkMemoryRange(address, length);
+		if (direct)
+			recordMemoryWrites(address, length);
+		cpu.getRAM().fill(address, length, value);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Copies the given number of words of the VM memory from the source
+	 * address to the destination address.
+	 */
+	public void builtInFunctionRequestsMemoryCopy(int source, int destination,
+												  int length)
+			throws TerminateVMProgramThrowable {
+		if (length <= 0)
+			return;
+		checkMemoryRange(source, length);
+		checkMemoryRange(destination, length);
+		if (direct)
+			recordMemoryWrites(destination, length);
+		cpu.getRAM().copy(source, destination, length);
+	}
+
+	/**
+	 * Makes sure that all the addresses of the given range are legal
+	 * (see checkMemoryAddress).
+	 */
+	private void checkMemoryRange(int address, int length)
+			throws TerminateVMProgramThrowable {
+		for (int i = 0; i < length; i++) {
+			checkMemoryAddress(address + i);
+		}
+	}
+
+	/**
+	 * Records the current values of the given number of words from the given
+	 * address, which a directly invoked built-in function is about to write.
+	 */
+	private void recordMemoryWrites(int address, int length) {
+		if (undoCount + length > undoAddresses.length) {
+			int newLength = Math.max(undoAddresses.length * 2, undoCount + length);
+			int[] newAddresses = new int[newLength];
+			int[] newValues = new int[newLength];
+			System.arraycopy(undoAddresses, 0, newAddresses, 0, undoCount);
+			System.arraycopy(undoValues, 0, newValues, 0, undoCount);
+			undoAddresses = newAddresses;
+			undoValues = newValues;
+		}
+		for (int i = 0; i < length; i++) {
+			undoAddresses[undoCount] = address + i;
+			undoValues[undoCount++] = cpu.getRAM().getValueAt(address + i);
+		}
+	}
 }
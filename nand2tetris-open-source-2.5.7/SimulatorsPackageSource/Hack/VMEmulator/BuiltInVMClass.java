@@ -17,7 +17,6 @@
 
 package Hack.VMEmulator;
 
-import java.util.Hashtable;
 import Hack.Utilities.Definitions;
 
 /**
@@ -27,7 +26,8 @@ import Hack.Utilities.Definitions;
  * should be static.
  */
 public abstract class BuiltInVMClass {
-	private static Hashtable builtInFunctionsRunnerByThread = new Hashtable();
+	// The BuiltInFunctionsRunner of the built-in code run by each thread
+	private static ThreadLocal builtInFunctionsRunner = new ThreadLocal();
 
 	/* Some definitions regarding the memory. */
     public static final int SCREEN_START_ADDRESS = Definitions.SCREEN_START_ADDRESS;
@@ -50,7 +50,7 @@ public abstract class BuiltInVMClass {
 	 */
     protected static void writeMemory(int address, int value)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryWrite((int)address, (int)value);
+		getRunner().builtInFunctionRequestsMemoryWrite((int)address, (int)value);
 	}
 
 	/**
@@ -60,7 +60,50 @@ public abstract class BuiltInVMClass {
 	 */
     protected static int readMemory(int address)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryRead((int)address);
+		return getRunner().builtInFunctionRequestsMemoryRead((int)address);
+	}
+
+	/**
+	 * Writes the given number of values from the given array (starting at
+	 * the given offset) to the VM memory, starting at the given address.
+	 * The values are written quietly and the screen repaints the changed
+	 * words together, so this is faster than writing the values one by one.
+	 */
+	protected static void writeMemoryRange(int address, int[] values,
+										   int offset, int length)
+			throws TerminateVMProgramThrowable {
+		getRunner().builtInFunctionRequestsMemoryWriteRange(address, values,
+															offset, length);
+	}
+
+	/**
+	 * Reads the given number of values from the VM memory, starting at the
+	 * given address, into the given array (starting at the given offset).
+	 */
+	protected static void readMemoryRange(int address, int[] values,
+										  int offset, int length)
+			throws TerminateVMProgramThrowable {
+		getRunner().builtInFunctionRequestsMemoryReadRange(address, values,
+														   offset, length);
+	}
+
+	/**
+	 * Sets the given number of words of the VM memory, starting at the
+	 * given address, to the given value.
+	 */
+	protected static void fillMemory(int address, int length, int value)
+			throws TerminateVMProgramThrowable {
+		getRunner().builtInFunctionRequestsMemoryFill(address, length, value);
+	}
+
+	/**
+	 * Copies the given number of words of the VM memory from the source
+	 * address to the destination address. The ranges may overlap.
+	 */
+	protected static void copyMemory(int source, int destination, int length)
+			throws TerminateVMProgramThrowable {
+		getRunner().builtInFunctionRequestsMemoryCopy(source, destination,
+													  length);
 	}
 
 	/**
@@ -74,7 +117,7 @@ public abstract class BuiltInVMClass {
 	protected static int callFunction(String functionName,
 		   								int[] params)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsCall(functionName, params);
+		return getRunner().builtInFunctionRequestsCall(functionName, params);
 	}
 
 	protected static int callFunction(String functionName)
@@ -114,6 +157,15 @@ public abstract class BuiltInVMClass {
 													  (int)param4});
 	}
 
+	/**
+	 * Waits for the keyboard to change. Should be called between reads of
+	 * the keyboard by a built-in function that waits for a key, so that
+	 * replayed keys are pressed (see CPU.waitForKeyboard()).
+	 */
+	protected static void waitForKeyboard() {
+		getRunner().builtInFunctionRequestsKeyboardWait();
+	}
+
 	/**
 	 * Should be called only by Sys.halt (or an equivalent routine in an
 	 * alternative hack operating system).
@@ -126,7 +178,7 @@ public abstract class BuiltInVMClass {
 	 */
 	protected static void infiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsInfiniteLoop(message);
+		getRunner().builtInFunctionRequestsInfiniteLoop(message);
 	}
 
 
@@ -143,7 +195,12 @@ public abstract class BuiltInVMClass {
 	 * methods.
 	 */
 	static final void associateForThread(BuiltInFunctionsRunner bifr) {
-		builtInFunctionsRunnerByThread.put(Thread.currentThread(), bifr);
+		builtInFunctionsRunner.set(bifr);
+	}
+
+	// Returns the BuiltInFunctionsRunner of the current thread.
+	private static BuiltInFunctionsRunner getRunner() {
+		return (BuiltInFunctionsRunner)builtInFunctionsRunner.get();
 	}
 
 }
@@ -20,8 +20,10 @@ package Hack.VMEmulator;
 import Hack.ComputerParts.*;
 import java.util.*;
 import java.io.*;
+import java.nio.*;
 import Hack.Utilities.*;
 import Hack.CPUEmulator.RAM;
+import Hack.CPUEmulator.KeyboardReplay;
 import Hack.Controller.*;
 import Hack.VirtualMachine.*;
 
@@ -34,14 +36,21 @@ public class CPU {
     private static final int MAIN_STACK = 1;
     private static final int METHOD_STACK = 2;
 
+    // The number of milliseconds that a built-in function waits for the
+    // keyboard between reads
+    private static final int KEYBOARD_WAIT_MS = 25;
+
+    // The suffix of built-in function names in the call stack
+    private static final String BUILT_IN_SUFFIX = " (built-in)";
+
     // The program that will be executed
-    private VMProgram program;
+    protected VMProgram program;
 
     // The memory used by the CPU
-    private RAM ram;
+    protected RAM ram;
 
     // The call stack
-    private CallStack callStack;
+    protected CallStack callStack;
 
     // The calculator
     private Calculator calculator;
@@ -50,27 +59,30 @@ public class CPU {
     private Bus bus;
 
     // The memory segments
-    private AbsolutePointedMemorySegment stackSegment;
-    private TrimmedAbsoluteMemorySegment workingStackSegment;
-    private MemorySegment staticSegment;
-    private MemorySegment localSegment;
-    private MemorySegment argSegment;
-    private MemorySegment thisSegment;
-    private MemorySegment thatSegment;
-    private MemorySegment tempSegment;
+    protected AbsolutePointedMemorySegment stackSegment;
+    protected TrimmedAbsoluteMemorySegment workingStackSegment;
+    protected MemorySegment staticSegment;
+    protected MemorySegment localSegment;
+    protected MemorySegment argSegment;
+    protected MemorySegment thisSegment;
+    protected MemorySegment thatSegment;
+    protected MemorySegment tempSegment;
 
     // A mapping from memory segment codes to the MemorySegment objects (not including stack).
     private MemorySegment[] segments;
 
     // A stack of method frame addresses
-    private Vector stackFrames;
+    protected Vector stackFrames;
 
     // The last instruction that was executed.
-    private VMEmulatorInstruction currentInstruction;
+    protected VMEmulatorInstruction currentInstruction;
 
 	// Runner for built-in vm code
 	private BuiltInFunctionsRunner builtInFunctionsRunner;
 
+    // The replay of keyboard keys that built-in functions wait for (or null)
+    private KeyboardReplay keyboardReplay;
+
     /**
      * Constructs the CPU with given program, RAM, call stack, bus, stack and other
      * memory segments.
@@ -134,6 +146,29 @@ public class CPU {
 		stackFrames.clear();
         if (builtInFunctionsRunner != null) {
             builtInFunctionsRunner.killAllRunningBuiltInFunctions();
+            resolveBuiltInFunctions();
+        }
+    }
+
+    /**
+     * Resolves the built-in functions called by the program into ids, so that
+     * calling them doesn't require a lookup. A function that can't be resolved
+     * reports its error when it is called.
+     */
+    private void resolveBuiltInFunctions() {
+        for (int i = 0; i < program.getSize(); i++) {
+            VMEmulatorInstruction instruction = program.getInstructionAt(i);
+            if (instruction.getOpCode() == HVMInstructionSet.CALL_CODE &&
+                instruction.getArg0() == VMProgram.BUILTIN_FUNCTION_ADDRESS &&
+                instruction.getBuiltInFunctionId() < 0) {
+                try {
+                    instruction.setBuiltInFunctionId(
+                        builtInFunctionsRunner.getBuiltInFunctionId(
+                            instruction.getStringArg(), instruction.getArg1()));
+                } catch (ProgramException pe) {
+                    // reported if the function is called
+                }
+            }
         }
     }
 
@@ -200,6 +235,118 @@ public class CPU {
         return currentInstruction;
     }
 
+    /**
+     * Returns the number of bytes that saveState() writes.
+     * Throws ProgramException if a built-in function is running, since the state
+     * of its thread can't be saved.
+     */
+    public int getStateSize() throws ProgramException {
+        String[] functions = callStack.getFunctions();
+        int size = 5 * 4 + (4 + 4 * ram.getSize()) + 4 + (4 + 4 * stackFrames.size()) +
+                   getAllSegments().length * 3 * 4;
+        for (int i = 0; i < functions.length; i++) {
+            if (functions[i].endsWith(BUILT_IN_SUFFIX))
+                throw new ProgramException("Can't save the state while the built-in function " +
+                                           functions[i] + " is running");
+            size += StateFile.getStringSize(functions[i]);
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes the state of the cpu (the program counters, the RAM, the call stack
+     * and the memory segments) into the given buffer.
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(program.getSize());
+        buffer.putInt(program.getChecksum());
+        buffer.putInt(program.getPreviousPC());
+        buffer.putInt(program.getCurrentPC());
+        buffer.putInt(program.getPC());
+        StateFile.putInts(buffer, ram.getContents());
+
+        String[] functions = callStack.getFunctions();
+        buffer.putInt(functions.length);
+        for (int i = 0; i < functions.length; i++)
+            StateFile.putString(buffer, functions[i]);
+
+        int[] frames = new int[stackFrames.size()];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = ((Integer)stackFrames.elementAt(i)).intValue();
+        StateFile.putInts(buffer, frames);
+
+        MemorySegment[] allSegments = getAllSegments();
+        for (int i = 0; i < allSegments.length; i++) {
+            int[] range = allSegments[i].getEnabledRange();
+            buffer.putInt(allSegments[i].getStartAddress());
+            buffer.putInt(range[0]);
+            buffer.putInt(range[1]);
+        }
+    }
+
+    /**
+     * Reads a state of the cpu that was written by saveState() from the given buffer.
+     * Throws IOException if the state doesn't belong to the loaded program.
+     */
+    public void loadState(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != program.getSize() || buffer.getInt() != program.getChecksum())
+            throw new IOException("The state file doesn't match the loaded program");
+
+        int prevPC = buffer.getInt();
+        int currentPC = buffer.getInt();
+        int nextPC = buffer.getInt();
+        int[] contents = new int[ram.getSize()];
+        StateFile.getInts(buffer, contents);
+
+        int numberOfFunctions = buffer.getInt();
+        if (numberOfFunctions < 0 || numberOfFunctions > buffer.remaining() / 4)
+            throw new BufferUnderflowException();
+
+        String[] functions = new String[numberOfFunctions];
+        for (int i = 0; i < functions.length; i++)
+            functions[i] = StateFile.getString(buffer);
+
+        int[] frames = StateFile.getInts(buffer);
+
+        MemorySegment[] allSegments = getAllSegments();
+        int[][] segmentStates = new int[allSegments.length][3];
+        for (int i = 0; i < allSegments.length; i++)
+            for (int j = 0; j < 3; j++)
+                segmentStates[i][j] = buffer.getInt();
+
+        if (builtInFunctionsRunner != null)
+            builtInFunctionsRunner.killAllRunningBuiltInFunctions();
+
+        ram.setContents(contents, 0);
+        // update the segments that follow the pointers in the RAM
+        for (int i = Definitions.SP_ADDRESS; i <= Definitions.THAT_POINTER_ADDRESS; i++)
+            ram.setValueAt(i, contents[i], true);
+
+        for (int i = 0; i < allSegments.length; i++) {
+            allSegments[i].setStartAddress(segmentStates[i][0]);
+            if (segmentStates[i][1] != -1 || segmentStates[i][2] != -1)
+                allSegments[i].setEnabledRange(segmentStates[i][1], segmentStates[i][2], true);
+        }
+
+        callStack.setFunctions(functions);
+        stackFrames.removeAllElements();
+        for (int i = 0; i < frames.length; i++)
+            stackFrames.addElement(new Integer(frames[i]));
+
+        program.setPC(prevPC);
+        program.setPC(currentPC);
+        program.setPC(nextPC);
+        currentInstruction = program.getInstructionAt(currentPC);
+    }
+
+    // Returns all the memory segments whose state is saved by saveState().
+    private MemorySegment[] getAllSegments() {
+        return new MemorySegment[]{stackSegment, workingStackSegment, staticSegment,
+                                   localSegment, argSegment, thisSegment, thatSegment,
+                                   tempSegment};
+    }
+
     /**
      * Executes the current instruction (Program at pc).
      * Returns false if END command, true otherwise.
@@ -269,6 +416,16 @@ public class CPU {
         }
     }
 
+    /**
+     * Executes the given number of instructions, starting at the current
+     * instruction (Program at pc).
+     * Throws ProgramException if one of the instructions causes an error.
+     */
+    public void executeInstructions(long count) throws ProgramException {
+        for (long i = 0; i < count; i++)
+            executeInstruction();
+    }
+
     /**
      * integer addition (binary operation).
      */
@@ -435,6 +592,30 @@ public class CPU {
 		program.setPCToInfiniteLoopForBuiltIns(message);
 	}
 
+    /**
+     * Sets the replay of keyboard keys that built-in functions wait for (or null).
+     */
+    public void setKeyboardReplay(KeyboardReplay keyboardReplay) {
+        this.keyboardReplay = keyboardReplay;
+    }
+
+    /**
+     * Called by a built-in function that waits for the keyboard to change.
+     * If keys are replayed, presses the next key at once (no VM steps are
+     * executed during the wait, so the wait lasts until that key). Otherwise,
+     * sleeps for a short while.
+     */
+    public void waitForKeyboard() {
+        KeyboardReplay keyboardReplay = this.keyboardReplay;
+        if (keyboardReplay != null && !keyboardReplay.hasEnded())
+            ram.setValueAt(Definitions.KEYBOARD_ADDRESS, keyboardReplay.nextKey(), true);
+        else {
+            try {
+                Thread.sleep(KEYBOARD_WAIT_MS);
+            } catch (InterruptedException ie) {}
+        }
+    }
+
     /**
      * Returns from a built-in function
      */
@@ -564,7 +745,7 @@ public class CPU {
 			localSegment.setEnabledRange(localSegment.getStartAddress(),
 										 localSegment.getStartAddress()-1,
 										 true); // no local variables
-			callStack.pushFunction(functionName + " (built-in)");
+			callStack.pushFunction(functionName + BUILT_IN_SUFFIX);
 			staticSegment.setEnabledRange(0, -1, true); // empty static segment
 			// Read parameters from the stack
 			int[] params = new int[numberOfArguments];
@@ -572,7 +753,18 @@ public class CPU {
 				params[i] = argSegment.getValueAt(i);
 			}
 			// Call the built-in implementation
-			builtInFunctionsRunner.callBuiltInFunction(functionName, params);
+			int functionId = -1;
+			if (!callerIsBuiltIn) {
+				functionId = currentInstruction.getBuiltInFunctionId();
+			}
+			if (functionId < 0) {
+				functionId = builtInFunctionsRunner.getBuiltInFunctionId(functionName,
+																		 numberOfArguments);
+				if (!callerIsBuiltIn) {
+					currentInstruction.setBuiltInFunctionId(functionId);
+				}
+			}
+			builtInFunctionsRunner.callBuiltInFunction(functionId, params);
 		} else if (address >= 0 || address < program.getSize()) {
 			program.setPC(address);
 			program.setPC(address); // make sure previouspc isn't pc-1
@@ -592,6 +784,17 @@ public class CPU {
      * Sets the static segment range according to the the given function (file) name.
      */
     protected void setStaticRange(String functionName) throws ProgramException {
+        int[] range = getStaticRange(functionName);
+        staticSegment.setStartAddress(range[0]);
+        staticSegment.setEnabledRange(range[0], range[1], true);
+    }
+
+    /**
+     * Returns the static segment range {startAddress, endAddress} of the given
+     * function (file) name.
+     * Throws ProgramException if the function name doesn't match a class of the program.
+     */
+    protected int[] getStaticRange(String functionName) throws ProgramException {
         int dotLocation = functionName.indexOf(".");
         if (dotLocation == -1)
             throw new ProgramException("Illegal function name: " + functionName);
@@ -601,8 +804,7 @@ public class CPU {
         if (range == null)
             throw new ProgramException("Function name doesn't match class name: " + functionName);
 
-        staticSegment.setStartAddress(range[0]);
-        staticSegment.setEnabledRange(range[0], range[1], true);
+        return range;
     }
 
     // Pops the given number of arguments from the method stack to the calculator,
@@ -67,6 +67,27 @@ public class CallStack extends ComputerPart {
         }
     }
 
+    /**
+     * Returns the names of the functions in the stack, from the bottom to the top.
+     */
+    public String[] getFunctions() {
+        String[] result = new String[names.size()];
+        names.copyInto(result);
+        return result;
+    }
+
+    /**
+     * Replaces the contents of the stack with the given function names
+     * (from the bottom to the top).
+     */
+    public void setFunctions(String[] functionNames) {
+        names.removeAllElements();
+        for (int i = 0; i < functionNames.length; i++)
+            names.addElement(functionNames[i]);
+        if (displayChanges)
+            gui.setContents(names);
+    }
+
     /**
      * Resets the contents of the computer part.
      */
@@ -0,0 +1,909 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import Hack.ComputerParts.*;
+import java.io.*;
+import java.nio.*;
+import Hack.Utilities.*;
+import Hack.CPUEmulator.RAM;
+import Hack.CPUEmulator.Device;
+import Hack.Controller.*;
+import Hack.VirtualMachine.*;
+
+/**
+ * A CPU for VM emulators that have no GUI. The program is compiled into a
+ * compact int[] code stream and executed directly on the RAM array, instead
+ * of sending every value through the bus, the calculator and the memory
+ * segment computer parts.
+ * While the program runs, the program counters, the call stack, the stack
+ * frames and the enabled ranges of the memory segments are kept in plain
+ * fields. They are written back into the computer parts only when one of them
+ * is requested (for example when a script reads the current function), and
+ * are read again from them before the next instruction is executed. The RAM
+ * (including SP and the segment pointers) is always up to date between
+ * instructions, so reading and setting RAM addresses costs nothing.
+ * Writes to the RAM's devices (see RAM.getDevicePages()) are passed to them,
+ * except for the first page of the RAM (the segment pointers, the temp
+ * segment and R13-R15), whose device is given the final values of the page
+ * at the end of every run of instructions.
+ * Calls to built-in functions (and returns to them), as well as instructions
+ * that the compiled code doesn't support, are executed by the CPU computer
+ * parts, one instruction at a time.
+ * The calculator computer part is not updated by this CPU.
+ */
+public class HeadlessCPU extends CPU {
+
+    // The operations of the code stream
+    private static final int OP_NOP = 0;
+    private static final int OP_PUSH_CONSTANT = 1;
+    private static final int OP_PUSH_LOCAL = 2;
+    private static final int OP_PUSH_ARGUMENT = 3;
+    private static final int OP_PUSH_THIS = 4;
+    private static final int OP_PUSH_THAT = 5;
+    private static final int OP_PUSH_TEMP = 6;
+    private static final int OP_PUSH_STATIC = 7;
+    private static final int OP_PUSH_POINTER = 8;
+    private static final int OP_POP_LOCAL = 9;
+    private static final int OP_POP_ARGUMENT = 10;
+    private static final int OP_POP_THIS = 11;
+    private static final int OP_POP_THAT = 12;
+    private static final int OP_POP_TEMP = 13;
+    private static final int OP_POP_STATIC = 14;
+    private static final int OP_POP_THIS_POINTER = 15;
+    private static final int OP_POP_THAT_POINTER = 16;
+    private static final int OP_ADD = 17;
+    private static final int OP_SUBTRACT = 18;
+    private static final int OP_NEGATE = 19;
+    private static final int OP_EQUAL = 20;
+    private static final int OP_GREATER_THAN = 21;
+    private static final int OP_LESS_THAN = 22;
+    private static final int OP_AND = 23;
+    private static final int OP_OR = 24;
+    private static final int OP_NOT = 25;
+    private static final int OP_GOTO = 26;
+    private static final int OP_IF_GOTO = 27;
+    private static final int OP_FUNCTION = 28;
+    private static final int OP_CALL = 29;
+    private static final int OP_RETURN = 30;
+    // executed by the computer parts (see CPU.executeInstruction())
+    private static final int OP_SLOW = 31;
+
+    // The number of ints of every instruction in the code stream:
+    // operation, first argument, second argument & the address of the next
+    // instruction (the labels that follow the instruction are skipped)
+    private static final int STRIDE = 4;
+
+    // The code stream (null until the program is compiled)
+    private int[] code;
+
+    // The instructions of the compiled program
+    private VMEmulatorInstruction[] instructions;
+
+    // The static segment range of the function that each instruction declares
+    // (null if it declares none or if its name doesn't match a class)
+    private int[][] functionStaticRanges;
+
+    // If true, the fields below hold the current state and the computer parts
+    // (except for the RAM) may be out of date.
+    private boolean cached;
+
+    // The previous, current & next program counters
+    private int prevPC, currentPC, nextPC;
+
+    // The names of the functions in the call stack (from the bottom to the top)
+    // and their static segment ranges (null if the name doesn't match a class)
+    private String[] functionNames = new String[16];
+    private int[][] staticRanges = new int[16][];
+    private int functionCount;
+
+    // The stack frame addresses
+    private int[] frames = new int[16];
+    private int frameCount;
+
+    // The start address of the working stack
+    private int workingStackStart;
+
+    // The enabled ranges of the memory segments
+    private int localStart, localEnd;
+    private int argStart, argEnd;
+    private int thisStart, thisEnd;
+    private int thatStart, thatEnd;
+    private int tempStart, tempEnd;
+    private int staticStart, staticEnd;
+
+    // The start addresses of the static & temp segments
+    private int staticAddress, tempAddress;
+
+    // The device table of the RAM that deviceStart was found for
+    private Device[] devicePages;
+
+    // The first address after the first page of the RAM that has a device
+    private int deviceStart;
+
+    /**
+     * Constructs the CPU with given program, RAM, call stack, bus, stack and other
+     * memory segments. The program should have no GUI.
+     */
+    public HeadlessCPU(VMProgram program, RAM ram, CallStack callStack,
+                       Calculator calculator, Bus bus,
+                       AbsolutePointedMemorySegment stackSegment,
+                       TrimmedAbsoluteMemorySegment workingStackSegment,
+                       MemorySegment staticSegment, MemorySegment localSegment,
+                       MemorySegment argSegment, MemorySegment thisSegment,
+                       MemorySegment thatSegment, MemorySegment tempSegment,
+                       File builtInDir) {
+        super(program, ram, callStack, calculator, bus, stackSegment, workingStackSegment,
+              staticSegment, localSegment, argSegment, thisSegment, thatSegment, tempSegment,
+              builtInDir);
+    }
+
+    /**
+     * Initializes the cpu. The program is compiled again before the next
+     * instruction is executed.
+     */
+    public void boot() {
+        cached = false;
+        code = null;
+        super.boot();
+    }
+
+    /**
+     * Returns the program.
+     */
+    public VMProgram getProgram() {
+        writeState();
+        return program;
+    }
+
+    /**
+     * Returns the call stack.
+     */
+    public CallStack getCallStack() {
+        writeState();
+        return callStack;
+    }
+
+    /**
+     * Returns an array of the memory segments.
+     */
+    public MemorySegment[] getMemorySegments() {
+        writeState();
+        return super.getMemorySegments();
+    }
+
+    /**
+     * Returns the stack PointedMemorySegment.
+     */
+    public PointedMemorySegment getStack() {
+        writeState();
+        return stackSegment;
+    }
+
+    /**
+     * Returns the working stack PointedMemorySegment.
+     */
+    public PointedMemorySegment getWorkingStack() {
+        writeState();
+        return workingStackSegment;
+    }
+
+    /**
+     * Returns the static segment.
+     */
+    public MemorySegment getStaticSegment() {
+        writeState();
+        return staticSegment;
+    }
+
+    /**
+     * Returns the number of bytes that saveState() writes.
+     * Throws ProgramException if a built-in function is running.
+     */
+    public int getStateSize() throws ProgramException {
+        writeState();
+        return super.getStateSize();
+    }
+
+    /**
+     * Writes the state of the cpu into the given buffer.
+     */
+    public void saveState(ByteBuffer buffer) {
+        writeState();
+        super.saveState(buffer);
+    }
+
+    /**
+     * Reads a state of the cpu that was written by saveState() from the given buffer.
+     * Throws IOException if the state doesn't belong to the loaded program.
+     */
+    public void loadState(ByteBuffer buffer) throws IOException {
+        writeState();
+        super.loadState(buffer);
+    }
+
+    /**
+     * Enters an infinite loop requested by a built-in function.
+     */
+    public void infiniteLoopFromBuiltIn(String message) {
+        writeState();
+        super.infiniteLoopFromBuiltIn(message);
+    }
+
+    /**
+     * Returns from a built-in function
+     */
+    public void returnFromBuiltInFunction(int returnValue) throws ProgramException {
+        writeState();
+        super.returnFromBuiltInFunction(returnValue);
+    }
+
+    /**
+     * Calls a function according to the given function name
+     * with the given parameters from a built-in function
+     */
+    public void callFunctionFromBuiltIn(String functionName, int[] params)
+     throws ProgramException {
+        writeState();
+        super.callFunctionFromBuiltIn(functionName, params);
+    }
+
+    /**
+     * Executes the current instruction (Program at pc).
+     */
+    public void executeInstruction() throws ProgramException {
+        executeInstructions(1);
+    }
+
+    /**
+     * Executes the given number of instructions, starting at the current
+     * instruction (Program at pc).
+     * Runs of compiled instructions are executed by execute(). An instruction
+     * that isn't compiled is executed by the computer parts, after the state is
+     * written into them.
+     * Throws ProgramException if one of the instructions causes an error.
+     */
+    public void executeInstructions(long count) throws ProgramException {
+        long executed = 0;
+        while (executed < count) {
+            if (!cached)
+                readState();
+
+            executed += execute(count - executed);
+            if (executed < count) {
+                writeState();
+                super.executeInstruction();
+                executed++;
+            }
+        }
+    }
+
+    // Executes at most the given number of instructions of the code stream and
+    // returns the number of executed instructions. Stops before an instruction
+    // that must be executed by the computer parts.
+    // The checks and the error messages are those of the computer parts.
+    // Throws ProgramException if one of the instructions causes an error.
+    private long execute(long count) throws ProgramException {
+        int[] code = this.code;
+        int size = code.length / STRIDE;
+        int[] ram = this.ram.getContents();
+        Device[] devices = this.ram.getDevicePages();
+        int deviceStart = getDeviceStart(devices);
+        int sp = ram[Definitions.SP_ADDRESS];
+        int prevPC = this.prevPC, currentPC = this.currentPC, nextPC = this.nextPC;
+        long executed = 0;
+
+        // the address of the last instruction that was executed (or -1)
+        int instruction = -1;
+
+        try {
+            for (; executed < count; executed++) {
+                if (nextPC >= size) {
+                    instruction = -1;
+                    currentInstruction = null;
+                    throw new ProgramException("No more instructions to execute");
+                }
+                if (nextPC < 0)
+                    break;
+
+                int i = nextPC * STRIDE;
+                int op = code[i];
+                if (op == OP_SLOW || (op == OP_RETURN && returnsToBuiltIn(ram)))
+                    break;
+
+                prevPC = currentPC;
+                currentPC = nextPC;
+                nextPC = code[i + 3];
+                instruction = currentPC;
+
+                int arg = code[i + 1];
+                int address, value;
+                switch (op) {
+                    case OP_NOP:
+                        break;
+
+                    case OP_PUSH_CONSTANT:
+                        write(ram, devices, deviceStart, sp, arg);
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_LOCAL:
+                        address = checkSegmentIndex(ram[Definitions.LOCAL_POINTER_ADDRESS] + arg,
+                                                    localStart, localEnd, currentPC);
+                        write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_ARGUMENT:
+                        address = checkSegmentIndex(ram[Definitions.ARG_POINTER_ADDRESS] + arg,
+                                                    argStart, argEnd, currentPC);
+                        write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_THIS:
+                        address = checkSegmentIndex(ram[Definitions.THIS_POINTER_ADDRESS] + arg,
+                                                    Definitions.HEAP_START_ADDRESS,
+                                                    Definitions.HEAP_END_ADDRESS, currentPC);
+                        write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_THAT:
+                        // a null 'that' pointer may reach SP, which is kept in sp
+                        address = checkSegmentIndex(ram[Definitions.THAT_POINTER_ADDRESS] + arg,
+                                                    thatStart, thatEnd, currentPC);
+                        value = (address == Definitions.SP_ADDRESS ? sp : ram[address]);
+                        write(ram, devices, deviceStart, sp, busValue(value));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_TEMP:
+                        address = checkSegmentIndex(tempAddress + arg, tempStart, tempEnd,
+                                                    currentPC);
+                        write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_STATIC:
+                        address = checkSegmentIndex(staticAddress + arg, staticStart,
+                                                    staticEnd, currentPC);
+                        write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+                    case OP_PUSH_POINTER:
+                        write(ram, devices, deviceStart, sp, busValue(ram[arg]));
+                        sp = checkSP(sp + 1, currentPC);
+                        break;
+
+                    case OP_POP_LOCAL:
+                        address = checkSegmentIndex(ram[Definitions.LOCAL_POINTER_ADDRESS] + arg,
+                                                    localStart, localEnd, currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_ARGUMENT:
+                        address = checkSegmentIndex(ram[Definitions.ARG_POINTER_ADDRESS] + arg,
+                                                    argStart, argEnd, currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_THIS:
+                        address = checkSegmentIndex(ram[Definitions.THIS_POINTER_ADDRESS] + arg,
+                                                    Definitions.HEAP_START_ADDRESS,
+                                                    Definitions.HEAP_END_ADDRESS, currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_THAT:
+                        address = checkSegmentIndex(ram[Definitions.THAT_POINTER_ADDRESS] + arg,
+                                                    thatStart, thatEnd, currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_TEMP:
+                        address = checkSegmentIndex(tempAddress + arg, tempStart, tempEnd,
+                                                    currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_STATIC:
+                        address = checkSegmentIndex(staticAddress + arg, staticStart,
+                                                    staticEnd, currentPC);
+                        write(ram, devices, deviceStart, address, busValue(ram[sp - 1]));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+                    case OP_POP_THIS_POINTER:
+                        value = ram[sp - 1];
+                        if ((value < Definitions.HEAP_START_ADDRESS ||
+                             value > Definitions.HEAP_END_ADDRESS) && value > 0)
+                            throw error("'This' segment must be in the Heap range", currentPC);
+                        write(ram, devices, deviceStart, Definitions.THIS_POINTER_ADDRESS,
+                              busValue(value));
+                        sp = checkSP(sp - 1, currentPC);
+                        thisStart = value;
+                        thisEnd = Definitions.HEAP_END_ADDRESS;
+                        break;
+                    case OP_POP_THAT_POINTER:
+                        value = ram[sp - 1];
+                        if (!((value >= Definitions.HEAP_START_ADDRESS &&
+                               value <= Definitions.HEAP_END_ADDRESS) ||
+                              (value >= Definitions.SCREEN_START_ADDRESS &&
+                               value <= Definitions.SCREEN_END_ADDRESS) ||
+                              value == 0))
+                            throw error("'That' segment must be in the Heap or Screen range",
+                                        currentPC);
+                        write(ram, devices, deviceStart, Definitions.THAT_POINTER_ADDRESS,
+                              busValue(value));
+                        sp = checkSP(sp - 1, currentPC);
+                        thatStart = value;
+                        thatEnd = Definitions.SCREEN_END_ADDRESS;
+                        break;
+
+                    case OP_NEGATE:
+                    case OP_NOT:
+                        value = busValue(ram[checkSP(sp - 1, currentPC)]);
+                        value = (op == OP_NEGATE ? -value : ~value);
+                        write(ram, devices, deviceStart, sp - 1, busValue(value));
+                        checkSP(sp, currentPC);
+                        break;
+                    case OP_ADD:
+                    case OP_SUBTRACT:
+                    case OP_EQUAL:
+                    case OP_GREATER_THAN:
+                    case OP_LESS_THAN:
+                    case OP_AND:
+                    case OP_OR:
+                        int y = busValue(ram[checkSP(sp - 1, currentPC)]);
+                        int x = busValue(ram[checkSP(sp - 2, currentPC)]);
+                        write(ram, devices, deviceStart, sp - 2, busValue(calculate(op, x, y)));
+                        sp = checkSP(sp - 1, currentPC);
+                        break;
+
+                    case OP_GOTO:
+                        prevPC = currentPC;
+                        currentPC = nextPC;
+                        nextPC = arg;
+                        break;
+                    case OP_IF_GOTO:
+                        sp = checkSP(sp - 1, currentPC);
+                        if (ram[sp] != 0) {
+                            prevPC = currentPC;
+                            currentPC = nextPC;
+                            nextPC = arg;
+                        }
+                        break;
+
+                    case OP_FUNCTION:
+                        if (currentPC == prevPC + 1)
+                            throw new ProgramException("Missing return in " + getTopFunction());
+
+                        int numberOfLocals = arg;
+                        int newSP = checkSP(sp + numberOfLocals, currentPC);
+                        workingStackStart = newSP;
+                        localStart = sp;
+                        localEnd = newSP - 1;
+                        for (; sp < newSP; sp++)
+                            write(ram, devices, deviceStart, sp, 0);
+
+                        String functionName = instructions[currentPC].getStringArg();
+                        pushFunction(functionName, functionStaticRanges[currentPC]);
+                        setStaticRange(functionName, functionStaticRanges[currentPC]);
+                        break;
+
+                    case OP_CALL:
+                        pushFrame(workingStackStart);
+                        workingStackStart = sp + 5;
+
+                        write(ram, devices, deviceStart, sp, nextPC);
+                        sp = checkSP(sp + 1, currentPC);
+                        for (address = Definitions.LOCAL_POINTER_ADDRESS;
+                             address <= Definitions.THAT_POINTER_ADDRESS; address++) {
+                            write(ram, devices, deviceStart, sp, busValue(ram[address]));
+                            sp = checkSP(sp + 1, currentPC);
+                        }
+                        int numberOfArguments = code[i + 2];
+                        write(ram, devices, deviceStart, Definitions.ARG_POINTER_ADDRESS,
+                              sp - numberOfArguments - 5);
+                        write(ram, devices, deviceStart, Definitions.LOCAL_POINTER_ADDRESS, sp);
+                        argStart = ram[Definitions.ARG_POINTER_ADDRESS];
+                        argEnd = argStart + numberOfArguments - 1;
+
+                        prevPC = nextPC;
+                        currentPC = nextPC = arg;
+                        break;
+
+                    case OP_RETURN:
+                        int frame = ram[Definitions.LOCAL_POINTER_ADDRESS];
+                        if (frame == 0)
+                            throw new ProgramException("Nowhere to return to in " +
+                                                       getLine(currentPC));
+
+                        workingStackStart = sp;
+                        write(ram, devices, deviceStart, Definitions.R13_ADDRESS, busValue(frame));
+                        write(ram, devices, deviceStart, Definitions.R14_ADDRESS,
+                              busValue(read(ram, sp, frame - 5)));
+                        write(ram, devices, deviceStart, ram[Definitions.ARG_POINTER_ADDRESS],
+                              busValue(ram[sp - 1]));
+                        sp = ram[Definitions.ARG_POINTER_ADDRESS] + 1;
+                        frame = ram[Definitions.R13_ADDRESS];
+                        // that = *(frame - 1), this = *(frame - 2), arg = *(frame - 3),
+                        // lcl = *(frame - 4)
+                        for (address = Definitions.THAT_POINTER_ADDRESS;
+                             address >= Definitions.LOCAL_POINTER_ADDRESS; address--)
+                            write(ram, devices, deviceStart, address,
+                                  busValue(read(ram, sp, frame - 5 + address)));
+
+                        if (functionCount > 0)
+                            functionNames[--functionCount] = null;
+
+                        if (frameCount > 0) {
+                            int frameAddress = frames[--frameCount];
+                            workingStackStart = frameAddress;
+
+                            int local = ram[Definitions.LOCAL_POINTER_ADDRESS];
+                            localStart = Math.max(local, Definitions.STACK_START_ADDRESS);
+                            localEnd = frameAddress - 1;
+                            argStart = ram[Definitions.ARG_POINTER_ADDRESS];
+                            argEnd = local - 6;
+                            thisStart = Math.max(ram[Definitions.THIS_POINTER_ADDRESS],
+                                                 Definitions.HEAP_START_ADDRESS);
+                            thisEnd = Definitions.HEAP_END_ADDRESS;
+                            thatStart = Math.max(ram[Definitions.THAT_POINTER_ADDRESS],
+                                                 Definitions.HEAP_START_ADDRESS);
+                            thatEnd = Definitions.SCREEN_END_ADDRESS;
+                        }
+
+                        int returnAddress = ram[Definitions.R14_ADDRESS];
+                        if (returnAddress < 0 || returnAddress >= size)
+                            throw error("Illegal return address", currentPC);
+
+                        if (frameCount > 0)
+                            setStaticRange(getTopFunction(), (functionCount > 0 ?
+                                                              staticRanges[functionCount - 1] :
+                                                              null));
+                        else {
+                            staticAddress = staticStart = Definitions.VAR_START_ADDRESS;
+                            staticEnd = Definitions.VAR_END_ADDRESS - 1;
+                        }
+
+                        prevPC = nextPC;
+                        currentPC = returnAddress - 1;
+                        nextPC = returnAddress;
+                        break;
+                }
+            }
+        } finally {
+            this.prevPC = prevPC;
+            this.currentPC = currentPC;
+            this.nextPC = nextPC;
+            if (instruction >= 0)
+                currentInstruction = instructions[instruction];
+
+            ram[Definitions.SP_ADDRESS] = sp;
+            if (devices != null && devices[0] != null)
+                for (int address = 0; address < 1 << RAM.PAGE_SHIFT; address++)
+                    devices[0].valueWritten(address, ram[address], 0);
+        }
+
+        return executed;
+    }
+
+    // Returns true if the return instruction at the next program counter returns
+    // to a built-in function.
+    private static boolean returnsToBuiltIn(int[] ram) {
+        int frame = ram[Definitions.LOCAL_POINTER_ADDRESS];
+        return frame >= 5 && ram[frame - 5] == VMProgram.BUILTIN_FUNCTION_ADDRESS;
+    }
+
+    // Compiles the program into the code stream.
+    private void compile() {
+        int size = program.getSize();
+        code = new int[size * STRIDE];
+        instructions = new VMEmulatorInstruction[size];
+        functionStaticRanges = new int[size][];
+
+        for (int pc = 0; pc < size; pc++) {
+            VMEmulatorInstruction instruction = program.getInstructionAt(pc);
+            instructions[pc] = instruction;
+
+            int op = OP_SLOW, arg0 = instruction.getArg0(), arg1 = instruction.getArg1();
+            switch (instruction.getOpCode()) {
+                case HVMInstructionSet.ADD_CODE: op = OP_ADD; break;
+                case HVMInstructionSet.SUBSTRACT_CODE: op = OP_SUBTRACT; break;
+                case HVMInstructionSet.NEGATE_CODE: op = OP_NEGATE; break;
+                case HVMInstructionSet.EQUAL_CODE: op = OP_EQUAL; break;
+                case HVMInstructionSet.GREATER_THAN_CODE: op = OP_GREATER_THAN; break;
+                case HVMInstructionSet.LESS_THAN_CODE: op = OP_LESS_THAN; break;
+                case HVMInstructionSet.AND_CODE: op = OP_AND; break;
+                case HVMInstructionSet.OR_CODE: op = OP_OR; break;
+                case HVMInstructionSet.NOT_CODE: op = OP_NOT; break;
+                case HVMInstructionSet.LABEL_CODE: op = OP_NOP; break;
+
+                case HVMInstructionSet.PUSH_CODE:
+                    op = getSegmentOperation(arg0, arg1, true);
+                    arg0 = (op == OP_PUSH_POINTER ? getPointerAddress(arg1) : arg1);
+                    break;
+                case HVMInstructionSet.POP_CODE:
+                    op = getSegmentOperation(arg0, arg1, false);
+                    arg0 = arg1;
+                    break;
+
+                case HVMInstructionSet.GOTO_CODE: op = OP_GOTO; break;
+                case HVMInstructionSet.IF_GOTO_CODE: op = OP_IF_GOTO; break;
+
+                case HVMInstructionSet.FUNCTION_CODE:
+                    op = OP_FUNCTION;
+                    functionStaticRanges[pc] = getStaticRangeOrNull(instruction.getStringArg());
+                    break;
+                case HVMInstructionSet.RETURN_CODE: op = OP_RETURN; break;
+                case HVMInstructionSet.CALL_CODE:
+                    if (arg0 != VMProgram.BUILTIN_FUNCTION_ADDRESS)
+                        op = OP_CALL;
+                    break;
+            }
+
+            code[pc * STRIDE] = op;
+            code[pc * STRIDE + 1] = arg0;
+            code[pc * STRIDE + 2] = arg1;
+        }
+
+        // the next instruction skips the labels that follow
+        int next = size;
+        for (int pc = size - 1; pc >= 0; pc--) {
+            code[pc * STRIDE + 3] = next;
+            if (instructions[pc].getOpCode() != HVMInstructionSet.LABEL_CODE)
+                next = pc;
+        }
+    }
+
+    // Returns the operation that pushes (or pops) the given index of the given segment.
+    private static int getSegmentOperation(int segmentCode, int index, boolean push) {
+        switch (segmentCode) {
+            case HVMInstructionSet.CONST_SEGMENT_CODE:
+                return (push ? OP_PUSH_CONSTANT : OP_SLOW);
+            case HVMInstructionSet.LOCAL_SEGMENT_CODE:
+                return (push ? OP_PUSH_LOCAL : OP_POP_LOCAL);
+            case HVMInstructionSet.ARG_SEGMENT_CODE:
+                return (push ? OP_PUSH_ARGUMENT : OP_POP_ARGUMENT);
+            case HVMInstructionSet.THIS_SEGMENT_CODE:
+                return (push ? OP_PUSH_THIS : OP_POP_THIS);
+            case HVMInstructionSet.THAT_SEGMENT_CODE:
+                return (push ? OP_PUSH_THAT : OP_POP_THAT);
+            case HVMInstructionSet.TEMP_SEGMENT_CODE:
+                return (push ? OP_PUSH_TEMP : OP_POP_TEMP);
+            case HVMInstructionSet.STATIC_SEGMENT_CODE:
+                return (push ? OP_PUSH_STATIC : OP_POP_STATIC);
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                // pointer indices other than 0 & 1 are ignored
+                if (index == 0)
+                    return (push ? OP_PUSH_POINTER : OP_POP_THIS_POINTER);
+                else if (index == 1)
+                    return (push ? OP_PUSH_POINTER : OP_POP_THAT_POINTER);
+                else
+                    return OP_NOP;
+            default:
+                return OP_SLOW;
+        }
+    }
+
+    // Returns the RAM address of the given index of the pointer segment.
+    private static int getPointerAddress(int index) {
+        return (index == 0 ? Definitions.THIS_POINTER_ADDRESS : Definitions.THAT_POINTER_ADDRESS);
+    }
+
+    // Returns the static segment range of the given function name, or null if
+    // the name doesn't match a class of the program.
+    private int[] getStaticRangeOrNull(String functionName) {
+        try {
+            return getStaticRange(functionName);
+        } catch (ProgramException pe) {
+            return null;
+        }
+    }
+
+    // Sets the static segment to the given range of the given function name.
+    // If the range is null, throws the ProgramException of the computer parts.
+    private void setStaticRange(String functionName, int[] range) throws ProgramException {
+        if (range == null)
+            range = getStaticRange(functionName);
+
+        staticAddress = staticStart = range[0];
+        staticEnd = range[1];
+    }
+
+    // Pushes the given function name and static segment range onto the call stack.
+    private void pushFunction(String functionName, int[] range) {
+        if (functionCount == functionNames.length) {
+            String[] newNames = new String[functionCount * 2];
+            System.arraycopy(functionNames, 0, newNames, 0, functionCount);
+            functionNames = newNames;
+            int[][] newRanges = new int[functionCount * 2][];
+            System.arraycopy(staticRanges, 0, newRanges, 0, functionCount);
+            staticRanges = newRanges;
+        }
+
+        functionNames[functionCount] = functionName;
+        staticRanges[functionCount++] = range;
+    }
+
+    // Pushes the given address onto the stack frames.
+    private void pushFrame(int frameAddress) {
+        if (frameCount == frames.length) {
+            int[] newFrames = new int[frameCount * 2];
+            System.arraycopy(frames, 0, newFrames, 0, frameCount);
+            frames = newFrames;
+        }
+
+        frames[frameCount++] = frameAddress;
+    }
+
+    // Returns the name of the function at the top of the call stack.
+    private String getTopFunction() {
+        return (functionCount > 0 ? functionNames[functionCount - 1] : "");
+    }
+
+    // Reads the state from the computer parts, compiling the program if needed.
+    private void readState() {
+        if (code == null)
+            compile();
+
+        prevPC = program.getPreviousPC();
+        currentPC = program.getCurrentPC();
+        nextPC = program.getPC();
+
+        String[] functions = callStack.getFunctions();
+        functionCount = 0;
+        for (int i = 0; i < functions.length; i++)
+            pushFunction(functions[i], getStaticRangeOrNull(functions[i]));
+
+        frameCount = 0;
+        for (int i = 0; i < stackFrames.size(); i++)
+            pushFrame(((Integer)stackFrames.elementAt(i)).intValue());
+
+        workingStackStart = workingStackSegment.getStartAddress();
+
+        int[] range = localSegment.getEnabledRange();
+        localStart = range[0];
+        localEnd = range[1];
+        range = argSegment.getEnabledRange();
+        argStart = range[0];
+        argEnd = range[1];
+        range = thisSegment.getEnabledRange();
+        thisStart = range[0];
+        thisEnd = range[1];
+        range = thatSegment.getEnabledRange();
+        thatStart = range[0];
+        thatEnd = range[1];
+        range = tempSegment.getEnabledRange();
+        tempStart = range[0];
+        tempEnd = range[1];
+        range = staticSegment.getEnabledRange();
+        staticStart = range[0];
+        staticEnd = range[1];
+        staticAddress = staticSegment.getStartAddress();
+        tempAddress = tempSegment.getStartAddress();
+
+        cached = true;
+    }
+
+    // Writes the cached state back into the computer parts.
+    private void writeState() {
+        if (!cached)
+            return;
+
+        program.setPC(prevPC);
+        program.setPC(currentPC);
+        program.setPC(nextPC);
+
+        String[] functions = new String[functionCount];
+        System.arraycopy(functionNames, 0, functions, 0, functionCount);
+        callStack.setFunctions(functions);
+
+        stackFrames.removeAllElements();
+        for (int i = 0; i < frameCount; i++)
+            stackFrames.addElement(new Integer(frames[i]));
+
+        workingStackSegment.setStartAddress(workingStackStart);
+        localSegment.setEnabledRange(localStart, localEnd, true);
+        argSegment.setEnabledRange(argStart, argEnd, true);
+        thisSegment.setEnabledRange(thisStart, thisEnd, true);
+        thatSegment.setEnabledRange(thatStart, thatEnd, true);
+        staticSegment.setStartAddress(staticAddress);
+        staticSegment.setEnabledRange(staticStart, staticEnd, true);
+
+        cached = false;
+    }
+
+    // Returns the given sp if it is legal. Otherwise, throws a ProgramException
+    // at the instruction at the given address.
+    private int checkSP(int sp, int pc) throws ProgramException {
+        if (sp < Definitions.STACK_START_ADDRESS || sp > Definitions.STACK_END_ADDRESS)
+            throw error("Stack overflow", pc);
+
+        return sp;
+    }
+
+    // Returns the given segment address if it is in the given range. Otherwise,
+    // throws a ProgramException at the instruction at the given address.
+    private int checkSegmentIndex(int address, int start, int end, int pc)
+     throws ProgramException {
+        if (address < start || address > end)
+            throw error("Out of segment space", pc);
+
+        return address;
+    }
+
+    // Returns a program exception with the given message at the instruction
+    // at the given address.
+    private ProgramException error(String message, int pc) {
+        return new ProgramException(message + " in " + getLine(pc));
+    }
+
+    // Returns the line of the instruction at the given address:
+    // <current function>.<index in function>
+    private String getLine(int pc) {
+        return getTopFunction() + "." + instructions[pc].getIndexInFunction();
+    }
+
+    // Returns the result of the given binary operation.
+    private static int calculate(int op, int x, int y) {
+        switch (op) {
+            case OP_ADD: return x + y;
+            case OP_SUBTRACT: return x - y;
+            case OP_EQUAL: return (x == y ? -1 : 0);
+            case OP_GREATER_THAN: return (x > y ? -1 : 0);
+            case OP_LESS_THAN: return (x < y ? -1 : 0);
+            case OP_AND: return x & y;
+            default: return x | y;
+        }
+    }
+
+    // Returns the value at the given RAM address, where SP is the given sp.
+    private static int read(int[] ram, int sp, int address) {
+        return (address == Definitions.SP_ADDRESS ? sp : ram[address]);
+    }
+
+    // Returns the first address after the first page of the RAM that has a
+    // device in the given device table, or the RAM size if there is none.
+    private int getDeviceStart(Device[] devices) {
+        if (devices != devicePages) {
+            devicePages = devices;
+            deviceStart = Definitions.RAM_SIZE;
+            if (devices != null)
+                for (int page = devices.length - 1; page > 0; page--)
+                    if (devices[page] != null)
+                        deviceStart = page << RAM.PAGE_SHIFT;
+        }
+
+        return deviceStart;
+    }
+
+    // Writes the given value into the given RAM address and passes it to the
+    // device of the address if the address is at least the given device start
+    // (see RAM.getDevicePages()). The VM emulator has no clock, so the devices
+    // are given no time.
+    private static void write(int[] ram, Device[] devices, int deviceStart, int address,
+                              int value) {
+        ram[address] = value;
+        if (address >= deviceStart) {
+            Device device = devices[address >>> RAM.PAGE_SHIFT];
+            if (device != null)
+                device.valueWritten(address, value, 0);
+        }
+    }
+
+    // Returns the given value as it would arrive at its target through the bus.
+    private static int busValue(int value) {
+        return (value & 0xc0000000) == 0x40000000 ? value - 0x40000000 : value;
+    }
+}
@@ -18,6 +18,7 @@
 package Hack.VMEmulator;
 
 import java.io.*;
+import java.nio.*;
 import Hack.ComputerParts.*;
 import Hack.Utilities.*;
 import Hack.Controller.*;
@@ -43,6 +44,24 @@ import Hack.VirtualMachine.*;
  * temp[i] - the contents of the i'th element in the Temp segment (int)
  * currentFunction - the name of the current function (String) - READ ONLY
  * line - <function name>.<index in function> (String) - READ ONLY
+ *
+ * Recognizes the following commands:
+ * load [<VM file or directory name>] - loads the given VM program
+ * vmstep [n] - executes n VM commands (1 by default)
+ * save-state <file name> - saves the RAM, the program counter, the call stack and the
+ *                          memory segments into the given file
+ * load-state <file name> - loads a state that was saved by save-state for the same program
+ * screenshot <file name> - saves the screen into the given image file (PNG or PBM)
+ * screenshot <file name> <n> - saves the screen every n VM commands, into files with the
+ *                          time inserted before the extension
+ * screenshot off - stops saving the screen every n VM commands
+ * compare-screen <file name> [<bits>] - fails unless the screen's perceptual hash differs
+ *                          from that of the given image file in at most the given number
+ *                          of bits (0 by default)
+ * keyboard <file name> - replays the timed keys of the given file (see KeyboardReplay)
+ * keyboard off - stops replaying keys
+ *
+ * Also executes the run-until script command, one VM command per step.
  */
 public class VMEmulator extends HackSimulator
  implements ComputerPartErrorEventListener {
@@ -63,6 +82,19 @@ public class VMEmulator extends HackSimulator
     private static final String COMMAND_VMSTEP = "vmstep";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_SAVE_STATE = "save-state";
+    private static final String COMMAND_LOAD_STATE = "load-state";
+    private static final String COMMAND_SCREENSHOT = "screenshot";
+    private static final String COMMAND_COMPARE_SCREEN = "compare-screen";
+    private static final String COMMAND_KEYBOARD = "keyboard";
+
+    // The magic number ("HVM1") and version of the state files
+    private static final int STATE_MAGIC = 0x48564d31;
+    private static final int STATE_VERSION = 2;
+
+    // The number of steps that are executed between checks for a stop request
+    // when there is no GUI
+    private static final int STEPS_PER_STOP_CHECK = 1 << 20;
 
     // The CPU
     private CPU cpu;
@@ -79,6 +111,16 @@ public class VMEmulator extends HackSimulator
     // The current animation mode
     private int animationMode;
 
+    // The capture of the screen (null until the first screen command)
+    private ScreenCapture screenCapture;
+
+    // The replay of keyboard keys (or null)
+    private KeyboardReplay keyboardReplay;
+
+    // The number of VM steps that were executed, which numbers the periodic
+    // screen frames and times the replayed keys
+    private long steps;
+
     /**
      * Constructs a new VM Emulator with no GUI component.
      */
@@ -157,10 +199,10 @@ public class VMEmulator extends HackSimulator
         Bus bus = new Bus(null);
         bus.reset();
 
-        cpu = new CPU(program, ram, callStack, calculator, bus, stackSegment,
-					  workingStackSegment, staticSegment, localSegment,
-					  argSegment, thisSegment, thatSegment, tempSegment,
-					  INITIAL_BUILTIN_DIR);
+        cpu = new HeadlessCPU(program, ram, callStack, calculator, bus, stackSegment,
+                              workingStackSegment, staticSegment, localSegment,
+                              argSegment, thisSegment, thatSegment, tempSegment,
+                              INITIAL_BUILTIN_DIR);
 
         cpu.boot();
 
@@ -450,10 +492,14 @@ public class VMEmulator extends HackSimulator
 
         // execute the appropriate command
         if (command[0].equals(COMMAND_VMSTEP)) {
-            if (command.length != 1)
+            if (command.length == 1) {
+                cpu.executeInstruction();
+                doTimedEvents(1);
+            }
+            else if (command.length == 2)
+                doRepeatedCommand(new String[]{COMMAND_VMSTEP}, getStepCount(command));
+            else
                 throw new CommandException("Illegal number of arguments to command", command);
-
-            cpu.executeInstruction();
         }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
@@ -469,10 +515,204 @@ public class VMEmulator extends HackSimulator
             cpu.getProgram().loadProgram(fileName);
             cpu.boot();
         }
+        else if (command[0].equals(COMMAND_SCREENSHOT)) {
+            if (command.length == 2 && command[1].equals("off"))
+                getScreenCapture().setFrames(null, 0);
+            else if (command.length == 2)
+                getScreenCapture().capture(workingDir + "/" + command[1]);
+            else if (command.length == 3) {
+                long interval;
+                try {
+                    interval = Long.parseLong(command[2]);
+                } catch (NumberFormatException nfe) {
+                    throw new CommandException("Illegal argument to command", command);
+                }
+                if (interval < 1)
+                    throw new CommandException("Illegal argument to command", command);
+                getScreenCapture().setFrames(workingDir + "/" + command[1], interval);
+            }
+            else
+                throw new CommandException("Illegal number of arguments to command", command);
+        }
+        else if (command[0].equals(COMMAND_COMPARE_SCREEN)) {
+            if (command.length != 2 && command.length != 3)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            int distance = 0;
+            if (command.length == 3) {
+                try {
+                    distance = Integer.parseInt(command[2]);
+                } catch (NumberFormatException nfe) {
+                    throw new CommandException("Illegal argument to command", command);
+                }
+                if (distance < 0)
+                    throw new CommandException("Illegal argument to command", command);
+            }
+            getScreenCapture().compare(workingDir + "/" + command[1], distance);
+        }
+        else if (command[0].equals(COMMAND_KEYBOARD)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            if (command[1].equals("off"))
+                keyboardReplay = null;
+            else
+                keyboardReplay = new KeyboardReplay(workingDir + "/" + command[1], steps);
+            cpu.setKeyboardReplay(keyboardReplay);
+            pressReplayedKeys();
+        }
+        else if (command[0].equals(COMMAND_SAVE_STATE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            String fileName = workingDir + "/" + command[1];
+            try {
+                ByteBuffer buffer = StateFile.create(fileName, STATE_MAGIC, STATE_VERSION,
+                                                     cpu.getStateSize());
+                cpu.saveState(buffer);
+            } catch (IOException ioe) {
+                throw new ProgramException("Could not save state to " + command[1] + ": " +
+                                           ioe.getMessage());
+            }
+        }
+        else if (command[0].equals(COMMAND_LOAD_STATE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            String fileName = workingDir + "/" + command[1];
+            try {
+                cpu.loadState(StateFile.open(fileName, STATE_MAGIC, STATE_VERSION));
+            } catch (IOException ioe) {
+                throw new ProgramException("Could not load state from " + command[1] + ": " +
+                                           ioe.getMessage());
+            } catch (BufferUnderflowException bue) {
+                throw new ProgramException("Could not load state from " + command[1] +
+                                           ": the file is truncated");
+            }
+        }
         else
             throw new CommandException("Unknown simulator command", command);
     }
 
+    /**
+     * Executes the given simulator command (given in args[] style) the given
+     * number of times. Without breakpoints, a repeated vmstep is executed by
+     * the cpu in one call (or in a few calls, between the timed events).
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void doRepeatedCommand(String[] command, int times)
+     throws CommandException, ProgramException, VariableException {
+        if (command.length == 1 && command[0].equals(COMMAND_VMSTEP) &&
+            breakpoints.size() == 0) {
+            if (animationMode != HackController.NO_DISPLAY_CHANGES)
+                hideHighlightes();
+
+            clearStopRequest();
+            // with a GUI, a stop may be requested after every step
+            int stepsPerCheck = (gui == null) ? STEPS_PER_STOP_CHECK : 1;
+            long count = times;
+            while (count > 0 && !isStopRequested()) {
+                long stepsToExecute = Math.min(Math.min(count, stepsPerCheck),
+                                               getStepsToTimedEvent());
+                cpu.executeInstructions(stepsToExecute);
+                count -= stepsToExecute;
+                doTimedEvents(stepsToExecute);
+            }
+        }
+        else
+            super.doRepeatedCommand(command, times);
+    }
+
+    /**
+     * Executes VM commands until the given condition holds. The condition
+     * is checked before every VM command. If maxSteps isn't 0, at most maxSteps
+     * VM commands are executed. Stops early when a breakpoint is reached or a
+     * stop is requested.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public void runUntil(ScriptCondition condition, int maxSteps)
+     throws CommandException, ProgramException, VariableException, ControllerException {
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        clearStopRequest();
+        for (int i = 0; maxSteps == 0 || i < maxSteps; i++) {
+            if (condition.compare(this) || isStopRequested())
+                break;
+
+            cpu.executeInstruction();
+            doTimedEvents(1);
+
+            if (breakpoints.size() > 0 && breakpointReached())
+                break;
+        }
+    }
+
+    /**
+     * Called when the script ends. Waits until the captured screens are written.
+     * Throws ProgramException if one of them couldn't be written.
+     */
+    public void scriptEnded() throws ProgramException {
+        if (screenCapture != null) {
+            screenCapture.setFrames(null, 0);
+            screenCapture.flush();
+        }
+    }
+
+    // Returns the capture of the screen, creating it on first use.
+    private ScreenCapture getScreenCapture() {
+        if (screenCapture == null)
+            screenCapture = new ScreenCapture(cpu.getRAM());
+
+        return screenCapture;
+    }
+
+    // Returns the number of steps until the next periodic screen frame or
+    // replayed key, or Long.MAX_VALUE if there is none.
+    private long getStepsToTimedEvent() {
+        long stepsToEvent = Long.MAX_VALUE;
+        if (screenCapture != null)
+            stepsToEvent = screenCapture.getStepsToNextFrame(steps);
+        if (keyboardReplay != null)
+            stepsToEvent = Math.min(stepsToEvent, Math.max(1, keyboardReplay.getNextTime() - steps));
+
+        return stepsToEvent;
+    }
+
+    // Counts the given number of VM steps, presses the replayed keys and captures
+    // the periodic screen frame that are due by then.
+    private void doTimedEvents(long count) {
+        steps += count;
+        pressReplayedKeys();
+        if (screenCapture != null)
+            screenCapture.stepped(steps);
+    }
+
+    // Presses the replayed keys that are due by now.
+    private void pressReplayedKeys() {
+        if (keyboardReplay != null)
+            while (keyboardReplay.getNextTime() <= steps)
+                cpu.getRAM().setValueAt(Definitions.KEYBOARD_ADDRESS, keyboardReplay.nextKey(),
+                                        true);
+    }
+
+    // Returns the number of steps in the given command (its second argument).
+    // Throws CommandException if it is not a positive number.
+    private static int getStepCount(String[] command) throws CommandException {
+        int count;
+        try {
+            count = Integer.parseInt(command[1]);
+        } catch (NumberFormatException nfe) {
+            throw new CommandException("Illegal number of steps", command);
+        }
+
+        if (count < 1)
+            throw new CommandException("Illegal number of steps", command);
+
+        return count;
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
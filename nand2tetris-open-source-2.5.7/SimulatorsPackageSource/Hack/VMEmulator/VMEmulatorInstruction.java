@@ -27,6 +27,9 @@ public class VMEmulatorInstruction extends HVMInstruction {
     // The index of the instruction in its containing function.
     private int indexInFunction;
 
+    // The id of the built-in function called by this instruction (or -1).
+    private int builtInFunctionId = -1;
+
     /**
      * Constructs a new instruction with two arguments and the index in function.
      */
@@ -58,4 +61,19 @@ public class VMEmulatorInstruction extends HVMInstruction {
     public int getIndexInFunction() {
         return indexInFunction;
     }
+
+    /**
+     * Returns the id of the built-in function called by this instruction,
+     * as resolved by a BuiltInFunctionsRunner, or -1 if it wasn't resolved.
+     */
+    public int getBuiltInFunctionId() {
+        return builtInFunctionId;
+    }
+
+    /**
+     * Sets the id of the built-in function called by this instruction.
+     */
+    public void setBuiltInFunctionId(int builtInFunctionId) {
+        this.builtInFunctionId = builtInFunctionId;
+    }
 }
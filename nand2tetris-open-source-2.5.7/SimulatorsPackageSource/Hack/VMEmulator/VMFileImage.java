@@ -0,0 +1,477 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import Hack.Controller.*;
+import Hack.VirtualMachine.*;
+
+/**
+ * A parsed vm file: its instructions, with the names of the labels and functions
+ * that they refer to, and the functions and labels that it defines, with addresses
+ * relative to the start of the file. VMProgram links the images of its files into
+ * a program.
+ * The errors found while parsing are kept in the image, and are reported by
+ * VMProgram at the point of linking where they would be found by scanning the file.
+ * Images are shared by all the programs that load the same file until the file is
+ * modified, so an image must not be changed after it is parsed.
+ */
+class VMFileImage {
+
+    // The images of the parsed files, by canonical file name. The values are soft
+    // references, so unchanged files (such as the OS files) are kept while there is
+    // enough memory.
+    private static Hashtable parsedImages = new Hashtable();
+
+    /**
+     * The name of the file.
+     */
+    final String name;
+
+    /**
+     * The number of instructions in the file (the number of non-empty lines).
+     */
+    int size;
+
+    /**
+     * The names of the functions and the labels defined in the file, in the order
+     * of their definition, and their addresses relative to the start of the file.
+     * A label is named functionName$labelName and its address is that of the
+     * instruction that follows it.
+     */
+    String[] definitions;
+    int[] definitionAddresses;
+    boolean[] isFunction;
+    int definitionsCount;
+
+    /**
+     * The error found while scanning the definitions (or null). It is found after
+     * all the definitions.
+     */
+    String definitionsError;
+
+    /**
+     * The instructions that were parsed before the first error. The address of a
+     * goto, if-goto or call instruction (arg0) is resolved when linking, from its
+     * string argument.
+     */
+    byte[] opCodes;
+    int[] args0;
+    int[] args1;
+    int[] numberOfArgs;
+    int[] indexesInFunction;
+    String[] stringArgs;
+    int instructionsCount;
+
+    /**
+     * The line number and the text (without comments) of every parsed instruction.
+     */
+    int[] lineNumbers;
+    String[] lines;
+
+    /**
+     * The largest static variable index used by the file.
+     */
+    int largestStaticIndex;
+
+    /**
+     * The error found while parsing the instructions (or null). It is found after
+     * all the parsed instructions and, if errorOpCode is a goto, if-goto or call
+     * code, after the label or function named errorStringArg in line errorLineNumber
+     * is resolved.
+     */
+    String error;
+    byte errorOpCode;
+    String errorStringArg;
+    int errorLineNumber;
+    String errorLine;
+
+    // The modification time and length of the file
+    private long lastModified, length;
+
+    // Constructs a new empty image of the file with the given name.
+    private VMFileImage(String name) {
+        this.name = name;
+        definitions = new String[16];
+        definitionAddresses = new int[16];
+        isFunction = new boolean[16];
+        opCodes = new byte[64];
+        args0 = new int[64];
+        args1 = new int[64];
+        numberOfArgs = new int[64];
+        indexesInFunction = new int[64];
+        stringArgs = new String[64];
+        lineNumbers = new int[64];
+        lines = new String[64];
+        largestStaticIndex = -1;
+        errorOpCode = HVMInstructionSet.UNKNOWN_INSTRUCTION;
+    }
+
+    /**
+     * Returns the images of the given files, in the same order. The files that
+     * weren't parsed since they were last modified are parsed in parallel.
+     */
+    static VMFileImage[] loadImages(File[] files) {
+        final File[] parsedFiles = files;
+        final VMFileImage[] images = new VMFileImage[files.length];
+        final String[] keys = new String[files.length];
+        final int[] nextFile = new int[1];
+        int filesToParse = 0;
+
+        for (int i = 0; i < files.length; i++) {
+            try {
+                keys[i] = files[i].getCanonicalPath();
+            } catch (IOException ioe) {
+                keys[i] = files[i].getAbsolutePath();
+            }
+
+            Reference reference = (Reference)parsedImages.get(keys[i]);
+            VMFileImage image = (reference != null ? (VMFileImage)reference.get() : null);
+            if (image != null && image.lastModified == files[i].lastModified() &&
+                image.length == files[i].length())
+                images[i] = image;
+            else
+                filesToParse++;
+        }
+
+        // Every thread parses the next file that isn't parsed until no files are left
+        Runnable parser = new Runnable() {
+            public void run() {
+                while (true) {
+                    int i;
+                    synchronized (nextFile) {
+                        while (nextFile[0] < images.length && images[nextFile[0]] != null)
+                            nextFile[0]++;
+                        if (nextFile[0] == images.length)
+                            return;
+                        i = nextFile[0]++;
+                    }
+
+                    long lastModified = parsedFiles[i].lastModified();
+                    long length = parsedFiles[i].length();
+                    VMFileImage image = parse(parsedFiles[i]);
+                    image.lastModified = lastModified;
+                    image.length = length;
+                    images[i] = image;
+                    parsedImages.put(keys[i], new SoftReference(image));
+                }
+            }
+        };
+
+        int threadsCount = Math.min(filesToParse, Runtime.getRuntime().availableProcessors());
+        Thread[] threads = new Thread[Math.max(threadsCount - 1, 0)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(parser);
+            threads[i].start();
+        }
+        parser.run();
+        // joining the threads also makes their images visible to this thread
+        for (int i = 0; i < threads.length; i++) {
+            while (true) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                break;
+            }
+        }
+
+        return images;
+    }
+
+    /**
+     * Parses the given file into a new image.
+     */
+    static VMFileImage parse(File file) {
+        VMFileImage image = new VMFileImage(file.getName());
+        Vector lines = new Vector();
+
+        // Read the lines without their comments
+        boolean unterminatedComment = false;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file.getAbsolutePath()));
+            boolean[] isSlashStar = new boolean[1];
+            String line;
+            while ((line = unCommentLine(reader.readLine(), isSlashStar)) != null)
+                lines.addElement(line);
+            reader.close();
+            unterminatedComment = isSlashStar[0];
+        } catch (FileNotFoundException fnfe) {
+            image.definitionsError = "file " + file.getName() + " does not exist";
+            return image;
+        } catch (IOException ioe) {
+            image.definitionsError = "Error while reading from file";
+            return image;
+        }
+
+        image.scanDefinitions(lines, unterminatedComment);
+        if (image.definitionsError == null)
+            image.parseInstructions(lines, unterminatedComment);
+
+        return image;
+    }
+
+    // Scans the given lines for the functions & label names.
+    private void scanDefinitions(Vector lines, boolean unterminatedComment) {
+        String currentFunction = null;
+        int lineNumber = 0;
+
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                String line = (String)lines.elementAt(i);
+                lineNumber++;
+                if (!line.trim().equals("")) {
+                    if (line.startsWith("function ")) {
+                        StringTokenizer tokenizer = new StringTokenizer(line);
+                        tokenizer.nextToken();
+                        currentFunction = tokenizer.nextToken();
+                        addDefinition(currentFunction, size, true);
+                    }
+                    else if (line.startsWith("label ")) {
+                        StringTokenizer tokenizer = new StringTokenizer(line);
+                        tokenizer.nextToken();
+                        addDefinition(currentFunction + "$" + tokenizer.nextToken(),
+                                      size + 1, false);
+                    }
+
+                    size++;
+                }
+            }
+        } catch (NoSuchElementException nsee) {
+            definitionsError = "In line " + lineNumber + ": unexpected end of command";
+            return;
+        }
+
+        if (unterminatedComment)
+            definitionsError = "Unterminated /* comment at end of file";
+    }
+
+    // Parses the given lines into instructions.
+    private void parseInstructions(Vector lines, boolean unterminatedComment) {
+        int lineNumber = 0;
+        String line = null;
+        String currentFunction = null;
+        int indexInFunction = 0;
+        HVMInstructionSet instructionSet = HVMInstructionSet.getInstance();
+
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                line = (String)lines.elementAt(i);
+                lineNumber++;
+
+                if (line.trim().equals(""))
+                    continue;
+
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                String instructionName = tokenizer.nextToken();
+
+                byte opCode = instructionSet.instructionStringToCode(instructionName);
+                if (opCode == HVMInstructionSet.UNKNOWN_INSTRUCTION)
+                    throw new ProgramException("in line " + lineNumber +
+                                               ": unknown instruction - " + instructionName);
+
+                int arg0 = 0, arg1 = 0, args = 0;
+                String stringArg = null;
+                switch (opCode) {
+                    case HVMInstructionSet.PUSH_CODE:
+                    case HVMInstructionSet.POP_CODE:
+                        String segment = tokenizer.nextToken();
+                        arg0 = instructionSet.segmentVMStringToCode(segment);
+                        if (arg0 == HVMInstructionSet.UNKNOWN_SEGMENT)
+                            throw new ProgramException("in line " + lineNumber +
+                                                       ": Illegal memory segment - " +
+                                                       segment);
+                        arg1 = Integer.parseInt(tokenizer.nextToken());
+                        if (arg1 < 0)
+                            throw new ProgramException("in line " + lineNumber +
+                                                       ": Illegal argument - " + line);
+
+                        if (arg0 == HVMInstructionSet.STATIC_SEGMENT_CODE &&
+                            arg1 > largestStaticIndex)
+                            largestStaticIndex = arg1;
+                        args = 2;
+                        break;
+
+                    case HVMInstructionSet.FUNCTION_CODE:
+                        currentFunction = tokenizer.nextToken();
+                        indexInFunction = 0;
+                        arg0 = Integer.parseInt(tokenizer.nextToken());
+                        if (arg0 < 0)
+                            throw new ProgramException("in line " + lineNumber +
+                                                       ": Illegal argument - " + line);
+                        stringArg = currentFunction;
+                        args = 1;
+                        break;
+
+                    case HVMInstructionSet.CALL_CODE:
+                        stringArg = tokenizer.nextToken();
+                        // errors from here on are found after the function is resolved
+                        setErrorReference(opCode, stringArg, lineNumber, line);
+                        arg1 = Integer.parseInt(tokenizer.nextToken());
+                        if (arg1 < 0)
+                            throw new ProgramException("in line " + lineNumber +
+                                                       ": Illegal argument - " + line);
+                        args = 2;
+                        break;
+
+                    case HVMInstructionSet.LABEL_CODE:
+                        stringArg = currentFunction + "$" + tokenizer.nextToken();
+                        break;
+
+                    case HVMInstructionSet.GOTO_CODE:
+                    case HVMInstructionSet.IF_GOTO_CODE:
+                        stringArg = currentFunction + "$" + tokenizer.nextToken();
+                        // errors from here on are found after the label is resolved
+                        setErrorReference(opCode, stringArg, lineNumber, line);
+                        args = 1;
+                        break;
+
+                    // All other instructions have either 1 or 0 arguments and require no
+                    // special treatment
+                    default:
+                        if (tokenizer.countTokens() > 0) {
+                            arg0 = Integer.parseInt(tokenizer.nextToken());
+                            if (arg0 < 0)
+                                throw new ProgramException("in line " + lineNumber +
+                                                           ": Illegal argument - " + line);
+                            args = 1;
+                        }
+                        break;
+                }
+
+                // check end of command
+                if (tokenizer.hasMoreTokens())
+                    throw new ProgramException("in line " + lineNumber +
+                                               ": Too many arguments - " + line);
+
+                setErrorReference(HVMInstructionSet.UNKNOWN_INSTRUCTION, null, 0, null);
+                if (opCode == HVMInstructionSet.LABEL_CODE) {
+                    // Label is not a "physical" instruction
+                    addInstruction(opCode, arg0, arg1, args, -1, stringArg, lineNumber, line);
+                } else {
+                    addInstruction(opCode, arg0, arg1, args, indexInFunction, stringArg,
+                                   lineNumber, line);
+                    indexInFunction++;
+                }
+            }
+        } catch (ProgramException pe) {
+            error = pe.getMessage();
+            return;
+        } catch (NumberFormatException nfe) {
+            error = "Illegal 16-bit value";
+            return;
+        } catch (NoSuchElementException nsee) {
+            error = "In line " + lineNumber + ": unexpected end of command";
+            return;
+        }
+
+        if (unterminatedComment)
+            error = "Unterminated /* comment at end of file";
+    }
+
+    // Sets the reference that is resolved before the error in the current line.
+    private void setErrorReference(byte opCode, String stringArg, int lineNumber,
+                                   String line) {
+        errorOpCode = opCode;
+        errorStringArg = stringArg;
+        errorLineNumber = lineNumber;
+        errorLine = line;
+    }
+
+    // Adds the given definition.
+    private void addDefinition(String name, int address, boolean function) {
+        if (definitionsCount == definitions.length) {
+            definitions = (String[])grow(definitions, new String[definitionsCount * 2]);
+            definitionAddresses = (int[])grow(definitionAddresses, new int[definitionsCount * 2]);
+            isFunction = (boolean[])grow(isFunction, new boolean[definitionsCount * 2]);
+        }
+
+        definitions[definitionsCount] = name;
+        definitionAddresses[definitionsCount] = address;
+        isFunction[definitionsCount] = function;
+        definitionsCount++;
+    }
+
+    // Adds the given instruction.
+    private void addInstruction(byte opCode, int arg0, int arg1, int args,
+                                int indexInFunction, String stringArg, int lineNumber,
+                                String line) {
+        if (instructionsCount == opCodes.length) {
+            int newLength = instructionsCount * 2;
+            opCodes = (byte[])grow(opCodes, new byte[newLength]);
+            args0 = (int[])grow(args0, new int[newLength]);
+            args1 = (int[])grow(args1, new int[newLength]);
+            numberOfArgs = (int[])grow(numberOfArgs, new int[newLength]);
+            indexesInFunction = (int[])grow(indexesInFunction, new int[newLength]);
+            stringArgs = (String[])grow(stringArgs, new String[newLength]);
+            lineNumbers = (int[])grow(lineNumbers, new int[newLength]);
+            lines = (String[])grow(lines, new String[newLength]);
+        }
+
+        opCodes[instructionsCount] = opCode;
+        args0[instructionsCount] = arg0;
+        args1[instructionsCount] = arg1;
+        numberOfArgs[instructionsCount] = args;
+        indexesInFunction[instructionsCount] = indexInFunction;
+        stringArgs[instructionsCount] = stringArg;
+        lineNumbers[instructionsCount] = lineNumber;
+        lines[instructionsCount] = line;
+        instructionsCount++;
+    }
+
+    // Copies the given array into the given larger array and returns it.
+    private static Object grow(Object array, Object newArray) {
+        System.arraycopy(array, 0, newArray, 0, java.lang.reflect.Array.getLength(array));
+        return newArray;
+    }
+
+    // Returns the "un-commented" version of the given line.
+    // Comments can be either with // or /*.
+    // isSlashStar[0] holds the current /* comment state.
+    private static String unCommentLine(String line, boolean[] isSlashStar) {
+        String result = line;
+
+        if (line != null) {
+            if (isSlashStar[0]) {
+                int posStarSlash = line.indexOf("*/");
+                if (posStarSlash >= 0) {
+                    isSlashStar[0] = false;
+                    result = unCommentLine(line.substring(posStarSlash+2), isSlashStar);
+                } else {
+                    result = "";
+                }
+            } else {
+                int posSlashSlash = line.indexOf("//");
+                int posSlashStar = line.indexOf("/*");
+                if (posSlashSlash >= 0 &&
+                    (posSlashStar < 0 || posSlashStar > posSlashSlash)) {
+                    result = line.substring(0, posSlashSlash);
+                } else if (posSlashStar >= 0) {
+                    isSlashStar[0] = true;
+                    result = line.substring(0, posSlashStar) +
+                             unCommentLine(line.substring(posSlashStar+2), isSlashStar);
+                }
+            }
+        }
+
+        return result;
+    }
+}
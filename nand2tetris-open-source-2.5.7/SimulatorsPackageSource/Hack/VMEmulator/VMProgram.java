@@ -20,6 +20,7 @@ package Hack.VMEmulator;
 import java.util.*;
 import Hack.Utilities.*;
 import java.io.*;
+import java.util.zip.*;
 import Hack.Utilities.*;
 import Hack.Events.*;
 import Hack.ComputerParts.*;
@@ -71,15 +72,9 @@ public class VMProgram extends InteractiveComputerPart
     // The current index of the static variables
     private int currentStaticIndex;
 
-    // The largest static variable index found in the current file.
-    private int largestStaticIndex;
-
 	// Has the user allowed access to built-in vm functions?
 	private int builtInAccessStatus;
 
-	// Is the program currently being read in the middle of a /* */ comment?
-	private boolean isSlashStar;
-
     /**
      * Constructs a new empty program with the given GUI.
      */
@@ -101,7 +96,9 @@ public class VMProgram extends InteractiveComputerPart
     /**
      * Creates a vm program. If the given file is a dir, creates a program composed of the vm
      * files in the dir.
-     * The vm files are scanned twice: in the first scan a symbol table (that maps
+     * The vm files are parsed in parallel (see VMFileImage), and files that were
+     * parsed before and weren't modified since are not parsed again. The parsed
+     * files are then scanned twice: in the first scan a symbol table (that maps
      * function & label names into addresses) is built. In the second scan, the instructions
      * array is built.
      * Throws ProgramException if an error occurs while loading the program.
@@ -124,6 +121,8 @@ public class VMProgram extends InteractiveComputerPart
         if (displayChanges)
             gui.showMessage("Loading...");
 
+        VMFileImage[] images = VMFileImage.loadImages(files);
+
         // First scan
 		staticRange.clear();
 		functions.clear();
@@ -137,7 +136,7 @@ public class VMProgram extends InteractiveComputerPart
 			// getAddress in the second pass which classes exist
 			staticRange.put(className, new Boolean(true));
             try {
-                updateSymbolTable(files[i], symbols, functions);
+                updateSymbolTable(images[i], symbols, functions);
             } catch (ProgramException pe) {
                 if (displayChanges)
                     gui.hideMessage();
@@ -165,21 +164,20 @@ public class VMProgram extends InteractiveComputerPart
             String name = files[i].getName();
             String className = name.substring(0, name.indexOf("."));
 
-            largestStaticIndex = -1;
             int[] range = new int[2];
             range[0] = currentStaticIndex;
 
             try {
 				// functions is not passed as an argument since it is accessed
 				// through getAddress()
-                buildProgram(files[i], symbols);
+                buildProgram(images[i], symbols);
             } catch (ProgramException pe) {
                 if (displayChanges)
                     gui.hideMessage();
                 throw new ProgramException(name + ": " + pe.getMessage());
             }
 
-            currentStaticIndex += largestStaticIndex + 1;
+            currentStaticIndex += images[i].largestStaticIndex + 1;
             range[1] = currentStaticIndex - 1;
             staticRange.put(className, range);
         }
@@ -251,281 +249,98 @@ public class VMProgram extends InteractiveComputerPart
         notifyProgramListeners(ProgramEvent.LOAD, fileName);
     }
 
-    // Scans the given file and creates symbols for its functions & label names.
-    private void updateSymbolTable(File file, Hashtable symbols, Hashtable functions) throws ProgramException {
-        BufferedReader reader = null;
-
-        try {
-            reader = new BufferedReader(new FileReader(file.getAbsolutePath()));
-        } catch (FileNotFoundException fnfe) {
-            throw new ProgramException("file " + file.getName() + " does not exist");
-        }
-
-        String line;
-        String currentFunction = null;
-        String label;
-        int lineNumber = 0;
-
-		isSlashStar = false;
-        try {
-            while ((line = unCommentLine(reader.readLine())) != null) {
-                lineNumber++;
-                if (!line.trim().equals("")) {
-                    if (line.startsWith("function ")) {
-                        StringTokenizer tokenizer = new StringTokenizer(line);
-                        tokenizer.nextToken();
-                        currentFunction = tokenizer.nextToken();
-                        if (symbols.containsKey(currentFunction))
-                            throw new ProgramException("subroutine " + currentFunction +
-                                                       " already exists");
-                        functions.put(currentFunction, new Integer(nextPC));
-                        symbols.put(currentFunction, new Integer(nextPC));
-                    }
-                    else if (line.startsWith("label ")) {
-                        StringTokenizer tokenizer = new StringTokenizer(line);
-                        tokenizer.nextToken();
-                        label = currentFunction + "$" + tokenizer.nextToken();
-                        symbols.put(label, new Integer((int)(nextPC + 1)));
-                    }
-
-                    nextPC++;
-                }
+    // Adds the functions & label names of the given parsed file to the symbol table.
+    private void updateSymbolTable(VMFileImage image, Hashtable symbols, Hashtable functions)
+     throws ProgramException {
+        for (int i = 0; i < image.definitionsCount; i++) {
+            String name = image.definitions[i];
+            Integer address = new Integer(nextPC + image.definitionAddresses[i]);
+            if (image.isFunction[i]) {
+                if (symbols.containsKey(name))
+                    throw new ProgramException("subroutine " + name + " already exists");
+                functions.put(name, address);
             }
-            reader.close();
-        } catch (IOException ioe) {
-            throw new ProgramException("Error while reading from file");
-        } catch (NoSuchElementException nsee) {
-            throw new ProgramException("In line " + lineNumber + ": unexpected end of command");
+            symbols.put(name, address);
         }
-		if (isSlashStar) {
-			throw new ProgramException("Unterminated /* comment at end of file");
-		}
-    }
 
-    // Scans the given file and creates symbols for its functions & label names.
-    private void buildProgram(File file, Hashtable symbols)
-        throws ProgramException {
+        if (image.definitionsError != null)
+            throw new ProgramException(image.definitionsError);
 
-        BufferedReader reader = null;
-
-        try {
-            reader = new BufferedReader(new FileReader(file.getAbsolutePath()));
-        } catch (FileNotFoundException fnfe) {
-            throw new ProgramException("file does not exist");
-        }
+        nextPC += image.size;
+    }
 
-        int lineNumber = 0;
-        String line;
-        String label;
-        String instructionName;
-        String currentFunction = null;
-        int indexInFunction = 0;
-        byte opCode;
-        int arg0, arg1;
+    // Adds the instructions of the given parsed file to the program.
+    private void buildProgram(VMFileImage image, Hashtable symbols)
+     throws ProgramException {
         int pc = nextPC;
-        HVMInstructionSet instructionSet = HVMInstructionSet.getInstance();
-
-		isSlashStar = false;
-        try {
-            while ((line = unCommentLine(reader.readLine())) != null) {
-                lineNumber++;
-
-                if (!line.trim().equals("")) {
-                    StringTokenizer tokenizer = new StringTokenizer(line);
-                    instructionName = tokenizer.nextToken();
-
-                    opCode = instructionSet.instructionStringToCode(instructionName);
-                    if (opCode == HVMInstructionSet.UNKNOWN_INSTRUCTION)
-                        throw new ProgramException("in line " + lineNumber +
-                                                   ": unknown instruction - " + instructionName);
-
-                    switch (opCode) {
-                        case HVMInstructionSet.PUSH_CODE:
-                            String segment = tokenizer.nextToken();
-                            try {
-                                arg0 = translateSegment(segment, instructionSet, file.getName());
-                            } catch (ProgramException pe) {
-                                throw new ProgramException("in line " + lineNumber + pe.getMessage());
-                            }
-                            arg1 = Integer.parseInt(tokenizer.nextToken());
-                            if (arg1 < 0)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - " + line);
-
-                            if (arg0 == HVMInstructionSet.STATIC_SEGMENT_CODE && arg1 > largestStaticIndex)
-                                largestStaticIndex = arg1;
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, arg1,
-                                                                         indexInFunction);
-                            break;
-
-                        case HVMInstructionSet.POP_CODE:
-                            int n = tokenizer.countTokens();
-                            segment = tokenizer.nextToken();
-                            try {
-                                arg0 = translateSegment(segment, instructionSet, file.getName());
-                            } catch (ProgramException pe) {
-                                throw new ProgramException("in line " + lineNumber + pe.getMessage());
-                            }
-                            arg1 = Integer.parseInt(tokenizer.nextToken());
-
-                            if (arg1 < 0)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - " + line);
-
-                            if (arg0 == HVMInstructionSet.STATIC_SEGMENT_CODE && arg1 > largestStaticIndex)
-                                largestStaticIndex = arg1;
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, arg1,
-                                                                         indexInFunction);
-                            break;
-
-                        case HVMInstructionSet.FUNCTION_CODE:
-                            currentFunction = tokenizer.nextToken();
-                            indexInFunction = 0;
-                            arg0 = Integer.parseInt(tokenizer.nextToken());
-
-                            if (arg0 < 0)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - " + line);
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
-                            instructions[pc].setStringArg(currentFunction);
-                            break;
-
-                        case HVMInstructionSet.CALL_CODE:
-                            String functionName = tokenizer.nextToken();
-							try {
-								arg0 = getAddress(functionName);
-							} catch (ProgramException pe) {
-								throw new ProgramException("in line " +
-														   lineNumber + ": " +
-														   pe.getMessage());
-							}
-                            arg1 = Integer.parseInt(tokenizer.nextToken());
-
-                            if (arg1 < 0 || ((arg0 < 0 || arg0 > Definitions.ROM_SIZE) && arg0 != BUILTIN_FUNCTION_ADDRESS))
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - " + line);
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, arg1,
-                                                                         indexInFunction);
-                            instructions[pc].setStringArg(functionName);
-                            break;
-
-                        case HVMInstructionSet.LABEL_CODE:
-                            label = currentFunction + "$" + tokenizer.nextToken();
-                            instructions[pc] = new VMEmulatorInstruction(opCode, (int)(-1));
-                            instructions[pc].setStringArg(label);
-                            indexInFunction--; // since Label is not a "physical" instruction
-                            break;
-
-                        case HVMInstructionSet.GOTO_CODE:
-                            label = currentFunction + "$" + tokenizer.nextToken();
-                            Integer labelAddress = (Integer)symbols.get(label);
-                            if (labelAddress == null)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Unknown label - " + label);
-                            arg0 = labelAddress.intValue();
-
-                            if (arg0 < 0 || arg0 > Definitions.ROM_SIZE)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - " + line);
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
-                            instructions[pc].setStringArg(label);
-                            break;
-
-                        case HVMInstructionSet.IF_GOTO_CODE:
-                            label = currentFunction + "$" + tokenizer.nextToken();
-                            labelAddress = (Integer)symbols.get(label);
-                            if (labelAddress == null)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Unknown label - " + label);
-
-                            arg0 = labelAddress.intValue();
-
-                            if (arg0 < 0 || arg0 > Definitions.ROM_SIZE)
-                                throw new ProgramException("in line " + lineNumber +
-                                                           ": Illegal argument - "  + line);
-
-                            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
-                            instructions[pc].setStringArg(label);
-                            break;
-
-                        // All other instructions have either 1 or 0 arguments and require no
-                        // special treatment
-                        default:
-                            if (tokenizer.countTokens() == 0) {
-                                instructions[pc] = new VMEmulatorInstruction(opCode, indexInFunction);
-                            }
-                            else {
-                                arg0 = Integer.parseInt(tokenizer.nextToken());
-
-                                if (arg0 < 0)
-                                    throw new ProgramException("in line " + lineNumber +
-                                                               ": Illegal argument - " + line);
-
-                                instructions[pc] = new VMEmulatorInstruction(opCode, arg0,
-                                                                             indexInFunction);
-                            }
-                            break;
-                    }
-
-                    // check end of command
-                    if (tokenizer.hasMoreTokens())
-                        throw new ProgramException("in line " + lineNumber +
-                                                   ": Too many arguments - " + line);
-
-                    pc++;
-                    indexInFunction++;
-                }
-
-                nextPC = pc;
+        for (int i = 0; i < image.instructionsCount; i++) {
+            byte opCode = image.opCodes[i];
+            int arg0 = image.args0[i];
+            if (opCode == HVMInstructionSet.CALL_CODE || opCode == HVMInstructionSet.GOTO_CODE ||
+                opCode == HVMInstructionSet.IF_GOTO_CODE)
+                arg0 = resolveAddress(opCode, image.stringArgs[i], image.lineNumbers[i],
+                                      image.lines[i], symbols);
+
+            switch (image.numberOfArgs[i]) {
+                case 2:
+                    instructions[pc] = new VMEmulatorInstruction(opCode, arg0, image.args1[i],
+                                                                 image.indexesInFunction[i]);
+                    break;
+                case 1:
+                    instructions[pc] = new VMEmulatorInstruction(opCode, arg0,
+                                                                 image.indexesInFunction[i]);
+                    break;
+                default:
+                    instructions[pc] = new VMEmulatorInstruction(opCode,
+                                                                 image.indexesInFunction[i]);
+                    break;
             }
-            reader.close();
-        } catch (IOException ioe) {
-            throw new ProgramException("Error while reading from file");
-        } catch (NumberFormatException nfe) {
-            throw new ProgramException("Illegal 16-bit value");
-        } catch (NoSuchElementException nsee) {
-            throw new ProgramException("In line " + lineNumber + ": unexpected end of command");
+            if (image.stringArgs[i] != null)
+                instructions[pc].setStringArg(image.stringArgs[i]);
+
+            pc++;
+        }
+        nextPC = pc;
+
+        if (image.error != null) {
+            if (image.errorStringArg != null)
+                resolveAddress(image.errorOpCode, image.errorStringArg, image.errorLineNumber,
+                               image.errorLine, symbols);
+            throw new ProgramException(image.error);
         }
-		if (isSlashStar) {
-			throw new ProgramException("Unterminated /* comment at end of file");
-		}
     }
 
-    // Returns the "un-commented" version of the given line.
-	// Comments can be either with // or /*.
-	// The field isSlashStar holds the current /* comment state.
-    private String unCommentLine(String line) {
-        String result = line;
-
-        if (line != null) {
-			if (isSlashStar) {
-				int posStarSlash = line.indexOf("*/");
-				if (posStarSlash >= 0) {
-					isSlashStar = false;
-					result = unCommentLine(line.substring(posStarSlash+2));
-				} else {
-					result = "";
-				}
-			} else {
-				int posSlashSlash = line.indexOf("//");
-				int posSlashStar = line.indexOf("/*");
-				if (posSlashSlash >= 0 &&
-					(posSlashStar < 0 || posSlashStar > posSlashSlash)) {
-					result = line.substring(0, posSlashSlash);
-				} else if (posSlashStar >= 0) {
-					isSlashStar = true;
-					result = line.substring(0, posSlashStar) +
-							 unCommentLine(line.substring(posSlashStar+2));
-				}
-			}
+    // Returns the address of the function or label that the given call, goto or
+    // if-goto instruction (in the given line) refers to.
+    private int resolveAddress(byte opCode, String name, int lineNumber, String line,
+                               Hashtable symbols)
+     throws ProgramException {
+        int address;
+        if (opCode == HVMInstructionSet.CALL_CODE) {
+            try {
+                address = getAddress(name);
+            } catch (ProgramException pe) {
+                throw new ProgramException("in line " + lineNumber + ": " + pe.getMessage());
+            }
+
+            if ((address < 0 || address > Definitions.ROM_SIZE) &&
+                address != BUILTIN_FUNCTION_ADDRESS)
+                throw new ProgramException("in line " + lineNumber +
+                                           ": Illegal argument - " + line);
+        }
+        else {
+            Integer labelAddress = (Integer)symbols.get(name);
+            if (labelAddress == null)
+                throw new ProgramException("in line " + lineNumber +
+                                           ": Unknown label - " + name);
+
+            address = labelAddress.intValue();
+            if (address < 0 || address > Definitions.ROM_SIZE)
+                throw new ProgramException("in line " + lineNumber +
+                                           ": Illegal argument - " + line);
         }
 
-        return result;
+        return address;
     }
 
     /**
@@ -544,6 +359,40 @@ public class VMProgram extends InteractiveComputerPart
         return instructionsLength;
     }
 
+    /**
+     * Returns a checksum of the program: a CRC-32 of the op codes, the arguments
+     * and the names (of functions, calls and labels) of its instructions.
+     */
+    public int getChecksum() {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < instructionsLength; i++) {
+            VMEmulatorInstruction instruction = instructions[i];
+            updateChecksum(crc, instruction.getOpCode());
+            updateChecksum(crc, instruction.getNumberOfArgs());
+            if (instruction.getNumberOfArgs() > 0)
+                updateChecksum(crc, instruction.getArg0());
+            if (instruction.getNumberOfArgs() > 1)
+                updateChecksum(crc, instruction.getArg1());
+
+            String name = instruction.getStringArg();
+            if (name != null) {
+                updateChecksum(crc, name.length());
+                for (int j = 0; j < name.length(); j++)
+                    updateChecksum(crc, name.charAt(j));
+            }
+        }
+
+        return (int)crc.getValue();
+    }
+
+    // Adds the given value to the given checksum.
+    private static void updateChecksum(CRC32 crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
 	public int getAddress(String functionName) throws ProgramException {
         Integer address = (Integer)functions.get(functionName);
 		if (address != null) {
@@ -578,6 +427,14 @@ public class VMProgram extends InteractiveComputerPart
 		}
 	}
 
+    /**
+     * Returns the instruction at the given address, or null if the address is
+     * outside the program.
+     */
+    public VMEmulatorInstruction getInstructionAt(int address) {
+        return (address >= 0 && address < instructionsLength ? instructions[address] : null);
+    }
+
     /**
      * Returns the next program counter.
      */
@@ -696,19 +553,6 @@ public class VMProgram extends InteractiveComputerPart
         }
     }
 
-    // Returns the numeric representation of the given string segment.
-    // Throws an exception if unknown segment.
-    private byte translateSegment(String segment, HVMInstructionSet instructionSet,
-                                  String fileName)
-     throws ProgramException {
-        byte code = instructionSet.segmentVMStringToCode(segment);
-        if (code == HVMInstructionSet.UNKNOWN_SEGMENT)
-            throw new ProgramException(": Illegal memory segment - "
-                                       + segment);
-
-        return code;
-    }
-
     // Sets the gui's contents (if a gui exists)
     private void setGUIContents() {
         if (displayChanges) {